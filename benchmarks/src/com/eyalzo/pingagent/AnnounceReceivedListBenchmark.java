@@ -0,0 +1,65 @@
+package com.eyalzo.pingagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Building the received list from a large "clients_to_ping" document: streamed from the announce response, as the announce thread does, and from
+ * an already parsed tree.
+ *
+ * @author Eyal Zohar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkMain.JVM_ARG_ONE_CPU, BenchmarkMain.JVM_ARG_HEAP })
+public class AnnounceReceivedListBenchmark {
+	private static final int REGIONS = 40;
+	/**
+	 * One agent in this many has downloads.
+	 */
+	private static final int DOWNLOADS_EVERY = 50;
+	@Param({ "1000", "10000" })
+	int agents;
+	private byte[] announceResponse;
+	private JsonNode clientsNode;
+
+	@Setup
+	public void setup() throws IOException {
+		announceResponse = BenchmarkData.announceResponse(REGIONS, agents, DOWNLOADS_EVERY);
+		clientsNode = new ObjectMapper().readTree(announceResponse).get("clients_to_ping");
+	}
+
+	/**
+	 * The announce response as the announce thread parses it, one agent at a time.
+	 */
+	@Benchmark
+	public AnnounceReceivedList parseResponse() throws IOException {
+		AnnounceParser parser = new AnnounceParser(null);
+		parser.parse(new ByteArrayInputStream(announceResponse));
+		return parser.getReceivedList();
+	}
+
+	@Benchmark
+	public AnnounceReceivedList fromTree() {
+		return new AnnounceReceivedList(clientsNode);
+	}
+}
@@ -0,0 +1,149 @@
+package com.eyalzo.pingagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.eyalzo.pingagent.PingMeasure.PingResult;
+
+/**
+ * Generated input for the benchmarks, shaped like what the agent sees in production. Always the same for the same arguments, so runs can be
+ * compared.
+ *
+ * @author Eyal Zohar
+ */
+class BenchmarkData {
+	/**
+	 * Port of the generated agents, as announced by the server.
+	 */
+	private static final int AGENT_PORT = 5001;
+	private static final long SEED = 20140101;
+
+	/**
+	 * @param count
+	 *            Number of targets.
+	 * @return Distinct public-looking targets, packed as in {@link TargetTable}.
+	 */
+	static long[] targets(int count) {
+		long[] result = new long[count];
+		for (int i = 0; i < count; i++)
+			result[i] = TargetTable.pack(ip(i), AGENT_PORT);
+		return result;
+	}
+
+	/**
+	 * An IPv4 address per index, from 3.0.0.1 and up, so all are distinct.
+	 */
+	private static int ip(int index) {
+		return (3 << 24) + index + 1;
+	}
+
+	/**
+	 * @return Results of a ping round: most succeeded with a typical cloud RTT, some timed out and a few did not complete.
+	 */
+	static PingResult[] pingResults(long[] targets) {
+		Random random = new Random(SEED);
+		long now = System.currentTimeMillis();
+		PingResult[] result = new PingResult[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			int kind = random.nextInt(100);
+			if (kind < 2)
+				continue;
+			int queueMillis = random.nextInt(500);
+			if (kind < 10)
+				result[i] = new PingResult(now + queueMillis, queueMillis, targets[i],
+						new SocketTimeoutException("connect timed out"), 1000000 + random.nextInt(2000));
+			else
+				result[i] = new PingResult(now + queueMillis, queueMillis, targets[i], null,
+						500 + random.nextInt(300000));
+		}
+		return result;
+	}
+
+	/**
+	 * A full announce response, as returned by the server, with the "clients_to_ping" regions and agents.
+	 *
+	 * @param regions
+	 *            Number of regions, with the agents spread evenly between them.
+	 * @param agents
+	 *            Number of agents.
+	 * @param downloadsEvery
+	 *            Every such agent also has downloads, uploads and a duration-bounded download, as only a few agents have. Zero for none.
+	 */
+	static byte[] announceResponse(int regions, int agents, int downloadsEvery) {
+		Random random = new Random(SEED);
+		StringBuilder buffer = new StringBuilder(agents * 80);
+		buffer.append("{\"list_version\":\"bench-1\",\"agent_configuration\":{\"ping_interval_sec\":59},");
+		buffer.append("\"clients_to_ping\":{");
+		int agentIndex = 0;
+		for (int region = 0; region < regions; region++) {
+			if (region > 0)
+				buffer.append(',');
+			buffer.append("\"aws\\\\region-").append(region).append("\":{\"agents\":[");
+			int regionAgents = agents / regions + (region < agents % regions ? 1 : 0);
+			for (int i = 0; i < regionAgents; i++, agentIndex++) {
+				if (i > 0)
+					buffer.append(',');
+				buffer.append("{\"ip\":\"").append(TargetTable.ipToString(TargetTable.pack(ip(agentIndex), 0)))
+						.append("\",\"port\":\"").append(AGENT_PORT).append("\",\"measure_port\":\"")
+						.append(AGENT_PORT + 1).append("\",\"rank\":\"").append(random.nextInt(100)).append('"');
+				if (downloadsEvery > 0 && agentIndex % downloadsEvery == 0)
+					buffer.append(",\"download\":{\"20000\":3000,\"1000000\":10000},\"upload\":{\"20000\":3000}")
+							.append(",\"download_duration\":{\"2000\":1000}");
+				buffer.append('}');
+			}
+			buffer.append("]}");
+		}
+		buffer.append("}}");
+		return buffer.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return The list of the given announce response, as the announce thread builds it.
+	 */
+	static AnnounceReceivedList receivedList(byte[] announceResponse) throws IOException {
+		AnnounceParser parser = new AnnounceParser(null);
+		parser.parse(new ByteArrayInputStream(announceResponse));
+		return parser.getReceivedList();
+	}
+
+	/**
+	 * Fill the results of a download round: most completed with a typical connect time and throughput, some failed.
+	 */
+	static void completeDownloads(DownloadList downloadList) {
+		Random random = new Random(SEED);
+		long start = System.nanoTime();
+		for (ArrayList<DownloadResult> series : downloadList.getDownloadSeries()) {
+			for (DownloadResult result : series) {
+				result.enterQueueTime = start;
+				result.startConnectTime = start + random.nextInt(200) * 1000000L;
+				result.startDownloadTime = result.startConnectTime + (result.warm ? 0 : 500000 + random.nextInt(100000000));
+				result.concurrencyGlobal = 1 + random.nextInt(8);
+				result.concurrencyPeer = 1;
+				result.concurrencyRegion = 1 + random.nextInt(2);
+				if (random.nextInt(100) < 5) {
+					result.exception = new SocketTimeoutException("Read timed out");
+					continue;
+				}
+				result.endDownloadTime = result.startDownloadTime + 1000000 + random.nextInt(500000000);
+				// Duration-bounded downloads get whatever arrived in time
+				result.sizeDownloaded = result.sizeToDownload > 0 ? result.sizeToDownload : 100000 + random.nextInt(10000000);
+				if (result.upload)
+					result.serverMicro = (int) ((result.endDownloadTime - result.startDownloadTime) / 1000) - 200;
+			}
+		}
+	}
+
+	/**
+	 * Set a private field, for state that only a live loop would set.
+	 */
+	static void setField(Object object, String name, Object value) throws ReflectiveOperationException {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(object, value);
+	}
+}
@@ -0,0 +1,46 @@
+package com.eyalzo.pingagent;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Takes the usual JMH command line, and always adds the gc profiler, so every result comes with the bytes
+ * allocated per operation ("gc.alloc.rate.norm"), which is what decides the GC work on a machine with a fraction of a CPU.
+ *
+ * @author Eyal Zohar
+ */
+public class BenchmarkMain {
+	/**
+	 * Every fork gets these, so the JVM ergonomics (GC, compiler and pool threads) are those of the small cloud machines.
+	 */
+	static final String JVM_ARG_ONE_CPU = "-XX:ActiveProcessorCount=1";
+	static final String JVM_ARG_HEAP = "-Xmx256m";
+
+	public static void main(String[] args) throws RunnerException {
+		CommandLineOptions commandLine;
+		try {
+			commandLine = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Error parsing command line: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+				|| commandLine.shouldListResultFormats()) {
+			// Nothing to run, so let JMH print it
+			try {
+				org.openjdk.jmh.Main.main(args);
+			} catch (Exception e) {
+				throw new RunnerException(e);
+			}
+			return;
+		}
+		Options options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,60 @@
+package com.eyalzo.pingagent;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The analysis of a download round's results into the report, and the report's serialization, as done once per download round.
+ *
+ * @author Eyal Zohar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkMain.JVM_ARG_ONE_CPU, BenchmarkMain.JVM_ARG_HEAP })
+public class DownloadListBenchmark {
+	/**
+	 * Agents with downloads. Each has two downloads, an upload and a duration-bounded download, each with its warm ones.
+	 */
+	@Param({ "10", "100" })
+	int agents;
+	@Param({ "2" })
+	int warmCount;
+	private DownloadList downloadList;
+
+	@Setup
+	public void setup() throws IOException {
+		AnnounceReceivedList receivedList = BenchmarkData.receivedList(BenchmarkData.announceResponse(10, agents, 1));
+		downloadList = receivedList.getDownloadsAsNewDownloadList(warmCount);
+		BenchmarkData.completeDownloads(downloadList);
+	}
+
+	@Benchmark
+	public ObjectNode analyzeResults() {
+		return downloadList.analyzeResults();
+	}
+
+	/**
+	 * The analysis and the report body sent to the server.
+	 */
+	@Benchmark
+	public String analyzeAndSerialize() {
+		return downloadList.analyzeResults().toString();
+	}
+}
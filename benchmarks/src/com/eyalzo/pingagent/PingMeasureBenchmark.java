@@ -0,0 +1,101 @@
+package com.eyalzo.pingagent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.eyalzo.pingagent.PingMeasure.PingResult;
+
+/**
+ * A complete ping round of {@link PingMeasure#pingHosts}, against listeners on the loopback, so the network adds almost nothing and what is left
+ * is the agent's own cost: the executers, the sockets and the results.
+ *
+ * @author Eyal Zohar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkMain.JVM_ARG_ONE_CPU, BenchmarkMain.JVM_ARG_HEAP })
+public class PingMeasureBenchmark {
+	private static final int PING_TIMEOUT_MILLIS = 1000;
+	private static final int OVERALL_TIMEOUT_MILLIS = 10000;
+	/**
+	 * Number of targets, each a separate listener.
+	 */
+	@Param({ "16", "128", "512" })
+	int targets;
+	@Param({ "20" })
+	int executers;
+	private long[] targetsToPing;
+	private ServerSocketChannel[] listeners;
+	private Selector selector;
+	private Thread acceptor;
+
+	@Setup
+	public void setup() throws IOException {
+		selector = Selector.open();
+		listeners = new ServerSocketChannel[targets];
+		targetsToPing = new long[targets];
+		for (int i = 0; i < targets; i++) {
+			listeners[i] = ServerSocketChannel.open();
+			listeners[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+			listeners[i].configureBlocking(false);
+			listeners[i].register(selector, SelectionKey.OP_ACCEPT);
+			targetsToPing[i] = TargetTable.pack(0x7f000001, listeners[i].socket().getLocalPort());
+		}
+		// A single thread accepts and closes, because a ping is only a connect
+		acceptor = new Thread(this::acceptAll, "Acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void acceptAll() {
+		try {
+			while (true) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+					if (channel != null)
+						channel.close();
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			// Closed by the tear down
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		selector.close();
+		acceptor.join(1000);
+		for (ServerSocketChannel listener : listeners)
+			listener.close();
+	}
+
+	@Benchmark
+	public PingResult[] pingHosts() {
+		return PingMeasure.pingHosts(targetsToPing, executers, PING_TIMEOUT_MILLIS, OVERALL_TIMEOUT_MILLIS, null);
+	}
+}
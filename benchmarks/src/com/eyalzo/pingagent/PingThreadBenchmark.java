@@ -0,0 +1,58 @@
+package com.eyalzo.pingagent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.eyalzo.pingagent.PingMeasure.PingResult;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The analysis of a ping round's results into the report, and the report's serialization, as done once per ping round.
+ *
+ * @author Eyal Zohar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkMain.JVM_ARG_ONE_CPU, BenchmarkMain.JVM_ARG_HEAP })
+public class PingThreadBenchmark {
+	@Param({ "100", "1000", "10000" })
+	int targets;
+	private PingThread pingThread;
+	private long[] pingedTargets;
+	private PingResult[] pingResults;
+
+	@Setup
+	public void setup() {
+		// Never started, so the report URL is not used
+		pingThread = new PingThread("http://127.0.0.1:1/ping?", new Config(), new ResultStream(1));
+		pingedTargets = BenchmarkData.targets(targets);
+		pingResults = BenchmarkData.pingResults(pingedTargets);
+	}
+
+	@Benchmark
+	public ObjectNode analyzePingResults() {
+		return pingThread.analyzePingResults(pingedTargets, pingResults);
+	}
+
+	/**
+	 * The analysis and the report body sent to the server.
+	 */
+	@Benchmark
+	public String analyzeAndSerialize() {
+		return pingThread.analyzePingResults(pingedTargets, pingResults).toString();
+	}
+}
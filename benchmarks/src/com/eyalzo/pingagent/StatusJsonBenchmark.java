@@ -0,0 +1,89 @@
+package com.eyalzo.pingagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering of the status pages of {@link PingHttpHandler} into the json bytes of a snapshot, as {@link StatusCache} does when a page changed:
+ * the main page, and the ping thread page with the items of the last round.
+ *
+ * @author Eyal Zohar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkMain.JVM_ARG_ONE_CPU, BenchmarkMain.JVM_ARG_HEAP })
+public class StatusJsonBenchmark {
+	/**
+	 * Agents in the announced list, all pinged in the last round.
+	 */
+	@Param({ "100", "1000" })
+	int targets;
+	private PingThread pingThread;
+	private PingHttpHandler handler;
+	private HttpPool[] pools;
+
+	@Setup
+	public void setup() throws IOException, ReflectiveOperationException {
+		// No such file, so all the local settings are the defaults
+		LocalConfig localConfig = new LocalConfig(new File(System.getProperty("java.io.tmpdir"), "benchmark-none.conf")
+				.getPath());
+		Config config = new Config();
+		ResultStream resultStream = new ResultStream(1);
+		// None of the threads is started, so the URLs are not used
+		pingThread = new PingThread("http://127.0.0.1:1/ping?", config, resultStream);
+		DownloadThread downloadThread = new DownloadThread("http://127.0.0.1:1/download?", config, resultStream);
+		AnnounceThread announceThread = new AnnounceThread("http://127.0.0.1:1/announce?", pingThread, downloadThread,
+				config, null);
+
+		// State of a running agent: the announced list and the results of the last ping round
+		AnnounceReceivedList receivedList = BenchmarkData
+				.receivedList(BenchmarkData.announceResponse(10, targets, 50));
+		BenchmarkData.setField(announceThread, "addrLastReceivedList", receivedList);
+		long[] pingedTargets = receivedList.getTargets();
+		pingThread.setAddressesToPing(pingedTargets);
+		BenchmarkData.setField(pingThread, "statPingResult",
+				pingThread.analyzePingResults(pingedTargets, BenchmarkData.pingResults(pingedTargets)));
+
+		pools = new HttpPool[] { new HttpPool("HttpDispatch", 1, 1), new HttpPool("HttpMeasure", 1, 1),
+				new HttpPool("HttpStatus", 1, 1), new HttpPool("HttpStream", 1, 0) };
+		DownloadContent downloadContent = new DownloadContent();
+		AdmissionControl admissionControl = new AdmissionControl(8, 2, 0, 0);
+		handler = new PingHttpHandler(0, announceThread, pingThread, downloadThread, localConfig,
+				downloadContent, admissionControl, new ServedTrafficStats(), null, resultStream, pools[0], pools[1],
+				pools[2], pools[3]);
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (HttpPool pool : pools)
+			pool.shutdown();
+	}
+
+	@Benchmark
+	public byte[] mainPage() {
+		return handler.getMainJson().toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] pingThreadPage() {
+		return pingThread.getStatisticsAsJson().toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
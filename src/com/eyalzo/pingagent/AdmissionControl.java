@@ -0,0 +1,270 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Admission control of transfers served to other agents (downloads and uploads), shared by the status server and the measurement server.
+ * <p>
+ * Limits the concurrent transfers and the bandwidth, both globally and per remote IP. A misconfigured announce can point the whole fleet at a
+ * single agent, and then its link and CPU are saturated and its own measurements are ruined. A transfer over the limit is rejected immediately
+ * (429 with Retry-After), and is not queued.
+ * <p>
+ * Bandwidth is enforced as a token bucket with a burst of one second. A download charges its bytes as they are written, and waits while the
+ * bucket is empty, so transfers that are already running are paced too, and not only the new ones. New transfers are rejected while the bucket is
+ * empty. Bytes that were not charged on the way (uploads) are charged when the transfer ends.
+ * <p>
+ * Thread safe. The bookkeeping is done under a single monitor, because it is done once per large write (hundreds of KB).
+ *
+ * @author Eyal Zohar
+ */
+public class AdmissionControl {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	/**
+	 * How much the bandwidth budget can be exceeded before new transfers are rejected.
+	 */
+	private static final long BURST_NANOS = 1000000000L;
+	/**
+	 * Remote IPs are forgotten when idle, but only when there are more than this, to avoid scanning too often.
+	 */
+	private static final int MAX_IDLE_PEERS = 1000;
+	private final int maxTransfers;
+	private final int maxTransfersPerIp;
+	/**
+	 * Bandwidth budget in bytes per second, or zero if unlimited.
+	 */
+	private final long maxBytesPerSec;
+	private final long maxBytesPerSecPerIp;
+
+	//
+	// Current state, under this object's monitor
+	//
+	private int activeTransfers;
+	/**
+	 * When the global bucket is full again, in nano time.
+	 */
+	private long bucketFullNanos;
+	private final HashMap<InetAddress, PeerState> peers = new HashMap<>();
+
+	//
+	// Statistics
+	//
+	private long statAdmitted;
+	private long statRejectedConcurrency;
+	private long statRejectedRate;
+	private static final MetricsRegistry.Counter metricAdmitted = MetricsRegistry.DEFAULT
+			.counter("admission_admitted_total", "Transfers admitted to be served.");
+	private static final MetricsRegistry.Counter metricRejectedConcurrency = MetricsRegistry.DEFAULT.counter(
+			"admission_rejected_total", "Transfers rejected with 429, by the limit that was reached.", "limit",
+			"concurrency");
+	private static final MetricsRegistry.Counter metricRejectedRate = MetricsRegistry.DEFAULT.counter(
+			"admission_rejected_total", "Transfers rejected with 429, by the limit that was reached.", "limit", "rate");
+	private long statBytesCharged;
+	private int statPeakTransfers;
+	/**
+	 * Time running transfers were asked to wait, for the bandwidth budget.
+	 */
+	private long statPacedNanos;
+
+	/**
+	 * State of a single remote IP.
+	 */
+	private static class PeerState {
+		int activeTransfers;
+		/**
+		 * When this peer's bucket is full again, in nano time.
+		 */
+		long bucketFullNanos;
+	}
+
+	/**
+	 * An admitted transfer, that must be released exactly once when it ends, with the number of bytes it transferred.
+	 */
+	public class Ticket {
+		private final InetAddress ip;
+		private boolean released;
+		/**
+		 * Bytes already charged by {@link #charge(long)}.
+		 */
+		private long charged;
+
+		private Ticket(InetAddress ip) {
+			this.ip = ip;
+		}
+
+		/**
+		 * Charge the bandwidth budget with bytes that were just written, while the transfer runs.
+		 *
+		 * @return Nanos to wait before writing more, or zero if the budget allows more right away.
+		 */
+		public long charge(long bytes) {
+			return AdmissionControl.this.charge(this, bytes);
+		}
+
+		/**
+		 * @return Bytes charged so far by {@link #charge(long)}, which are the bytes written by a paced transfer, even if it failed.
+		 */
+		public long getCharged() {
+			synchronized (AdmissionControl.this) {
+				return charged;
+			}
+		}
+
+		/**
+		 * Release the transfer slot and charge the bandwidth budget with the bytes that were not charged yet. Further calls are ignored.
+		 *
+		 * @param bytes
+		 *            Bytes transferred, possibly less than requested if the transfer failed.
+		 */
+		public void release(long bytes) {
+			AdmissionControl.this.release(this, bytes);
+		}
+	}
+
+	/**
+	 * @param maxTransfers
+	 *            Maximal concurrent transfers, or zero if unlimited.
+	 * @param maxTransfersPerIp
+	 *            Maximal concurrent transfers of a single remote IP, or zero if unlimited.
+	 * @param maxKbps
+	 *            Bandwidth budget in kbps, or zero if unlimited.
+	 * @param maxKbpsPerIp
+	 *            Bandwidth budget of a single remote IP in kbps, or zero if unlimited.
+	 */
+	public AdmissionControl(int maxTransfers, int maxTransfersPerIp, int maxKbps, int maxKbpsPerIp) {
+		this.maxTransfers = Math.max(0, maxTransfers);
+		this.maxTransfersPerIp = Math.max(0, maxTransfersPerIp);
+		this.maxBytesPerSec = maxKbps <= 0 ? 0 : maxKbps * 1000L / 8;
+		this.maxBytesPerSecPerIp = maxKbpsPerIp <= 0 ? 0 : maxKbpsPerIp * 1000L / 8;
+	}
+
+	/**
+	 * Admit a new transfer if all the limits allow it. Never blocks.
+	 *
+	 * @param ip
+	 *            The remote IP.
+	 * @return The ticket to release when the transfer ends, or null if rejected. See {@link #getRetryAfterSeconds(InetAddress)}.
+	 */
+	public synchronized Ticket admit(InetAddress ip) {
+		PeerState peer = peers.get(ip);
+		if ((maxTransfers > 0 && activeTransfers >= maxTransfers)
+				|| (maxTransfersPerIp > 0 && peer != null && peer.activeTransfers >= maxTransfersPerIp)) {
+			statRejectedConcurrency++;
+			metricRejectedConcurrency.inc();
+			return null;
+		}
+		long now = System.nanoTime();
+		if ((maxBytesPerSec > 0 && bucketFullNanos - now > BURST_NANOS)
+				|| (maxBytesPerSecPerIp > 0 && peer != null && peer.bucketFullNanos - now > BURST_NANOS)) {
+			statRejectedRate++;
+			metricRejectedRate.inc();
+			return null;
+		}
+
+		if (peer == null) {
+			if (peers.size() >= MAX_IDLE_PEERS)
+				removeIdlePeers(now);
+			peer = new PeerState();
+			peers.put(ip, peer);
+		}
+		peer.activeTransfers++;
+		activeTransfers++;
+		statAdmitted++;
+		metricAdmitted.inc();
+		statPeakTransfers = Math.max(statPeakTransfers, activeTransfers);
+		return new Ticket(ip);
+	}
+
+	/**
+	 * @return Seconds to wait before the next transfer of this IP may be admitted, as a hint for the Retry-After header. At least 1.
+	 */
+	public synchronized int getRetryAfterSeconds(InetAddress ip) {
+		long now = System.nanoTime();
+		long waitNanos = 0;
+		if (maxBytesPerSec > 0)
+			waitNanos = bucketFullNanos - now - BURST_NANOS;
+		PeerState peer = peers.get(ip);
+		if (maxBytesPerSecPerIp > 0 && peer != null)
+			waitNanos = Math.max(waitNanos, peer.bucketFullNanos - now - BURST_NANOS);
+		return (int) Math.max(1, (waitNanos + 999999999L) / 1000000000L);
+	}
+
+	private synchronized long charge(Ticket ticket, long bytes) {
+		if (ticket.released || bytes <= 0)
+			return 0;
+		ticket.charged += bytes;
+		long now = System.nanoTime();
+		PeerState peer = peers.get(ticket.ip);
+		chargeBuckets(peer, bytes, now);
+		long waitNanos = 0;
+		if (maxBytesPerSec > 0)
+			waitNanos = bucketFullNanos - now - BURST_NANOS;
+		if (maxBytesPerSecPerIp > 0 && peer != null)
+			waitNanos = Math.max(waitNanos, peer.bucketFullNanos - now - BURST_NANOS);
+		if (waitNanos <= 0)
+			return 0;
+		statPacedNanos += waitNanos;
+		return waitNanos;
+	}
+
+	private synchronized void release(Ticket ticket, long bytes) {
+		if (ticket.released)
+			return;
+		ticket.released = true;
+		activeTransfers--;
+		PeerState peer = peers.get(ticket.ip);
+		chargeBuckets(peer, bytes - ticket.charged, System.nanoTime());
+		if (peer != null)
+			peer.activeTransfers--;
+	}
+
+	private void chargeBuckets(PeerState peer, long bytes, long now) {
+		if (bytes <= 0)
+			return;
+		statBytesCharged += bytes;
+		if (maxBytesPerSec > 0)
+			bucketFullNanos = Math.max(bucketFullNanos, now) + getNanos(bytes, maxBytesPerSec);
+		if (maxBytesPerSecPerIp > 0 && peer != null)
+			peer.bucketFullNanos = Math.max(peer.bucketFullNanos, now) + getNanos(bytes, maxBytesPerSecPerIp);
+	}
+
+	/**
+	 * @return Time it takes to transfer the bytes at the given rate. In double, because bytes times 10^9 overflows a long above about 9 GB.
+	 */
+	private static long getNanos(long bytes, long bytesPerSec) {
+		return (long) (bytes * 1000000000.0 / bytesPerSec);
+	}
+
+	/**
+	 * Forget remote IPs with no active transfers and a full bucket.
+	 */
+	private void removeIdlePeers(long now) {
+		Iterator<PeerState> iter = peers.values().iterator();
+		while (iter.hasNext()) {
+			PeerState peer = iter.next();
+			if (peer.activeTransfers <= 0 && peer.bucketFullNanos <= now)
+				iter.remove();
+		}
+	}
+
+	public synchronized ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("max_transfers", maxTransfers);
+		result.put("max_transfers_per_ip", maxTransfersPerIp);
+		result.put("max_kbps", maxBytesPerSec * 8 / 1000);
+		result.put("max_kbps_per_ip", maxBytesPerSecPerIp * 8 / 1000);
+		result.put("active_transfers", activeTransfers);
+		result.put("peak_transfers", statPeakTransfers);
+		result.put("known_peers", peers.size());
+		result.put("admitted", statAdmitted);
+		result.put("rejected_concurrency", statRejectedConcurrency);
+		result.put("rejected_rate", statRejectedRate);
+		result.put("bytes_charged", statBytesCharged);
+		result.put("paced_ms", statPacedNanos / 1000000);
+		return result;
+	}
+}
@@ -0,0 +1,238 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The last valid announce response, kept in a local file, so a restarted agent starts pinging and downloading right away instead of waiting for
+ * the first announce, and keeps working when the announce server is unreachable.
+ * <p>
+ * The file holds the targets with their downloads (see {@link AnnounceReceivedList#writeTo(DataOutputStream)}), the configuration, and the list
+ * version and ETag, so the next announce can be incremental. It is written to a temporary file and renamed, so a crash never leaves a partial
+ * file. A cached list older than the TTL is not loaded.
+ * <p>
+ * Not thread safe. Used by the announce thread only, except for the statistics.
+ *
+ * @author Eyal Zohar
+ */
+public class AnnounceCache {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	/**
+	 * "PAC" and the format version.
+	 */
+	private static final int MAGIC = 0x50414302;
+	/**
+	 * Tolerance for a save time in the future, when the clock was adjusted.
+	 */
+	private static final long MAX_CLOCK_SKEW_MILLIS = 60 * 1000;
+	private final File file;
+	private final long ttlMillis;
+
+	//
+	// Loaded content
+	//
+	private long saveTime;
+	private String listVersion;
+	private String etag;
+	private JsonNode configNode;
+	private AnnounceReceivedList receivedList;
+
+	//
+	// Statistics
+	//
+	private String statLoadResult = "";
+	private long statLoadMicro;
+	private int statLoadedAddresses;
+	private long statSaveCount;
+	private long statSaveErrors;
+	private String statLastSaveError = "";
+	private long statLastSaveTime;
+	private long statLastSaveMicro;
+	private long statLastSaveBytes;
+
+	/**
+	 * @param fileName
+	 *            Where to keep the cache.
+	 * @param ttlMillis
+	 *            How long after it was saved the cached list can still be used.
+	 */
+	public AnnounceCache(String fileName, long ttlMillis) {
+		this.file = new File(fileName);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Load the cached announce, if it exists and is not too old.
+	 *
+	 * @return True if loaded, and then the getters return the content.
+	 */
+	public boolean load() {
+		long before = System.nanoTime();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			if (in.readInt() != MAGIC) {
+				statLoadResult = "unknown format";
+				return false;
+			}
+			long tempSaveTime = in.readLong();
+			long now = System.currentTimeMillis();
+			if (tempSaveTime > now + MAX_CLOCK_SKEW_MILLIS) {
+				statLoadResult = "saved in the future";
+				return false;
+			}
+			if (now - tempSaveTime > ttlMillis) {
+				statLoadResult = "expired, saved " + (now - tempSaveTime) / 1000 + " sec ago";
+				return false;
+			}
+			String tempListVersion = readNullableString(in);
+			String tempEtag = readNullableString(in);
+			String configStr = readNullableString(in);
+			JsonNode tempConfigNode = configStr == null ? null : objectMapper.readTree(configStr);
+			AnnounceReceivedList tempList = AnnounceReceivedList.readFrom(in);
+
+			// Only now, when all is valid
+			saveTime = tempSaveTime;
+			listVersion = tempListVersion;
+			etag = tempEtag;
+			configNode = tempConfigNode;
+			receivedList = tempList;
+			statLoadedAddresses = tempList.size();
+			statLoadResult = "ok";
+			return true;
+		} catch (FileNotFoundException e) {
+			statLoadResult = "file not found";
+		} catch (IOException e) {
+			statLoadResult = "io error - " + e;
+		} finally {
+			statLoadMicro = (System.nanoTime() - before) / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * Save a valid announce, replacing the previous one.
+	 *
+	 * @param list
+	 *            The complete list of targets, after a diff was applied if any.
+	 * @param configNode
+	 *            The configuration in effect, as in {@link Config#getAllAsJson()}. Can be null.
+	 * @param listVersion
+	 *            Can be null.
+	 * @param etag
+	 *            Can be null.
+	 * @return True if saved.
+	 */
+	public boolean save(AnnounceReceivedList list, JsonNode configNode, String listVersion, String etag) {
+		long before = System.nanoTime();
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024))) {
+				out.writeInt(MAGIC);
+				out.writeLong(System.currentTimeMillis());
+				writeNullableString(out, listVersion);
+				writeNullableString(out, etag);
+				writeNullableString(out, configNode == null ? null : configNode.toString());
+				list.writeTo(out);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tempFile.delete();
+			statSaveErrors++;
+			statLastSaveError = e.toString();
+			return false;
+		}
+		statSaveCount++;
+		statLastSaveTime = System.currentTimeMillis();
+		statLastSaveBytes = file.length();
+		statLastSaveMicro = (System.nanoTime() - before) / 1000;
+		return true;
+	}
+
+	private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value == null)
+			return;
+		// Not writeUTF, that is limited to 64KB
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readNullableString(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		int length = in.readInt();
+		if (length < 0 || length > 16 * 1024 * 1024)
+			throw new IOException("Bad string length");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * @return When the loaded announce was saved.
+	 */
+	public long getSaveTime() {
+		return saveTime;
+	}
+
+	/**
+	 * @return When the loaded list should no longer be used.
+	 */
+	public long getExpiryTime() {
+		return saveTime + ttlMillis;
+	}
+
+	public String getListVersion() {
+		return listVersion;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return The configuration in effect when saved, or null if none.
+	 */
+	public JsonNode getConfigNode() {
+		return configNode;
+	}
+
+	public AnnounceReceivedList getReceivedList() {
+		return receivedList;
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("file", file.getPath());
+		result.put("ttl_sec", ttlMillis / 1000);
+		result.put("load_result", statLoadResult);
+		result.put("load_us", statLoadMicro);
+		result.put("loaded_addresses", statLoadedAddresses);
+		if (saveTime > 0)
+			LocalConfig.addTimeNodes(result, "loaded_save_time", saveTime);
+		result.put("save_count", statSaveCount);
+		result.put("save_errors", statSaveErrors);
+		result.put("last_save_error", statLastSaveError);
+		LocalConfig.addTimeNodes(result, "last_save_time", statLastSaveTime);
+		result.put("last_save_us", statLastSaveMicro);
+		result.put("last_save_bytes", statLastSaveBytes);
+		return result;
+	}
+}
@@ -0,0 +1,217 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser of the announce response, reading straight from the connection's input stream.
+ * <p>
+ * Only a single agent's node is held as a tree at a time, and it is turned into an {@link AnnounceReceivedItem} right away. So the memory used
+ * for parsing does not grow with the number of agents, and the only thing that grows is the resulting list itself. The response looks like:
+ *
+ * <pre>
+ * { "list_version": "17", "agent_configuration": { ... },
+ *   "clients_to_ping": { "AWS\ap-northeast-1": { "agents": [ { "ip": "3.24.138.198", "port": "5001", ... }, ... ] }, ... } }
+ * </pre>
+ *
+ * Or, for an incremental announce, "clients_diff" instead of "clients_to_ping":
+ *
+ * <pre>
+ * "clients_diff": { "base_version": "16", "remove": [ { "ip": "3.24.138.198", "port": 5001 } ], "add": { "AWS\ap-northeast-1": { "agents": [ ... ] } } }
+ * </pre>
+ *
+ * Not thread safe. A new parser is used for every announce.
+ *
+ * @author Eyal Zohar
+ */
+public class AnnounceParser {
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	private static final JsonFactory jsonFactory = objectMapper.getFactory();
+	/**
+	 * The current list, to apply a diff to. Can be null if there is none.
+	 */
+	private final AnnounceReceivedList baseList;
+	private JsonNode configNode;
+	private String listVersion;
+	private String baseVersion;
+	/**
+	 * The new full list, or the copy of the base list with the diff applied. Null if the response had neither.
+	 */
+	private AnnounceReceivedList receivedList;
+	private boolean diff;
+	private int regionsCount;
+	private int agentsCount;
+	private int diffChanges;
+
+	/**
+	 * @param baseList
+	 *            The current list, to apply a diff to. Can be null if there is none, and then a diff is an error.
+	 */
+	public AnnounceParser(AnnounceReceivedList baseList) {
+		this.baseList = baseList;
+	}
+
+	/**
+	 * Parse the complete response. Unknown fields are skipped.
+	 *
+	 * @param in
+	 *            The response body, already decompressed if needed. Not closed here.
+	 * @throws IOException
+	 *             If failed to read, or the json is malformed, or there is a diff without a current list.
+	 */
+	public void parse(InputStream in) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(in)) {
+			parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Response is not a json object");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.currentName();
+				JsonToken token = parser.nextToken();
+				if (fieldName.equals("agent_configuration")) {
+					// Small, so a tree is fine
+					configNode = parser.readValueAsTree();
+				} else if (fieldName.equals("list_version")) {
+					listVersion = token.isScalarValue() && token != JsonToken.VALUE_NULL ? parser.getText() : null;
+				} else if (fieldName.equals("clients_to_ping") && token == JsonToken.START_OBJECT) {
+					receivedList = new AnnounceReceivedList();
+					diff = false;
+					parseRegions(parser, receivedList);
+				} else if (fieldName.equals("clients_diff") && token == JsonToken.START_OBJECT) {
+					parseDiff(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse regions, each with agents, and add the agents to the list.
+	 *
+	 * @param parser
+	 *            Pointing at the start of the regions object.
+	 */
+	private void parseRegions(JsonParser parser, AnnounceReceivedList list) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			// Region name as "provider\region"
+			String regionName = parser.currentName();
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			regionsCount++;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.currentName();
+				if (parser.nextToken() != JsonToken.START_ARRAY || !fieldName.equals("agents")) {
+					parser.skipChildren();
+					continue;
+				}
+				// One agent at a time
+				JsonToken token;
+				while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+					if (token != JsonToken.START_OBJECT) {
+						parser.skipChildren();
+						continue;
+					}
+					JsonNode agentNode = parser.readValueAsTree();
+					agentsCount++;
+					if (list.addAddress(regionName, agentNode) && diff)
+						diffChanges++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse a diff and apply it to a copy of the base list.
+	 *
+	 * @param parser
+	 *            Pointing at the start of the diff object.
+	 */
+	private void parseDiff(JsonParser parser) throws IOException {
+		if (baseList == null)
+			throw new IOException("Diff without a current list");
+		receivedList = new AnnounceReceivedList(baseList);
+		diff = true;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = parser.currentName();
+			JsonToken token = parser.nextToken();
+			if (fieldName.equals("base_version")) {
+				baseVersion = token.isScalarValue() && token != JsonToken.VALUE_NULL ? parser.getText() : null;
+			} else if (fieldName.equals("remove") && token == JsonToken.START_ARRAY) {
+				while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+					if (token != JsonToken.START_OBJECT) {
+						parser.skipChildren();
+						continue;
+					}
+					JsonNode agentNode = parser.readValueAsTree();
+					if (receivedList.removeAddress(agentNode))
+						diffChanges++;
+				}
+			} else if (fieldName.equals("add") && token == JsonToken.START_OBJECT) {
+				parseRegions(parser, receivedList);
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	/**
+	 * @return The "agent_configuration" node, or null if missing.
+	 */
+	public JsonNode getConfigNode() {
+		return configNode;
+	}
+
+	/**
+	 * @return Version of the new list, to be sent on the next announce. Null if missing.
+	 */
+	public String getListVersion() {
+		return listVersion;
+	}
+
+	/**
+	 * @return Version of the list the diff is based on. Null if missing or not a diff.
+	 */
+	public String getBaseVersion() {
+		return baseVersion;
+	}
+
+	/**
+	 * @return The new full list, or a copy of the current list with the diff applied. Null if the response had neither.
+	 */
+	public AnnounceReceivedList getReceivedList() {
+		return receivedList;
+	}
+
+	/**
+	 * @return True if the received list is the result of a diff.
+	 */
+	public boolean isDiff() {
+		return diff;
+	}
+
+	public int getRegionsCount() {
+		return regionsCount;
+	}
+
+	/**
+	 * @return Number of agents parsed, including malformed ones that were skipped.
+	 */
+	public int getAgentsCount() {
+		return agentsCount;
+	}
+
+	/**
+	 * @return Number of agents removed and added by a diff.
+	 */
+	public int getDiffChanges() {
+		return diffChanges;
+	}
+}
@@ -4,15 +4,13 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 /**
  * Item to ping and/or download. The command received from VGN server during an announce.
@@ -21,98 +19,191 @@ import java.util.regex.Pattern;
  * @author Eyal Zohar
  */
 public class AnnounceReceivedItem {
-	private static final Pattern IPV4_PATTERN = Pattern
-			.compile("^(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)(\\.(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)){3}$");
 	/**
-	 * IP and port. Can be null if malformed (although it had to generate exception on constructor).
+	 * IP and port, packed as in {@link TargetTable}.
 	 */
-	private InetSocketAddress ipAndPort;
+	private final long target;
 
 	/**
-	 * @return IP and port. Can be null if malformed (although it had to generate exception on constructor).
+	 * @return IP and port, packed as in {@link TargetTable}.
+	 */
+	public long getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return IP and port, as a new address object (not resolved).
 	 */
 	public InetSocketAddress getIpAndPort() {
-		return ipAndPort;
+		return TargetTable.toSocketAddress(target);
 	}
 
 	/**
 	 * Informative region name as "provider\region".
 	 */
-	private String regionName;
+	private final String regionName;
 	/**
 	 * Optional. Downloads to perform: size in bytes and complete download timeout in millis. Can be null.
 	 */
 	private HashMap<Integer, Integer> downloads;
+	/**
+	 * Optional. Uploads to perform: size in bytes and complete upload timeout in millis. Can be null.
+	 */
+	private HashMap<Integer, Integer> uploads;
+	/**
+	 * Optional. Duration-bounded downloads to perform: streaming duration in millis and extra timeout in millis (on top of the duration). Can be null.
+	 */
+	private HashMap<Integer, Integer> downloadDurations;
+	/**
+	 * Optional. Port of the agent's measurement server, where downloads and uploads should go. Zero if the agent has none (older versions).
+	 */
+	private int measurePort;
+	/**
+	 * Downloads, uploads and duration-bounded downloads, prepared once so the download rounds only create the results. Empty if none.
+	 */
+	private ArrayList<DownloadPlan> downloadPlans;
 
 	/**
 	 * @param regionName
 	 *            Informative region name as "provider\region".
 	 * @param agentNode
-	 *            The agent's address node, containing "ip", "port", "rank" (not used at the moment). <br>
-	 *            For example: { "ip": "3.24.138.198", "port": "5001", "rank": "99", "download": { "20000": 3000 } }
+	 *            The agent's address node, containing "ip", "port", "rank" (kept by {@link AnnounceReceivedList} for the ping schedule). <br>
+	 *            For example: { "ip": "3.24.138.198", "port": "5001", "measure_port": "5002", "rank": "99", "download": { "20000": 3000 }, "upload": {
+	 *            "20000": 3000 }, "download_duration": { "2000": 1000 } }
 	 * 
 	 * @throws MalformedURLException
 	 *             If the address or port are missing or malformed.
 	 */
 	public AnnounceReceivedItem(String regionName, JsonNode agentNode) throws MalformedURLException {
+		this(parseTarget(agentNode), regionName, parseMeasurePort(agentNode), agentNode);
+	}
+
+	/**
+	 * @param target
+	 *            The agent's IP and port, already parsed by {@link #parseTarget(JsonNode)}.
+	 * @param measurePort
+	 *            The agent's measurement server port, already parsed by {@link #parseMeasurePort(JsonNode)}.
+	 */
+	AnnounceReceivedItem(long target, String regionName, int measurePort, JsonNode agentNode) {
+		this.target = target;
 		this.regionName = regionName;
+		this.measurePort = measurePort;
 
-		// Get IPv4 and use it only if format is IP, to prevent resolving
-		// The use of path and asText means that we never get null or exception
-		String ipStr = agentNode.path("ip").asText();
-		if (!isIPv4Address(ipStr))
-			throw new MalformedURLException("Not IPv4");
+		// Downloads and uploads (optional)
+		downloads = parseSizesAndTimeouts(agentNode.get("download"));
+		uploads = parseSizesAndTimeouts(agentNode.get("upload"));
+		downloadDurations = parseSizesAndTimeouts(agentNode.get("download_duration"));
+		downloadPlans = buildDownloadPlans();
+	}
 
-		int port = agentNode.path("port").asInt();
-		if (ipStr.isEmpty() || port <= 0 || port > 65535)
-			throw new MalformedURLException("Missing port number");
+	/**
+	 * Item restored from {@link AnnounceCache}, with the downloads already parsed.
+	 * 
+	 * @param downloads
+	 *            Size in bytes and timeout in millis. Can be null.
+	 * @param uploads
+	 *            Size in bytes and timeout in millis. Can be null.
+	 * @param downloadDurations
+	 *            Duration in millis and extra timeout in millis. Can be null.
+	 */
+	AnnounceReceivedItem(long target, String regionName, int measurePort, HashMap<Integer, Integer> downloads,
+			HashMap<Integer, Integer> uploads, HashMap<Integer, Integer> downloadDurations) {
+		this.target = target;
+		this.regionName = regionName;
+		this.measurePort = measurePort;
+		this.downloads = downloads;
+		this.uploads = uploads;
+		this.downloadDurations = downloadDurations;
+		downloadPlans = buildDownloadPlans();
+	}
 
-		InetAddress addr = null;
-		try {
-			addr = InetAddress.getByName(ipStr);
-		} catch (UnknownHostException e) {
-			throw new MalformedURLException("Unknown host");
+	private ArrayList<DownloadPlan> buildDownloadPlans() {
+		ArrayList<DownloadPlan> result = new ArrayList<DownloadPlan>();
+		InetSocketAddress ipAndPort = getIpAndPort();
+		InetSocketAddress connectAddress = measurePort > 0 ? TargetTable.toSocketAddress(target, measurePort)
+				: ipAndPort;
+		addDownloadPlans(result, ipAndPort, connectAddress, downloads, DownloadKey.KIND_DOWNLOAD);
+		addDownloadPlans(result, ipAndPort, connectAddress, uploads, DownloadKey.KIND_UPLOAD);
+		addDownloadPlans(result, ipAndPort, connectAddress, downloadDurations, DownloadKey.KIND_DURATION);
+		return result;
+	}
+
+	private void addDownloadPlans(ArrayList<DownloadPlan> plans, InetSocketAddress ipAndPort,
+			InetSocketAddress connectAddress, HashMap<Integer, Integer> sizesAndTimeouts, int kind) {
+		if (sizesAndTimeouts == null)
+			return;
+		for (Entry<Integer, Integer> entry : sizesAndTimeouts.entrySet()) {
+			plans.add(new DownloadPlan(ipAndPort, connectAddress, regionName, kind, entry.getKey(), entry.getValue()));
 		}
+	}
 
-		this.ipAndPort = new InetSocketAddress(addr, port);
-		if (this.ipAndPort.isUnresolved())
-			throw new MalformedURLException("Address not resolved");
-
-		// Downloads (optional)
-		JsonNode downloadsNode = agentNode.get("download");
-		if (downloadsNode != null) {
-			Iterator<Map.Entry<String, JsonNode>> iter = downloadsNode.fields();
-			while (iter.hasNext()) {
-				Map.Entry<String, JsonNode> entry = iter.next();
-				int size;
-				try {
-					size = Integer.parseInt(entry.getKey());
-				} catch (NumberFormatException e) {
-					continue;
-				}
-				if (size <= 0)
-					continue;
-				int timeoutMillis = entry.getValue().asInt();
-				if (timeoutMillis <= 0)
-					continue;
-				if (downloads == null)
-					downloads = new HashMap<Integer, Integer>();
-				downloads.put(size, timeoutMillis);
+	/**
+	 * @param sizesNode
+	 *            Object with size in bytes as key and complete transfer timeout in millis as value, for example { "20000": 3000 }. Can be null.
+	 * @return Null if missing or has no legal entries.
+	 */
+	private static HashMap<Integer, Integer> parseSizesAndTimeouts(JsonNode sizesNode) {
+		if (sizesNode == null)
+			return null;
+		HashMap<Integer, Integer> result = null;
+		Iterator<Map.Entry<String, JsonNode>> iter = sizesNode.fields();
+		while (iter.hasNext()) {
+			Map.Entry<String, JsonNode> entry = iter.next();
+			int size;
+			try {
+				size = Integer.parseInt(entry.getKey());
+			} catch (NumberFormatException e) {
+				continue;
 			}
+			if (size <= 0)
+				continue;
+			int timeoutMillis = entry.getValue().asInt();
+			if (timeoutMillis <= 0)
+				continue;
+			if (result == null)
+				result = new HashMap<Integer, Integer>();
+			result.put(size, timeoutMillis);
 		}
+		return result;
+	}
+
+	/**
+	 * Get the IPv4 and use it only if format is IP, to prevent resolving. The use of path and asText means that we never get null or exception.
+	 * 
+	 * @return The agent's IP and port packed as in {@link TargetTable}.
+	 * @throws MalformedURLException
+	 *             If the address or port are missing or malformed.
+	 */
+	static long parseTarget(JsonNode agentNode) throws MalformedURLException {
+		int port = agentNode.path("port").asInt();
+		if (port <= 0 || port > 65535)
+			throw new MalformedURLException("Missing port number");
+		long ip = TargetTable.parseIPv4(agentNode.path("ip").asText());
+		if (ip < 0)
+			throw new MalformedURLException("Not IPv4");
+		return TargetTable.pack((int) ip, port);
+	}
+
+	/**
+	 * @return The agent's measurement server port (optional), or zero if missing or malformed.
+	 */
+	static int parseMeasurePort(JsonNode agentNode) {
+		int result = agentNode.path("measure_port").asInt();
+		return result > 0 && result <= 65535 ? result : 0;
 	}
 
 	/**
-	 * @param input
-	 *            Candidate for IPv4, without leading or trailing spaces. Can be null (false).
-	 * @return True of the format seems like an IPv4.
+	 * @return The agent's rank (optional), where higher is more important, or zero if missing or malformed.
 	 */
-	private static boolean isIPv4Address(final String input) {
-		// Sanity check
-		if (input == null)
-			return false;
+	static int parseRank(JsonNode agentNode) {
+		return Math.max(0, agentNode.path("rank").asInt());
+	}
 
-		return IPV4_PATTERN.matcher(input).matches();
+	/**
+	 * @return True if the agent's node has any download or upload command, even if malformed.
+	 */
+	static boolean hasDownloadNodes(JsonNode agentNode) {
+		return agentNode.has("download") || agentNode.has("upload") || agentNode.has("download_duration");
 	}
 
 	/**
@@ -120,42 +211,75 @@ public class AnnounceReceivedItem {
 	 */
 	public ObjectNode asJson() {
 		ObjectNode result = JsonNodeFactory.instance.objectNode();
-		if (ipAndPort == null)
-			return result;
 
 		// IP and port
-		result.put("address", ipAndPort.toString().substring(1));
+		result.put("address", TargetTable.toString(target));
 		// Region name (informative only)
 		if (regionName != null && !regionName.isEmpty())
 			result.put("region", regionName);
-		// Downloads (optional)
-		if (this.hasDownloads()) {
-			ObjectNode downloadsNode = JsonNodeFactory.instance.objectNode();
-			for (Entry<Integer, Integer> entry : downloads.entrySet()) {
-				downloadsNode.put(entry.getKey().toString(), entry.getValue());
-			}
-			result.set("download", downloadsNode);
-		}
+		if (measurePort > 0)
+			result.put("measure_port", measurePort);
+		// Downloads and uploads (optional)
+		if (downloads != null && !downloads.isEmpty())
+			result.set("download", sizesAsJson(downloads));
+		if (uploads != null && !uploads.isEmpty())
+			result.set("upload", sizesAsJson(uploads));
+		if (downloadDurations != null && !downloadDurations.isEmpty())
+			result.set("download_duration", sizesAsJson(downloadDurations));
 
 		return result;
 	}
 
+	private static ObjectNode sizesAsJson(HashMap<Integer, Integer> sizes) {
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		for (Entry<Integer, Integer> entry : sizes.entrySet()) {
+			result.put(entry.getKey().toString(), entry.getValue());
+		}
+		return result;
+	}
+
 	@Override
 	public String toString() {
 		return asJson().toString();
 	}
 
 	/**
-	 * @return True if it has at least one download command.
+	 * @return True if it has at least one download or upload command.
 	 */
 	public boolean hasDownloads() {
-		return downloads != null && !downloads.isEmpty();
+		return (downloads != null && !downloads.isEmpty()) || (uploads != null && !uploads.isEmpty())
+				|| (downloadDurations != null && !downloadDurations.isEmpty());
+	}
+
+	/**
+	 * @return Downloads, uploads and duration-bounded downloads to perform, with their timeouts and encoded requests. Empty if none.
+	 */
+	public ArrayList<DownloadPlan> getDownloadPlans() {
+		return downloadPlans;
 	}
 
 	public HashMap<Integer, Integer> getDownloads() {
 		return downloads;
 	}
 
+	/**
+	 * @return Where to connect for downloads and uploads: the measurement server if the agent has one, or the agent's port otherwise.
+	 */
+	public InetSocketAddress getMeasureAddress() {
+		return TargetTable.toSocketAddress(target, measurePort > 0 ? measurePort : TargetTable.getPort(target));
+	}
+
+	public HashMap<Integer, Integer> getUploads() {
+		return uploads;
+	}
+
+	/**
+	 * @return Duration-bounded downloads: streaming duration in millis and extra timeout in millis. Can be null.
+	 */
+	public HashMap<Integer, Integer> getDownloadDurations() {
+		return downloadDurations;
+	}
+
 	public String getRegionName() {
 		return regionName;
 	}
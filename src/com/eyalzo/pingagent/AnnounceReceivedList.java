@@ -3,14 +3,17 @@ package com.eyalzo.pingagent;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import java.net.InetSocketAddress;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 
 /**
  * List of items to ping and/or download.
@@ -26,32 +29,87 @@ public class AnnounceReceivedList {
 	 */
 	private long updateTime = System.currentTimeMillis();
 	/**
-	 * Addresses (IP+port) along with the region name (informative).
+	 * Addresses (IP+port) along with the region name (informative) and the downloads to perform.
 	 */
-	private Map<InetSocketAddress, AnnounceReceivedItem> addresses = new HashMap<>();
+	private final TargetTable addresses;
 
 	/**
 	 * @param clientsNode
 	 *            The json node that contains object with regions, each region with a object under "agents". Can be null for tests.
 	 */
 	public AnnounceReceivedList(JsonNode clientsNode) {
+		addresses = new TargetTable();
 		addAll(clientsNode);
 	}
 
+	/**
+	 * Empty list, to be filled by {@link #addAddress(String, JsonNode)}.
+	 */
+	AnnounceReceivedList() {
+		addresses = new TargetTable();
+	}
+
+	/**
+	 * Empty list with room for the given number of addresses.
+	 */
+	private AnnounceReceivedList(int expectedSize) {
+		addresses = new TargetTable(expectedSize);
+	}
+
+	/**
+	 * Copy of another list, to apply a diff to without changing a list that may be in use.
+	 */
+	public AnnounceReceivedList(AnnounceReceivedList base) {
+		synchronized (base.addresses) {
+			addresses = new TargetTable(base.addresses);
+		}
+	}
+
+	/**
+	 * Remove an agent, as part of an incremental announce.
+	 * 
+	 * @param agentNode
+	 *            The agent's node, with "ip" and "port". For example: { "ip": "3.24.138.198", "port": 5001 }
+	 * @return True if the agent was found and removed.
+	 */
+	boolean removeAddress(JsonNode agentNode) {
+		long target;
+		try {
+			target = AnnounceReceivedItem.parseTarget(agentNode);
+		} catch (MalformedURLException e) {
+			return false;
+		}
+		synchronized (addresses) {
+			return addresses.remove(target);
+		}
+	}
+
 	public int size() {
 		synchronized (addresses) {
 			return addresses.size();
 		}
 	}
 
+	/**
+	 * @param target
+	 *            IP and port, packed as in {@link TargetTable}.
+	 * @return The target's region name, or null if not in the list or has no region.
+	 */
+	public String getRegionName(long target) {
+		synchronized (addresses) {
+			int slot = addresses.find(target);
+			return slot < 0 ? null : addresses.getRegionName(slot);
+		}
+	}
+
 	/**
 	 * @return Number of addresses with at least one download command.
 	 */
 	public int getDownloadsCount() {
 		int result = 0;
 		synchronized (addresses) {
-			for (AnnounceReceivedItem curItem : addresses.values()) {
-				if (curItem.hasDownloads())
+			for (int slot = 0; slot < addresses.getCapacity(); slot++) {
+				if (addresses.getItem(slot) != null)
 					result++;
 			}
 		}
@@ -76,7 +134,7 @@ public class AnnounceReceivedList {
 			String regionName = entry.getKey();
 			// Region records with "agents" node
 			JsonNode regionNode = entry.getValue();
-			JsonNode regionAgentsNode = regionNode.get("agents");
+			JsonNode regionAgentsNode = regionNode.path("agents");
 			Iterator<JsonNode> iterAgents = regionAgentsNode.elements();
 			while (iterAgents.hasNext()) {
 				JsonNode agentNode = iterAgents.next();
@@ -94,28 +152,54 @@ public class AnnounceReceivedList {
 	 * @param regionName
 	 *            Informative region name as "provider\region".
 	 * @param agentNode
-	 *            The agent's node, containing "ip", "port", "rank" (not used at the moment). <br>
+	 *            The agent's node, containing "ip", "port", "rank" (priority for the ping schedule). <br>
 	 *            For example: { "ip": "3.24.138.198", "port": "5001", "rank": "99", "download": { "20000": 3000 } }
 	 * @return True if item was added and is new (per IP and port).
 	 */
 	boolean addAddress(String regionName, JsonNode agentNode) {
-		AnnounceReceivedItem item;
+		long target;
 		try {
-			item = new AnnounceReceivedItem(regionName, agentNode);
+			target = AnnounceReceivedItem.parseTarget(agentNode);
 		} catch (MalformedURLException e) {
 			return false;
 		}
+		int measurePort = AnnounceReceivedItem.parseMeasurePort(agentNode);
+		int rank = AnnounceReceivedItem.parseRank(agentNode);
+
+		// Most agents are only pinged, so an item is kept only for the ones with downloads
+		AnnounceReceivedItem item = null;
+		if (AnnounceReceivedItem.hasDownloadNodes(agentNode)) {
+			item = new AnnounceReceivedItem(target, regionName, measurePort, agentNode);
+			if (!item.hasDownloads())
+				item = null;
+		}
 
 		synchronized (addresses) {
-			return addresses.put(item.getIpAndPort(), item) == null;
+			return addresses.put(target, regionName, measurePort, rank, item);
 		}
 	}
 
 	public ArrayNode getAddressesAsJson() {
 		ArrayNode result = JsonNodeFactory.instance.arrayNode();
 		synchronized (addresses) {
-			for (Entry<InetSocketAddress, AnnounceReceivedItem> entry : addresses.entrySet()) {
-				result.add(entry.getValue().asJson());
+			for (int slot = 0; slot < addresses.getCapacity(); slot++) {
+				long target = addresses.getTarget(slot);
+				if (target == 0)
+					continue;
+				AnnounceReceivedItem item = addresses.getItem(slot);
+				if (item != null) {
+					result.add(item.asJson());
+					continue;
+				}
+				ObjectNode itemNode = result.addObject();
+				itemNode.put("address", TargetTable.toString(target));
+				String regionName = addresses.getRegionName(slot);
+				if (regionName != null && !regionName.isEmpty())
+					itemNode.put("region", regionName);
+				if (addresses.getMeasurePort(slot) > 0)
+					itemNode.put("measure_port", addresses.getMeasurePort(slot));
+				if (addresses.getRank(slot) > 0)
+					itemNode.put("rank", addresses.getRank(slot));
 			}
 		}
 
@@ -127,9 +211,21 @@ public class AnnounceReceivedList {
 		return getAddressesAsJson().toString();
 	}
 
-	public Set<InetSocketAddress> getAddresses() {
+	/**
+	 * @return All the addresses (IP+port), packed as in {@link TargetTable}. A new array.
+	 */
+	public long[] getTargets() {
+		synchronized (addresses) {
+			return addresses.getTargets();
+		}
+	}
+
+	/**
+	 * @return Rank of each address, in the same order as {@link #getTargets()}, because the list is not modified once in use. A new array.
+	 */
+	public int[] getRanks() {
 		synchronized (addresses) {
-			return addresses.keySet();
+			return addresses.getRanks();
 		}
 	}
 
@@ -141,16 +237,119 @@ public class AnnounceReceivedList {
 	}
 
 	/**
-	 * @param downloadCommand
-	 *            What to add to the IP and port of the agent in order to download. For example "/download?size=".
-	 * @return Couples of full URLs with download timeout for each.
+	 * Write the list in a compact binary format, to be read by {@link #readFrom(DataInputStream)}: the region names once, and then per address
+	 * the packed IP and port, region index, measurement port, rank and the download sizes and timeouts.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		synchronized (addresses) {
+			// Region names first, so each address refers to its region by index
+			HashMap<String, Integer> regionIndexes = new HashMap<String, Integer>();
+			ArrayList<String> regionNames = new ArrayList<String>();
+			for (int slot = 0; slot < addresses.getCapacity(); slot++) {
+				String regionName = addresses.getRegionName(slot);
+				if (addresses.getTarget(slot) != 0 && regionName != null && !regionIndexes.containsKey(regionName)) {
+					regionIndexes.put(regionName, regionNames.size());
+					regionNames.add(regionName);
+				}
+			}
+			out.writeInt(regionNames.size());
+			for (String regionName : regionNames)
+				out.writeUTF(regionName);
+
+			out.writeInt(addresses.size());
+			for (int slot = 0; slot < addresses.getCapacity(); slot++) {
+				long target = addresses.getTarget(slot);
+				if (target == 0)
+					continue;
+				String regionName = addresses.getRegionName(slot);
+				out.writeLong(target);
+				out.writeInt(regionName == null ? -1 : regionIndexes.get(regionName));
+				out.writeChar(addresses.getMeasurePort(slot));
+				out.writeInt(addresses.getRank(slot));
+				AnnounceReceivedItem item = addresses.getItem(slot);
+				out.writeBoolean(item != null);
+				if (item == null)
+					continue;
+				writeSizesAndTimeouts(out, item.getDownloads());
+				writeSizesAndTimeouts(out, item.getUploads());
+				writeSizesAndTimeouts(out, item.getDownloadDurations());
+			}
+		}
+	}
+
+	private static void writeSizesAndTimeouts(DataOutputStream out, HashMap<Integer, Integer> sizesAndTimeouts)
+			throws IOException {
+		if (sizesAndTimeouts == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(sizesAndTimeouts.size());
+		for (Entry<Integer, Integer> entry : sizesAndTimeouts.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	/**
+	 * @return A new list, as written by {@link #writeTo(DataOutputStream)}.
+	 * @throws IOException
+	 *             If failed to read, or the content is malformed.
+	 */
+	static AnnounceReceivedList readFrom(DataInputStream in) throws IOException {
+		int regionsCount = in.readInt();
+		if (regionsCount < 0)
+			throw new IOException("Bad regions count");
+		String[] regionNames = new String[regionsCount];
+		for (int i = 0; i < regionsCount; i++)
+			regionNames[i] = in.readUTF();
+
+		int addressesCount = in.readInt();
+		if (addressesCount < 0)
+			throw new IOException("Bad addresses count");
+		AnnounceReceivedList result = new AnnounceReceivedList(addressesCount);
+		for (int i = 0; i < addressesCount; i++) {
+			long target = in.readLong();
+			int regionIndex = in.readInt();
+			int measurePort = in.readChar();
+			int rank = in.readInt();
+			if (target <= 0 || TargetTable.getPort(target) == 0 || regionIndex >= regionsCount)
+				throw new IOException("Bad address");
+			String regionName = regionIndex < 0 ? null : regionNames[regionIndex];
+			AnnounceReceivedItem item = null;
+			if (in.readBoolean()) {
+				item = new AnnounceReceivedItem(target, regionName, measurePort, readSizesAndTimeouts(in),
+						readSizesAndTimeouts(in), readSizesAndTimeouts(in));
+			}
+			result.addresses.put(target, regionName, measurePort, rank, item);
+		}
+		return result;
+	}
+
+	private static HashMap<Integer, Integer> readSizesAndTimeouts(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			throw new IOException("Bad sizes count");
+		if (count == 0)
+			return null;
+		HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+		for (int i = 0; i < count; i++)
+			result.put(in.readInt(), in.readInt());
+		return result;
+	}
+
+	/**
+	 * @param warmCount
+	 *            Number of warm downloads to perform after the cold one, on the same connection.
+	 * @return Download and upload series, per agent and size.
 	 */
-	public DownloadList getDownloadsAsNewDownloadList(String downloadCommand) {
+	public DownloadList getDownloadsAsNewDownloadList(int warmCount) {
 		// HashMap<URL, Integer> result = new HashMap<URL, Integer>();
 		DownloadList result = new DownloadList();
 		synchronized (addresses) {
-			for (AnnounceReceivedItem curItem : addresses.values()) {
-				result.add(curItem, downloadCommand);
+			for (int slot = 0; slot < addresses.getCapacity(); slot++) {
+				AnnounceReceivedItem curItem = addresses.getItem(slot);
+				if (curItem != null)
+					result.add(curItem, warmCount);
 			}
 		}
 		return result;
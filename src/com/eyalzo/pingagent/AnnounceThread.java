@@ -1,11 +1,16 @@
 package com.eyalzo.pingagent;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -18,103 +23,353 @@ import java.util.concurrent.locks.ReentrantLock;
  * <li>Configuration updates related to announce, ping, download etc.
  * </ol>
  * Upon the reception of the response, the mentioned items are being pushed to the relevant threads and the configuration.
+ * <p>
+ * The announce is incremental: the agent sends the version of its current list (ETag as If-None-Match, and "list_version" as a parameter), and
+ * the server responds with "not modified" (304), a diff under "clients_diff" to apply to the current list, or a full list under
+ * "clients_to_ping". The response may be compressed with gzip.
+ * <p>
+ * The interval is randomized a bit, and a failed announce is retried with {@link Backoff}, honoring Retry-After, so the fleet does not hit the
+ * server in synchronized spikes.
  * 
  * @author Eyal Zohar
  */
 public class AnnounceThread extends LoopThread {
-	private static final ObjectMapper objectMapper = new ObjectMapper();
 	private static final int LOOP_SECONDS = 5 * 60;
+	/**
+	 * Random deviation of the announce interval, so agents that started together do not announce together.
+	 */
+	private static final int INTERVAL_JITTER_PERCENT = 10;
+	/**
+	 * Maximal random delay of the first announce, when a cached list is already in use.
+	 */
+	private static final long FIRST_ANNOUNCE_SPREAD_MILLIS = 30 * 1000;
+	/**
+	 * Retry after a failure: fast first, and then doubled up to the default interval.
+	 */
+	private final Backoff backoff = new Backoff(5 * 1000, LOOP_SECONDS * 1000);
+	//
+	// Phases of a loop
+	//
+	private static final int PHASE_REQUEST = 0;
+	private static final int PHASE_PARSE = 1;
+	private static final int PHASE_APPLY = 2;
+	private static final int PHASE_CACHE_SAVE = 3;
+	private static final String[] PHASE_NAMES = { "request", "parse", "apply", "cache_save" };
+	//
+	// Metrics
+	//
+	private static final String METRIC_ANNOUNCES_HELP = "Announces by response type, or error.";
+	private static final MetricsRegistry.Counter metricFull = MetricsRegistry.DEFAULT.counter("announces_total",
+			METRIC_ANNOUNCES_HELP, "type", "full");
+	private static final MetricsRegistry.Counter metricDiff = MetricsRegistry.DEFAULT.counter("announces_total",
+			METRIC_ANNOUNCES_HELP, "type", "diff");
+	private static final MetricsRegistry.Counter metricNotModified = MetricsRegistry.DEFAULT.counter("announces_total",
+			METRIC_ANNOUNCES_HELP, "type", "not_modified");
+	private static final MetricsRegistry.Counter metricError = MetricsRegistry.DEFAULT.counter("announces_total",
+			METRIC_ANNOUNCES_HELP, "type", "error");
+	private static final MetricsRegistry.Counter metricBytes = MetricsRegistry.DEFAULT.counter(
+			"announce_response_bytes_total", "Bytes of announce responses on the wire, before decompression.");
+	/**
+	 * Number of targets in the list in use, for the metrics.
+	 */
+	private volatile int statTargetsCount;
+	/**
+	 * Retry-After of the last failed announce, or zero if none.
+	 */
+	private long statLastRetryAfterMillis;
 	private final long startTime = System.currentTimeMillis();
 	private final String announceUrlBase;
 	/**
 	 * The last address list received from the server. It always contains a complete filled list (except for the null on start), so there is no need to lock
 	 * anything. Informative only.
 	 */
-	private AnnounceReceivedList addrLastReceivedList;
+	private volatile AnnounceReceivedList addrLastReceivedList;
 	private ReentrantLock lock = new ReentrantLock();
 	private final Config config;
+	/**
+	 * Version of the current list as received in the last full or diff response, to be sent on the next announce. Null if none.
+	 */
+	private String listVersion;
+	/**
+	 * ETag of the last full or diff response, to be sent as If-None-Match on the next announce. Null if none.
+	 */
+	private String etag;
 	private String statLastUrl;
-	private int statLastResponseLinesCount = 0;
+	private int statLastResponseStatus;
+	/**
+	 * Bytes received on the wire, before decompression.
+	 */
+	private long statLastResponseBytes;
+	/**
+	 * Type of the last response: "full", "diff" or "not_modified".
+	 */
+	private String statLastResponseType = "";
+	private long statFullCount;
+	private long statDiffCount;
+	private long statNotModifiedCount;
+	private int statLastDiffChanges;
+	private int statLastResponseAgentsCount;
+	private long statLastParseMicro;
 	private int statLastResponseRegionsCount = 0;
 	private String statLastResponseParseError = "";
 	private final PingThread pingThread;
 	private final DownloadThread downloadThread;
 	private boolean statLastListSetAsActive;
+	/**
+	 * The last valid announce on disk, or null if not kept.
+	 */
+	private final AnnounceCache announceCache;
+	/**
+	 * True while the list in use came from the cache, and not from the server.
+	 */
+	private boolean statListFromCache;
 
 	/**
 	 * @param announceUrlBase
 	 *            Base URL for the announce. Can add more HTTP parameters later.
-	 * @param addrToPingList
-	 *            Addresses to ping. Empty at first, and filled up and cleaned by this announce thread.
+	 * @param announceCache
+	 *            The last valid announce on disk, to load on start and update on every new list. Can be null.
 	 */
 	public AnnounceThread(final String announceUrlBase, PingThread pingThread, DownloadThread downloadThread,
-			Config config) {
-		super("Announce", LOOP_SECONDS * 1000);
+			Config config, AnnounceCache announceCache) {
+		super("Announce", LOOP_SECONDS * 1000, PHASE_NAMES);
+		MetricsRegistry.DEFAULT.gauge("announce_targets", "Targets in the list in use.", () -> statTargetsCount);
 		this.announceUrlBase = announceUrlBase;
 		this.pingThread = pingThread;
 		this.downloadThread = downloadThread;
 		this.config = config;
+		this.announceCache = announceCache;
+	}
+
+	/**
+	 * Use the cached announce, if not too old, as if it was just received. To be called before the threads start, so pings and downloads start
+	 * right away.
+	 * 
+	 * @return True if the cached list is in use.
+	 */
+	public boolean loadCache() {
+		if (announceCache == null || !announceCache.load())
+			return false;
+
+		config.setFromJson(announceCache.getConfigNode());
+		AnnounceReceivedList receivedAddrList = announceCache.getReceivedList();
+		// The cached version, so the first announce can be incremental
+		listVersion = announceCache.getListVersion();
+		etag = announceCache.getEtag();
+
+		setListToMeasure(receivedAddrList, announceCache.getExpiryTime());
+		lock.lock();
+		try {
+			addrLastReceivedList = receivedAddrList;
+			statTargetsCount = receivedAddrList.size();
+		} finally {
+			lock.unlock();
+		}
+		statListFromCache = true;
+		loopIntervalMillis = config.getAnnounceIntervalSec() * 1000;
+		return true;
+	}
+
+	/**
+	 * Set the ping thread's addresses and the download thread's downloads, for the next time each of them runs. The download list is consumed by a
+	 * single download round, so it is set again on every announce, including one that was not modified.
+	 * 
+	 * @param validUntil
+	 *            When the addresses become too old to be pinged, unless set again.
+	 */
+	private void setListToMeasure(AnnounceReceivedList receivedAddrList, long validUntil) {
+		pingThread.setAddressesToPing(receivedAddrList.getTargets(), receivedAddrList.getRanks(), validUntil);
+		statLastListSetAsActive = downloadThread.setDownloadList(
+				receivedAddrList.getDownloadsAsNewDownloadList(config.getDownloadWarmCount()));
+	}
+
+	/**
+	 * @param target
+	 *            IP and port, packed as in {@link TargetTable}.
+	 * @return The target's region name in the last received list, or null if unknown.
+	 */
+	public String getRegionName(long target) {
+		AnnounceReceivedList receivedList = addrLastReceivedList;
+		return receivedList == null ? null : receivedList.getRegionName(target);
 	}
 
 	@Override
 	public boolean runLoop() {
+		statLastRetryAfterMillis = 0;
+		boolean success = announce();
+		metricBytes.add(statLastResponseBytes);
+		if (!success)
+			metricError.inc();
+		else if (statLastResponseType.equals("full"))
+			metricFull.inc();
+		else if (statLastResponseType.equals("diff"))
+			metricDiff.inc();
+		else
+			metricNotModified.inc();
+		if (success) {
+			backoff.onSuccess();
+			// Agents that started together drift apart
+			setIntervalOnce(Backoff.jitter(loopIntervalMillis, INTERVAL_JITTER_PERCENT));
+		} else {
+			setIntervalOnce(backoff.onFailure(statLastRetryAfterMillis));
+		}
+		return success;
+	}
+
+	/**
+	 * Perform the announce and use the response.
+	 * 
+	 * @return True if got a valid response, including "not modified".
+	 */
+	private boolean announce() {
 		// Reset statistics
-		statLastResponseLinesCount = 0;
+		beginPhase(PHASE_REQUEST);
+		statLastResponseBytes = 0;
 		statLastResponseRegionsCount = 0;
+		statLastResponseAgentsCount = 0;
+		statLastResponseType = "";
 
 		statLastUrl = this.announceUrlBase + "&announce_count=" + this.getLoopsCount() + "&runtime_sec="
 				+ (System.currentTimeMillis() - this.startTime) / 1000;
-		LinkedList<String> textLines = HttpUtils.readUrlTextLines(statLastUrl, null);
-		if (textLines == null || textLines.isEmpty()) {
+		// The version of the list we have, so the server can send a diff
+		if (listVersion != null) {
+			try {
+				statLastUrl += "&list_version=" + URLEncoder.encode(listVersion, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+			}
+		}
+		URL url;
+		try {
+			url = new URL(statLastUrl);
+		} catch (MalformedURLException e) {
+			statLastResponseParseError = "Malformed URL";
 			return false;
 		}
-		// Count lines (for debug)
-		statLastResponseLinesCount = textLines.size();
 
 		//
-		// Parse the response
+		// Send the request, conditional if there is a list already, and read the response
 		//
-		StringBuffer buffer = new StringBuffer();
-		for (String curLine : textLines) {
-			buffer.append(curLine);
+		HttpURLConnection connection = HttpUtils.sendHttpRequest(url, HttpUtils.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+				HttpUtils.DEFAULT_READ_TIMEOUT_MILLIS, "gzip", addrLastReceivedList == null ? null : etag, null);
+		if (connection == null) {
+			statLastResponseParseError = "Failed to connect";
+			return false;
 		}
-		JsonNode readTree = null;
+		AnnounceParser announceParser = new AnnounceParser(addrLastReceivedList);
+		String responseEtag;
 		try {
-			readTree = objectMapper.readTree(buffer.toString());
+			statLastResponseStatus = connection.getResponseCode();
+			// Nothing changed since the last announce, including the configuration
+			if (statLastResponseStatus == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				if (addrLastReceivedList == null) {
+					resetListVersion();
+					statLastResponseParseError = "Not modified without a list";
+					return false;
+				}
+				statLastResponseType = "not_modified";
+				statNotModifiedCount++;
+				statLastResponseParseError = "";
+				// The list is still valid, so it is measured again, like a new one
+				setListToMeasure(addrLastReceivedList, System.currentTimeMillis() + PingThread.ADDRESSES_TTL_MILLIS);
+				updateInterval();
+				return true;
+			}
+			if (statLastResponseStatus != HttpURLConnection.HTTP_OK) {
+				statLastResponseParseError = "HTTP status " + statLastResponseStatus;
+				// Normally with 429 or 503
+				statLastRetryAfterMillis = HttpUtils.parseRetryAfterMillis(connection.getHeaderField("Retry-After"));
+				return false;
+			}
+			beginPhase(PHASE_PARSE);
+			responseEtag = connection.getHeaderField("ETag");
+			CountingInputStream countingStream = new CountingInputStream(connection.getInputStream());
+			InputStream in = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+					? new GZIPInputStream(countingStream)
+					: countingStream;
+			// Straight from the socket, one agent at a time
+			long before = System.nanoTime();
+			announceParser.parse(in);
+			statLastParseMicro = (System.nanoTime() - before) / 1000;
+			statLastResponseBytes = countingStream.count;
 		} catch (IOException e) {
+			// A diff that cannot be applied, or a broken response, so ask for a full list next time
+			resetListVersion();
 			statLastResponseParseError = e.getMessage();
+			return false;
+		} finally {
+			connection.disconnect();
 		}
 
 		// Update config
-		config.setFromJson(readTree.path("agent_configuration"));
+		beginPhase(PHASE_APPLY);
+		if (announceParser.getConfigNode() != null)
+			config.setFromJson(announceParser.getConfigNode());
 
-		JsonNode clientsNode = readTree.get("clients_to_ping");
-		if (clientsNode == null) {
+		//
+		// Full list or a diff applied to a copy of the current list
+		//
+		AnnounceReceivedList receivedAddrList = announceParser.getReceivedList();
+		if (receivedAddrList == null) {
 			statLastResponseParseError = "No clients node";
 			return false;
 		}
-
-		statLastResponseRegionsCount = clientsNode.size();
+		statLastResponseRegionsCount = announceParser.getRegionsCount();
+		statLastResponseAgentsCount = announceParser.getAgentsCount();
+		if (announceParser.isDiff()) {
+			// The diff must be based on the list we have, or the next announce should ask for a full list
+			String baseVersion = announceParser.getBaseVersion();
+			if (baseVersion != null && !baseVersion.equals(listVersion) && !baseVersion.equals(etag)) {
+				resetListVersion();
+				statLastResponseParseError = "Diff does not match the current list";
+				return false;
+			}
+			statLastDiffChanges = announceParser.getDiffChanges();
+			statLastResponseType = "diff";
+			statDiffCount++;
+		} else {
+			statLastResponseType = "full";
+			statFullCount++;
+		}
 		statLastResponseParseError = "";
 
-		// Now add the json addresses to the list
-		AnnounceReceivedList receivedAddrList = new AnnounceReceivedList(clientsNode);
-
-		// Set the ping thread's addresses for next time it pings
-		pingThread.setAddressesToPing(receivedAddrList.getAddresses());
+		// The new version, for the next announce
+		listVersion = announceParser.getListVersion();
+		etag = responseEtag;
 
-		// Set the ping thread's addresses for next time it pings
-		statLastListSetAsActive = downloadThread.setDownloadList(receivedAddrList.getDownloadsAsNewDownloadList("/download?size="));
+		setListToMeasure(receivedAddrList, System.currentTimeMillis() + PingThread.ADDRESSES_TTL_MILLIS);
 
 		// Only now we can safely use it, because until now it could be in use
 		lock.lock();
 		try {
 			addrLastReceivedList = receivedAddrList;
+			statTargetsCount = receivedAddrList.size();
 		} finally {
 			lock.unlock();
 		}
+		statListFromCache = false;
 
-		// Update loop interval by config that might have been changed
+		// For the next start, or when the server is unreachable
+		beginPhase(PHASE_CACHE_SAVE);
+		if (announceCache != null)
+			announceCache.save(receivedAddrList, config.getAllAsJson(), listVersion, etag);
+
+		updateInterval();
+
+		return true;
+	}
+
+	/**
+	 * Forget the list version, so the next announce gets a full list.
+	 */
+	private void resetListVersion() {
+		listVersion = null;
+		etag = null;
+	}
+
+	/**
+	 * Update loop interval by config that might have been changed.
+	 */
+	private void updateInterval() {
 		if (config.getAnnounceIntervalSec() > 0) {
 			long intervalMillis = config.getAnnounceIntervalSec() * 1000;
 			// From next on
@@ -122,12 +377,42 @@ public class AnnounceThread extends LoopThread {
 			// For this round
 			setIntervalOnce(intervalMillis);
 		}
+	}
 
-		return true;
+	/**
+	 * Counts the bytes read from the wire, before decompression.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if (result >= 0)
+				count++;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int result = super.read(b, off, len);
+			if (result > 0)
+				count += result;
+			return result;
+		}
 	}
 
 	@Override
 	public boolean runFirstTime() {
+		// With a cached list there is no hurry, so spread the first announce of agents that started together
+		if (statListFromCache) {
+			setIntervalOnce(Backoff.spread(Math.min(loopIntervalMillis, FIRST_ANNOUNCE_SPREAD_MILLIS)));
+			return true;
+		}
 		return runLoop();
 	}
 
@@ -140,10 +425,25 @@ public class AnnounceThread extends LoopThread {
 		ObjectNode result = super.getStatisticsAsJson();
 		ObjectNode node = result.putObject("server_response");
 		node.put("url", statLastUrl);
-		node.put("lines_count", statLastResponseLinesCount);
+		node.put("status", statLastResponseStatus);
+		node.put("type", statLastResponseType);
+		node.put("bytes", statLastResponseBytes);
+		node.put("list_version", listVersion);
+		node.put("etag", etag);
+		node.put("full_count", statFullCount);
+		node.put("diff_count", statDiffCount);
+		node.put("not_modified_count", statNotModifiedCount);
+		node.put("last_diff_changes", statLastDiffChanges);
 		node.put("parse_error", statLastResponseParseError);
 		node.put("regions_count", statLastResponseRegionsCount);
+		node.put("agents_count", statLastResponseAgentsCount);
+		node.put("parse_us", statLastParseMicro);
 		node.put("last_addr_list_set_as_active", statLastListSetAsActive);
+		node.put("list_from_cache", statListFromCache);
+		result.set("backoff", backoff.getStatisticsAsJson());
+		result.set("config", config.getSnapshot().getStatisticsAsJson());
+		if (announceCache != null)
+			result.set("cache", announceCache.getStatisticsAsJson());
 		lock.lock();
 		try {
 			if (addrLastReceivedList != null) {
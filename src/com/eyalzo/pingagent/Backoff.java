@@ -0,0 +1,111 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Capped exponential backoff with jitter, for calls to the central server.
+ * <p>
+ * The first retry comes fast, because most failures are transient, and each further failure doubles the delay up to a cap. The actual delay is
+ * randomized between half and all of it, so agents that failed together do not retry together. A Retry-After hint of the server is honored, even
+ * when longer than the cap, up to {@value #MAX_RETRY_AFTER_MILLIS} millis.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class Backoff {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	/**
+	 * Longest Retry-After to honor, in case the server sends nonsense.
+	 */
+	private static final long MAX_RETRY_AFTER_MILLIS = 60 * 60 * 1000;
+	private final long firstDelayMillis;
+	private final long maxDelayMillis;
+	private int consecutiveFailures;
+
+	//
+	// Statistics
+	//
+	private long statFailures;
+	private long statLastDelayMillis;
+	private long statLastRetryAfterMillis;
+
+	/**
+	 * @param firstDelayMillis
+	 *            Delay after the first failure, before jitter.
+	 * @param maxDelayMillis
+	 *            Maximal delay, before jitter and unless the server asks for more.
+	 */
+	public Backoff(long firstDelayMillis, long maxDelayMillis) {
+		this.firstDelayMillis = Math.max(1, firstDelayMillis);
+		this.maxDelayMillis = Math.max(this.firstDelayMillis, maxDelayMillis);
+	}
+
+	/**
+	 * Count a failure.
+	 *
+	 * @param retryAfterMillis
+	 *            The server's Retry-After hint, or zero (or negative) if none.
+	 * @return How long to wait before the next attempt.
+	 */
+	public synchronized long onFailure(long retryAfterMillis) {
+		long delay = firstDelayMillis << Math.min(consecutiveFailures, 30);
+		delay = Math.min(maxDelayMillis, delay);
+		// Between half and all of it
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		if (retryAfterMillis > 0) {
+			statLastRetryAfterMillis = retryAfterMillis;
+			delay = Math.max(delay, Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS));
+		}
+		consecutiveFailures++;
+		statFailures++;
+		statLastDelayMillis = delay;
+		return delay;
+	}
+
+	/**
+	 * Count a success, so the next failure gets a fast retry again.
+	 */
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @param intervalMillis
+	 *            Regular interval.
+	 * @param percent
+	 *            Maximal deviation, in percents of the interval.
+	 * @return The interval, randomly shorter or longer by up to the given percent, so agents that started together drift apart.
+	 */
+	public static long jitter(long intervalMillis, int percent) {
+		long range = intervalMillis * percent / 100;
+		if (range <= 0)
+			return intervalMillis;
+		return intervalMillis - range + ThreadLocalRandom.current().nextLong(2 * range + 1);
+	}
+
+	/**
+	 * @return Random delay between zero and the given maximum.
+	 */
+	public static long spread(long maxMillis) {
+		return maxMillis <= 0 ? 0 : ThreadLocalRandom.current().nextLong(maxMillis + 1);
+	}
+
+	public synchronized ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("first_delay_ms", firstDelayMillis);
+		result.put("max_delay_ms", maxDelayMillis);
+		result.put("consecutive_failures", consecutiveFailures);
+		result.put("failures", statFailures);
+		result.put("last_delay_ms", statLastDelayMillis);
+		result.put("last_retry_after_ms", statLastRetryAfterMillis);
+		return result;
+	}
+}
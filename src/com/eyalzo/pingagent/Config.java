@@ -4,7 +4,21 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-public class Config {
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Configuration received from the announce.
+ * <p>
+ * The values are kept in an immutable {@link Snapshot}, replaced as a whole with a new version whenever the announce changes a value. Reads take
+ * no lock, and a loop that reads the snapshot once per round gets consistent values for the whole round. Registered listeners are told about
+ * every new version right away, so for example a loop can be re-armed by a new interval without waiting for the round that was planned by the
+ * old one.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class Config implements ConfigMBean {
 	private static JsonNodeFactory factory = JsonNodeFactory.instance;
 
 	/**
@@ -17,83 +31,338 @@ public class Config {
 	private static final int DEFAULT_PING_EXECUTERS = 20;
 	private static final int DEFAULT_DOWNLOAD_EXECUTERS = 10;
 	private static final int DEFAULT_ANNOUNCE_INTERVAL_SEC = 58;
-	private int pingTimeoutMs;
-	private int downloadTimeoutMs;
-	private int pingIntervalSec;
-	private int downloadIntervalSec;
-	private int downloadExecuters;
-	private int pingExecuters;
-	private int announceIntervalSec;
+	/**
+	 * Warm downloads to perform on the same connection, after the cold download of each agent and size.
+	 */
+	private static final int DEFAULT_DOWNLOAD_WARM_COUNT = 2;
+	/**
+	 * Download governor limits. The global limit defaults to the number of download executers, and the bandwidth budget to unlimited.
+	 */
+	private static final int DEFAULT_DOWNLOAD_MAX_PER_PEER = 1;
+	private static final int DEFAULT_DOWNLOAD_MAX_PER_REGION = 3;
+	/**
+	 * The values in effect. Replaced as a whole, under the instance lock.
+	 */
+	private volatile Snapshot current = new Snapshot();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
 
-	public synchronized int getPingTimeoutMs() {
-		return pingTimeoutMs > 0 ? pingTimeoutMs : DEFAULT_PING_TIMEOUT_MS;
+	/**
+	 * Told about every new version of the configuration.
+	 */
+	public interface Listener {
+		/**
+		 * Called by the thread that changed the configuration (normally the announce), right after the change, so it must be quick.
+		 *
+		 * @param previous
+		 *            The version that was replaced.
+		 * @param current
+		 *            The new version, now in effect.
+		 */
+		void configChanged(Snapshot previous, Snapshot current);
 	}
 
-	public synchronized int getDownloadTimeoutMs() {
-		return downloadTimeoutMs > 0 ? downloadTimeoutMs : DEFAULT_DOWNLOAD_TIMEOUT_MS;
+	/**
+	 * The values received so far, where zero means not set. Immutable.
+	 */
+	public static final class Snapshot {
+		/**
+		 * Increments on every change, starting with zero before any value was received.
+		 */
+		private final long version;
+		private final long updateTime;
+		private final int pingTimeoutMs;
+		private final int downloadTimeoutMs;
+		private final int pingIntervalSec;
+		private final int downloadIntervalSec;
+		private final int downloadExecuters;
+		private final int pingExecuters;
+		private final int announceIntervalSec;
+		/**
+		 * Negative means not set, because zero is a legal value (cold downloads only).
+		 */
+		private final int downloadWarmCount;
+		private final int downloadMaxConcurrent;
+		private final int downloadMaxPerPeer;
+		private final int downloadMaxPerRegion;
+		private final int downloadMaxKbps;
+		/**
+		 * Maximal number of targets to ping in a round, by rank, or zero to ping all of them.
+		 */
+		private final int pingBudgetPerRound;
+
+		private Snapshot() {
+			version = 0;
+			updateTime = 0;
+			pingTimeoutMs = 0;
+			downloadTimeoutMs = 0;
+			pingIntervalSec = 0;
+			downloadIntervalSec = 0;
+			downloadExecuters = 0;
+			pingExecuters = 0;
+			announceIntervalSec = 0;
+			downloadWarmCount = -1;
+			downloadMaxConcurrent = 0;
+			downloadMaxPerPeer = 0;
+			downloadMaxPerRegion = 0;
+			downloadMaxKbps = 0;
+			pingBudgetPerRound = 0;
+		}
+
+		/**
+		 * A copy of the given snapshot with the values set in the given json, as the next version.
+		 */
+		private Snapshot(Snapshot base, JsonNode configNode) {
+			version = base.version + 1;
+			updateTime = System.currentTimeMillis();
+			pingTimeoutMs = positive(configNode, "ping_timeout_ms", base.pingTimeoutMs);
+			pingIntervalSec = positive(configNode, "ping_interval_sec", base.pingIntervalSec);
+			downloadTimeoutMs = positive(configNode, "download_timeout_ms", base.downloadTimeoutMs);
+			downloadIntervalSec = positive(configNode, "download_interval_sec", base.downloadIntervalSec);
+			downloadExecuters = positive(configNode, "download_executers", base.downloadExecuters);
+			pingExecuters = positive(configNode, "ping_executers", base.pingExecuters);
+			announceIntervalSec = positive(configNode, "announce_interval_sec", base.announceIntervalSec);
+			downloadWarmCount = nonNegative(configNode, "download_warm_count", base.downloadWarmCount);
+			downloadMaxConcurrent = positive(configNode, "download_max_concurrent", base.downloadMaxConcurrent);
+			downloadMaxPerPeer = positive(configNode, "download_max_per_peer", base.downloadMaxPerPeer);
+			downloadMaxPerRegion = positive(configNode, "download_max_per_region", base.downloadMaxPerRegion);
+			// Zero is a legal value (unlimited)
+			downloadMaxKbps = nonNegative(configNode, "download_max_kbps", base.downloadMaxKbps);
+			// Zero is a legal value (all targets)
+			pingBudgetPerRound = nonNegative(configNode, "ping_budget_per_round", base.pingBudgetPerRound);
+		}
+
+		private static int positive(JsonNode configNode, String name, int baseValue) {
+			int temp = configNode.path(name).asInt();
+			return temp > 0 ? temp : baseValue;
+		}
+
+		private static int nonNegative(JsonNode configNode, String name, int baseValue) {
+			int temp = configNode.path(name).asInt(-1);
+			return temp >= 0 ? temp : baseValue;
+		}
+
+		private boolean sameValues(Snapshot other) {
+			return pingTimeoutMs == other.pingTimeoutMs && downloadTimeoutMs == other.downloadTimeoutMs
+					&& pingIntervalSec == other.pingIntervalSec && downloadIntervalSec == other.downloadIntervalSec
+					&& downloadExecuters == other.downloadExecuters && pingExecuters == other.pingExecuters
+					&& announceIntervalSec == other.announceIntervalSec && downloadWarmCount == other.downloadWarmCount
+					&& downloadMaxConcurrent == other.downloadMaxConcurrent
+					&& downloadMaxPerPeer == other.downloadMaxPerPeer
+					&& downloadMaxPerRegion == other.downloadMaxPerRegion && downloadMaxKbps == other.downloadMaxKbps
+					&& pingBudgetPerRound == other.pingBudgetPerRound;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public int getPingTimeoutMs() {
+			return pingTimeoutMs > 0 ? pingTimeoutMs : DEFAULT_PING_TIMEOUT_MS;
+		}
+
+		public int getDownloadTimeoutMs() {
+			return downloadTimeoutMs > 0 ? downloadTimeoutMs : DEFAULT_DOWNLOAD_TIMEOUT_MS;
+		}
+
+		public int getPingIntervalSec() {
+			return pingIntervalSec > 0 ? pingIntervalSec : DEFAULT_PING_INTERVAL_SEC;
+		}
+
+		public int getDownloadIntervalSec() {
+			return downloadIntervalSec > 0 ? downloadIntervalSec : DEFAULT_DOWNLOAD_INTERVAL_SEC;
+		}
+
+		public int getDownloadExecuters() {
+			return downloadExecuters > 0 ? downloadExecuters : DEFAULT_DOWNLOAD_EXECUTERS;
+		}
+
+		public int getPingExecuters() {
+			return pingExecuters > 0 ? pingExecuters : DEFAULT_PING_EXECUTERS;
+		}
+
+		public int getAnnounceIntervalSec() {
+			return announceIntervalSec > 0 ? announceIntervalSec : DEFAULT_ANNOUNCE_INTERVAL_SEC;
+		}
+
+		public int getDownloadWarmCount() {
+			return downloadWarmCount >= 0 ? downloadWarmCount : DEFAULT_DOWNLOAD_WARM_COUNT;
+		}
+
+		public int getDownloadMaxConcurrent() {
+			return downloadMaxConcurrent > 0 ? downloadMaxConcurrent : getDownloadExecuters();
+		}
+
+		public int getDownloadMaxPerPeer() {
+			return downloadMaxPerPeer > 0 ? downloadMaxPerPeer : DEFAULT_DOWNLOAD_MAX_PER_PEER;
+		}
+
+		public int getDownloadMaxPerRegion() {
+			return downloadMaxPerRegion > 0 ? downloadMaxPerRegion : DEFAULT_DOWNLOAD_MAX_PER_REGION;
+		}
+
+		/**
+		 * @return Aggregate download bandwidth budget in kbps, or zero if unlimited.
+		 */
+		public int getDownloadMaxKbps() {
+			return downloadMaxKbps;
+		}
+
+		/**
+		 * @return Maximal number of targets to ping in a round, chosen by rank (see {@link ProbeScheduler}), or zero to ping all of them.
+		 */
+		public int getPingBudgetPerRound() {
+			return pingBudgetPerRound;
+		}
+
+		/**
+		 * @return The values received so far, where zero means not set. Can be restored with {@link Config#setFromJson(JsonNode)}.
+		 */
+		public ObjectNode getAllAsJson() {
+			ObjectNode result = factory.objectNode();
+			result.put("ping_timeout_ms", pingTimeoutMs);
+			result.put("ping_interval_sec", pingIntervalSec);
+			result.put("download_timeout_ms", downloadTimeoutMs);
+			result.put("download_interval_sec", downloadIntervalSec);
+			result.put("download_executers", downloadExecuters);
+			result.put("ping_executers", pingExecuters);
+			result.put("announce_interval_sec", announceIntervalSec);
+			result.put("download_warm_count", downloadWarmCount);
+			result.put("download_max_concurrent", downloadMaxConcurrent);
+			result.put("download_max_per_peer", downloadMaxPerPeer);
+			result.put("download_max_per_region", downloadMaxPerRegion);
+			result.put("download_max_kbps", downloadMaxKbps);
+			result.put("ping_budget_per_round", pingBudgetPerRound);
+
+			return result;
+		}
+
+		/**
+		 * @return The values in effect, including the defaults of the values that were not set, with the version.
+		 */
+		public ObjectNode getStatisticsAsJson() {
+			ObjectNode result = factory.objectNode();
+			result.put("version", version);
+			LocalConfig.addTimeNodes(result, "update_time", updateTime);
+			result.put("ping_timeout_ms", getPingTimeoutMs());
+			result.put("ping_interval_sec", getPingIntervalSec());
+			result.put("ping_executers", getPingExecuters());
+			result.put("ping_budget_per_round", getPingBudgetPerRound());
+			result.put("download_timeout_ms", getDownloadTimeoutMs());
+			result.put("download_interval_sec", getDownloadIntervalSec());
+			result.put("download_executers", getDownloadExecuters());
+			result.put("download_warm_count", getDownloadWarmCount());
+			result.put("download_max_concurrent", getDownloadMaxConcurrent());
+			result.put("download_max_per_peer", getDownloadMaxPerPeer());
+			result.put("download_max_per_region", getDownloadMaxPerRegion());
+			result.put("download_max_kbps", getDownloadMaxKbps());
+			result.put("announce_interval_sec", getAnnounceIntervalSec());
+			return result;
+		}
 	}
 
-	public synchronized int getPingIntervalSec() {
-		return pingIntervalSec > 0 ? pingIntervalSec : DEFAULT_PING_INTERVAL_SEC;
+	/**
+	 * @return The values in effect. Read it once and use it for a whole round, to get values of the same version.
+	 */
+	public Snapshot getSnapshot() {
+		return current;
 	}
 
-	public synchronized int getDownloadIntervalSec() {
-		return downloadIntervalSec > 0 ? downloadIntervalSec : DEFAULT_DOWNLOAD_INTERVAL_SEC;
+	/**
+	 * @param listener
+	 *            Told about every new version from now on.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
 	}
 
-	public synchronized int getDownloadExecuters() {
-		return downloadExecuters > 0 ? downloadExecuters : DEFAULT_DOWNLOAD_EXECUTERS;
+	public int getPingTimeoutMs() {
+		return current.getPingTimeoutMs();
 	}
 
-	public synchronized int getPingExecuters() {
-		return pingExecuters > 0 ? pingExecuters : DEFAULT_PING_EXECUTERS;
+	public int getDownloadTimeoutMs() {
+		return current.getDownloadTimeoutMs();
 	}
 
-	public synchronized int getAnnounceIntervalSec() {
-		return announceIntervalSec > 0 ? announceIntervalSec : DEFAULT_ANNOUNCE_INTERVAL_SEC;
+	public int getPingIntervalSec() {
+		return current.getPingIntervalSec();
 	}
 
-	public synchronized void setFromJson(JsonNode configNode) {
-		if (configNode == null)
-			return;
+	public int getDownloadIntervalSec() {
+		return current.getDownloadIntervalSec();
+	}
 
-		int temp = configNode.path("ping_timeout_ms").asInt();
-		if (temp > 0)
-			this.pingTimeoutMs = temp;
+	public int getDownloadExecuters() {
+		return current.getDownloadExecuters();
+	}
 
-		temp = configNode.path("ping_interval_sec").asInt();
-		if (temp > 0)
-			this.pingIntervalSec = temp;
+	public int getPingExecuters() {
+		return current.getPingExecuters();
+	}
 
-		temp = configNode.path("download_timeout_ms").asInt();
-		if (temp > 0)
-			this.downloadTimeoutMs = temp;
+	public int getAnnounceIntervalSec() {
+		return current.getAnnounceIntervalSec();
+	}
+
+	public int getDownloadWarmCount() {
+		return current.getDownloadWarmCount();
+	}
 
-		temp = configNode.path("download_interval_sec").asInt();
-		if (temp > 0)
-			this.downloadIntervalSec = temp;
+	public int getDownloadMaxConcurrent() {
+		return current.getDownloadMaxConcurrent();
+	}
 
-		temp = configNode.path("download_executers").asInt();
-		if (temp > 0)
-			this.downloadExecuters = temp;
+	public int getDownloadMaxPerPeer() {
+		return current.getDownloadMaxPerPeer();
+	}
 
-		temp = configNode.path("ping_executers").asInt();
-		if (temp > 0)
-			this.pingExecuters = temp;
+	public int getDownloadMaxPerRegion() {
+		return current.getDownloadMaxPerRegion();
+	}
 
-		temp = configNode.path("announce_interval_sec").asInt();
-		if (temp > 0)
-			this.announceIntervalSec = temp;
+	/**
+	 * @return Aggregate download bandwidth budget in kbps, or zero if unlimited.
+	 */
+	public int getDownloadMaxKbps() {
+		return current.getDownloadMaxKbps();
 	}
 
+	/**
+	 * @return Maximal number of targets to ping in a round, chosen by rank (see {@link ProbeScheduler}), or zero to ping all of them.
+	 */
+	public int getPingBudgetPerRound() {
+		return current.getPingBudgetPerRound();
+	}
+
+	/**
+	 * Apply the values that are set in the given json, and publish them as a new version if any of them changed.
+	 *
+	 * @param configNode
+	 *            The configuration part of the announce. Can be null.
+	 */
+	public synchronized void setFromJson(JsonNode configNode) {
+		if (configNode == null)
+			return;
+
+		Snapshot previous = current;
+		Snapshot next = new Snapshot(previous, configNode);
+		if (next.sameValues(previous))
+			return;
+		current = next;
+
+		for (Listener listener : listeners) {
+			try {
+				listener.configChanged(previous, next);
+			} catch (RuntimeException e) {
+				// A listener must not fail the announce that changed the configuration
+				System.out.println("Config listener failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return The values received so far, where zero means not set. Can be restored with {@link #setFromJson(JsonNode)}.
+	 */
 	public ObjectNode getAllAsJson() {
-		ObjectNode result = factory.objectNode();
-		result.put("ping_timeout_ms", pingTimeoutMs);
-		result.put("ping_interval_sec", pingIntervalSec);
-		result.put("download_timeout_ms", downloadTimeoutMs);
-		result.put("download_interval_sec", downloadIntervalSec);
-		result.put("announce_interval_sec", announceIntervalSec);
-
-		return result;
+		return current.getAllAsJson();
 	}
 }
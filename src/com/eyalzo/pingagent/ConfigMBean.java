@@ -0,0 +1,34 @@
+package com.eyalzo.pingagent;
+
+/**
+ * The configuration received from the announce, with the defaults where not set, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface ConfigMBean {
+	int getPingTimeoutMs();
+
+	int getDownloadTimeoutMs();
+
+	int getPingIntervalSec();
+
+	int getDownloadIntervalSec();
+
+	int getDownloadExecuters();
+
+	int getPingExecuters();
+
+	int getAnnounceIntervalSec();
+
+	int getDownloadWarmCount();
+
+	int getDownloadMaxConcurrent();
+
+	int getDownloadMaxPerPeer();
+
+	int getDownloadMaxPerRegion();
+
+	int getDownloadMaxKbps();
+
+	int getPingBudgetPerRound();
+}
@@ -0,0 +1,437 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent HTTP/1.1 connection to a single peer agent, used to download (or upload) several times over the same TCP connection.
+ * <p>
+ * The first download on a new connection is "cold", paying for the 3-way handshake and TCP slow-start. The following downloads on the same
+ * connection are "warm", and show the path's real throughput. {@link java.net.HttpURLConnection} hides the connection reuse in a global cache,
+ * so it cannot tell which download was cold and which was warm. This is why a plain socket is used here.
+ * <p>
+ * Not thread safe. Each connection is used by a single download executer at a time.
+ *
+ * @author Eyal Zohar
+ */
+public class DownloadConnection implements Closeable {
+	private static final int READ_BUFFER_SIZE = 100000;
+	private static final int MAX_HEADER_LINE_LENGTH = 8192;
+	/**
+	 * Upload response is a small json, so anything larger is an error.
+	 */
+	private static final int MAX_UPLOAD_RESPONSE_LENGTH = 4096;
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	/**
+	 * Random content to upload, shared by all connections because it is read only.
+	 */
+	private static final byte[] uploadBuffer = new byte[64 * 1024];
+	static {
+		new Random().nextBytes(uploadBuffer);
+	}
+	/**
+	 * Closes the socket of an upload that passed its deadline. A blocking socket write has no timeout and cannot be interrupted, so a peer that
+	 * stops reading would otherwise hold the download executer forever.
+	 */
+	private static final ScheduledThreadPoolExecutor writeWatchdog = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread thread = new Thread(r, "UploadWatchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		writeWatchdog.setRemoveOnCancelPolicy(true);
+	}
+	private final InetSocketAddress ipAndPort;
+	private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	/**
+	 * True if the last response allows another request on the same connection.
+	 */
+	private boolean reusable;
+	/**
+	 * Number of requests completed on the current connection.
+	 */
+	private int requestsCount;
+
+	public DownloadConnection(InetSocketAddress ipAndPort) {
+		this.ipAndPort = ipAndPort;
+	}
+
+	/**
+	 * @return True if connected and the last response allows another request on the same connection.
+	 */
+	public boolean isReusable() {
+		return socket != null && reusable && !socket.isClosed();
+	}
+
+	/**
+	 * @return Number of requests completed on the current connection.
+	 */
+	public int getRequestsCount() {
+		return requestsCount;
+	}
+
+	/**
+	 * Download to null (or upload from memory), on a new connection if the current one cannot be reused. Times are saved inside the download result
+	 * object.
+	 *
+	 * @param downloadResult
+	 *            Holds the download details such as path and size, and receives the times and downloaded size.
+	 * @param timeoutMillis
+	 *            The maximum time allowed for connecting (if needed) and reading the data in milliseconds. Must be positive. A duration-bounded download
+	 *            gets its duration on top of it.
+	 * @param permit
+	 *            Optional governor permit, to consume the bandwidth budget while reading. Can be null.
+	 * @return An {@link Exception} if an error occurred, or null if the download completed successfully.
+	 */
+	public Exception download(DownloadResult downloadResult, int timeoutMillis, DownloadGovernor.Permit permit) {
+		if (timeoutMillis <= 0)
+			return new IllegalArgumentException("Timeout must be positive");
+
+		long deadline = System.nanoTime() + (timeoutMillis + (long) downloadResult.durationMillis) * 1000000L;
+
+		// Connect only if needed, meaning 3-way handshake
+		downloadResult.startConnectTime = System.nanoTime();
+		if (!isReusable()) {
+			// A warm download must run on an existing connection, or it is not warm anymore
+			if (downloadResult.warm) {
+				close();
+				return new IOException("Connection not reusable");
+			}
+			close();
+			try {
+				connect(timeoutMillis);
+			} catch (IOException e) {
+				close();
+				return e;
+			}
+		}
+		downloadResult.startDownloadTime = System.nanoTime();
+
+		// Send the request and read the response to null
+		reusable = false;
+		downloadResult.sizeDownloaded = 0;
+		try {
+			out.write(downloadResult.getRequestBytes());
+			if (downloadResult.upload)
+				writeUploadBody(downloadResult, deadline, permit);
+			out.flush();
+			readResponse(downloadResult, deadline, permit);
+		} catch (IOException | TimeoutException e) {
+			close();
+			return e;
+		}
+
+		requestsCount++;
+
+		// Duration-bounded download has no expected size, but must have some
+		if (downloadResult.durationMillis > 0) {
+			if (downloadResult.sizeDownloaded <= 0) {
+				close();
+				return new Exception("Empty download");
+			}
+		} else if (downloadResult.sizeDownloaded != downloadResult.sizeToDownload) {
+			close();
+			return new Exception(downloadResult.upload ? "Partial upload" : "Partial download");
+		}
+
+		downloadResult.endDownloadTime = System.nanoTime();
+
+		return null;
+	}
+
+	private void connect(int timeoutMillis) throws IOException {
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(ipAndPort, timeoutMillis);
+		in = new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE);
+		out = socket.getOutputStream();
+		requestsCount = 0;
+	}
+
+	/**
+	 * Send the upload body from memory. The sent size is saved in {@link DownloadResult#sizeDownloaded} only after the peer confirms it.
+	 * <p>
+	 * The socket is closed by a watchdog at the deadline, so a write that blocks because the peer stopped reading ends on time.
+	 */
+	private void writeUploadBody(DownloadResult downloadResult, long deadline, DownloadGovernor.Permit permit)
+			throws IOException, TimeoutException {
+		Socket uploadSocket = socket;
+		AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> watchdog = writeWatchdog.schedule(() -> {
+			expired.set(true);
+			try {
+				uploadSocket.close();
+			} catch (IOException e) {
+			}
+		}, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		try {
+			long remaining = downloadResult.sizeToDownload;
+			while (remaining > 0) {
+				if (System.nanoTime() > deadline)
+					throw new TimeoutException("Upload timeout");
+				int writeBytes = (int) Math.min(uploadBuffer.length, remaining);
+				out.write(uploadBuffer, 0, writeBytes);
+				remaining -= writeBytes;
+				if (permit != null)
+					permit.consume(writeBytes, downloadResult);
+			}
+		} catch (IOException e) {
+			if (expired.get())
+				throw new TimeoutException("Upload timeout");
+			throw e;
+		} finally {
+			watchdog.cancel(false);
+		}
+	}
+
+	/**
+	 * Read status line, headers and body of a response with a fixed content length, or a chunked one for duration-bounded downloads.
+	 * <p>
+	 * Download body is read to null and counted. Upload response is a small json with the bytes received by the peer, and the time it took.
+	 */
+	private void readResponse(DownloadResult downloadResult, long deadline, DownloadGovernor.Permit permit)
+			throws IOException, TimeoutException {
+		setReadTimeout(deadline);
+		String statusLine = readLine();
+		if (statusLine == null)
+			throw new IOException("Connection closed before response");
+		// For example "HTTP/1.1 200 OK"
+		String[] split = statusLine.split(" ", 3);
+		if (split.length < 2 || !split[0].startsWith("HTTP/1."))
+			throw new IOException("Bad status line");
+		if (!split[1].equals("200"))
+			throw new IOException("HTTP status " + split[1]);
+		boolean keepAlive = split[0].equals("HTTP/1.1");
+
+		// Headers
+		long contentLength = -1;
+		boolean chunked = false;
+		while (true) {
+			String line = readLine();
+			if (line == null)
+				throw new IOException("Connection closed in headers");
+			if (line.isEmpty())
+				break;
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad content length");
+				}
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.equalsIgnoreCase("chunked");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				if (value.equalsIgnoreCase("close"))
+					keepAlive = false;
+				else if (value.equalsIgnoreCase("keep-alive"))
+					keepAlive = true;
+			}
+		}
+		// Older peers ignore the duration and send the default size
+		if (downloadResult.durationMillis > 0 && !chunked)
+			throw new IOException("Peer does not support duration");
+		if (chunked) {
+			readChunkedBody(downloadResult, deadline, permit);
+			reusable = keepAlive;
+			return;
+		}
+		if (contentLength < 0)
+			throw new IOException("Missing content length");
+
+		if (downloadResult.upload) {
+			readUploadResponse(downloadResult, contentLength);
+			reusable = keepAlive;
+			return;
+		}
+
+		// Body, to null
+		long remaining = contentLength;
+		while (remaining > 0) {
+			setReadTimeout(deadline);
+			int readBytes = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (readBytes < 0)
+				break;
+			remaining -= readBytes;
+			downloadResult.sizeDownloaded += readBytes;
+			if (permit != null)
+				permit.consume(readBytes, downloadResult);
+		}
+
+		reusable = keepAlive && remaining == 0;
+	}
+
+	/**
+	 * Read a chunked body to null, until the last (empty) chunk and the trailers.
+	 */
+	private void readChunkedBody(DownloadResult downloadResult, long deadline, DownloadGovernor.Permit permit)
+			throws IOException, TimeoutException {
+		while (true) {
+			setReadTimeout(deadline);
+			String sizeLine = readLine();
+			if (sizeLine == null)
+				throw new IOException("Connection closed in chunk size");
+			// Chunk extensions are ignored
+			int semicolon = sizeLine.indexOf(';');
+			if (semicolon >= 0)
+				sizeLine = sizeLine.substring(0, semicolon);
+			long remaining;
+			try {
+				remaining = Long.parseLong(sizeLine.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad chunk size");
+			}
+			if (remaining < 0)
+				throw new IOException("Bad chunk size");
+
+			// Last chunk, followed by optional trailers and an empty line
+			if (remaining == 0) {
+				while (true) {
+					String line = readLine();
+					if (line == null)
+						throw new IOException("Connection closed in trailers");
+					if (line.isEmpty())
+						return;
+				}
+			}
+
+			while (remaining > 0) {
+				setReadTimeout(deadline);
+				int readBytes = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (readBytes < 0)
+					throw new IOException("Connection closed in chunk");
+				remaining -= readBytes;
+				downloadResult.sizeDownloaded += readBytes;
+				if (permit != null)
+					permit.consume(readBytes, downloadResult);
+			}
+
+			// The CRLF after the chunk data
+			String line = readLine();
+			if (line == null || !line.isEmpty())
+				throw new IOException("Bad chunk end");
+		}
+	}
+
+	/**
+	 * Read the upload response body, for example {"received_bytes":20000,"server_us":1520}.
+	 */
+	private void readUploadResponse(DownloadResult downloadResult, long contentLength) throws IOException {
+		if (contentLength > MAX_UPLOAD_RESPONSE_LENGTH)
+			throw new IOException("Upload response too long");
+		byte[] body = new byte[(int) contentLength];
+		int offset = 0;
+		while (offset < body.length) {
+			int readBytes = in.read(body, offset, body.length - offset);
+			if (readBytes < 0)
+				throw new IOException("Connection closed in upload response");
+			offset += readBytes;
+		}
+		JsonNode responseNode = objectMapper.readTree(body);
+		downloadResult.sizeDownloaded = responseNode.path("received_bytes").asLong();
+		downloadResult.serverMicro = responseNode.path("server_us").asInt();
+	}
+
+	/**
+	 * Set the socket read timeout to the time left until the deadline.
+	 *
+	 * @throws TimeoutException
+	 *             If there is no time left.
+	 */
+	private void setReadTimeout(long deadline) throws TimeoutException, IOException {
+		long remainingMillis = (deadline - System.nanoTime()) / 1000000;
+		if (remainingMillis <= 0)
+			throw new TimeoutException("Download timeout");
+		socket.setSoTimeout((int) remainingMillis);
+	}
+
+	/**
+	 * @return Header line without the CRLF, or null if the connection was closed before any byte was read.
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int c = in.read();
+			if (c < 0)
+				return line.length() == 0 ? null : line.toString();
+			if (c == '\n')
+				break;
+			if (c != '\r')
+				line.append((char) c);
+			if (line.length() > MAX_HEADER_LINE_LENGTH)
+				throw new IOException("Header line too long");
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Build an HTTP/1.1 GET request that keeps the connection alive.
+	 *
+	 * @param ipAndPort
+	 *            The peer's address, for the host header.
+	 * @param path
+	 *            Path and query, for example "/download?size=20000".
+	 * @return Request as bytes, ready to be sent.
+	 */
+	static byte[] buildGetRequest(InetSocketAddress ipAndPort, String path) {
+		String request = "GET " + path + " HTTP/1.1\r\nHost: " + ipAndPort.getAddress().getHostAddress() + ":"
+				+ ipAndPort.getPort() + "\r\nUser-Agent: " + HttpUtils.DEFAULT_USER_AGENT
+				+ "\r\nConnection: keep-alive\r\n\r\n";
+		return request.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Build an HTTP/1.1 POST request head that keeps the connection alive. The body should follow.
+	 *
+	 * @param ipAndPort
+	 *            The peer's address, for the host header.
+	 * @param path
+	 *            Path and query, for example "/upload?size=20000".
+	 * @param contentLength
+	 *            Size of the body that follows.
+	 * @return Request head as bytes, ready to be sent.
+	 */
+	static byte[] buildPostRequestHead(InetSocketAddress ipAndPort, String path, long contentLength) {
+		String request = "POST " + path + " HTTP/1.1\r\nHost: " + ipAndPort.getAddress().getHostAddress() + ":"
+				+ ipAndPort.getPort() + "\r\nUser-Agent: " + HttpUtils.DEFAULT_USER_AGENT
+				+ "\r\nContent-Type: application/octet-stream\r\nContent-Length: " + contentLength
+				+ "\r\nConnection: keep-alive\r\n\r\n";
+		return request.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Override
+	public void close() {
+		reusable = false;
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		socket = null;
+		in = null;
+		out = null;
+	}
+}
@@ -0,0 +1,249 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-generated random content for the download speed tests, served by the agent to other agents.
+ * <p>
+ * The content is written once to a file on tmpfs (when available) and memory-mapped, so serving does not generate random bytes or copy them through
+ * the heap. Downloads larger than the content wrap around it. When the target is a socket channel, {@link #transferTo(WritableByteChannel, long, long)}
+ * lets the kernel send the file pages directly (sendfile). This is how {@link MeasurementServer} serves downloads.
+ * <p>
+ * When the target is a plain output stream (the JDK HTTP server), the mapped file is not used, because an output stream takes arrays only and
+ * would copy the pages through the heap anyway. Instead, large chunks are written from a single read-only array with the first part of the
+ * content.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class DownloadContent {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	/**
+	 * Size of the random content. Larger downloads repeat it.
+	 */
+	private static final int CONTENT_SIZE = 4 * 1024 * 1024;
+	/**
+	 * Size of a single write when serving through an output stream.
+	 */
+	private static final int WRITE_CHUNK_SIZE = 256 * 1024;
+	/**
+	 * Where to create the content file, in order of preference. The first is tmpfs on Linux.
+	 */
+	private static final String[] CONTENT_DIRS = { "/dev/shm", System.getProperty("java.io.tmpdir") };
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	/**
+	 * The content file, or null if could not create one and the content is in a direct buffer instead.
+	 */
+	private final File file;
+	private final FileChannel fileChannel;
+	/**
+	 * Read only view of the content, memory-mapped from the file or direct.
+	 */
+	private final ByteBuffer content;
+	/**
+	 * Read only copy of the beginning of the content, for output streams.
+	 */
+	private final byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+
+	//
+	// Statistics
+	//
+	private final LongAdder statTransfers = new LongAdder();
+	private final LongAdder statBytesServed = new LongAdder();
+	private final LongAdder statCpuNanos = new LongAdder();
+
+	public DownloadContent() {
+		byte[] random = new byte[CONTENT_SIZE];
+		new Random().nextBytes(random);
+		System.arraycopy(random, 0, chunk, 0, chunk.length);
+
+		File tempFile = null;
+		FileChannel tempChannel = null;
+		ByteBuffer tempContent = null;
+		for (String curDir : CONTENT_DIRS) {
+			if (curDir == null || !new File(curDir).isDirectory())
+				continue;
+			RandomAccessFile raf = null;
+			try {
+				tempFile = File.createTempFile("ping_agent_content_", ".bin", new File(curDir));
+				tempFile.deleteOnExit();
+				// Kept open for the life of the agent, as the channel of the zero-copy downloads
+				raf = new RandomAccessFile(tempFile, "rw");
+				raf.write(random);
+				tempChannel = raf.getChannel();
+				tempContent = tempChannel.map(FileChannel.MapMode.READ_ONLY, 0, CONTENT_SIZE);
+				break;
+			} catch (IOException e) {
+				if (raf != null) {
+					try {
+						raf.close();
+					} catch (IOException e1) {
+					}
+				}
+				if (tempFile != null)
+					tempFile.delete();
+				tempFile = null;
+				tempChannel = null;
+			}
+		}
+
+		// Fallback to memory only, without sendfile
+		if (tempContent == null) {
+			tempContent = ByteBuffer.allocateDirect(CONTENT_SIZE);
+			tempContent.put(random);
+			tempContent.flip();
+		}
+
+		this.file = tempFile;
+		this.fileChannel = tempChannel;
+		this.content = tempContent.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write part of a download to a channel. Non-blocking channels may accept less than requested.
+	 *
+	 * @param target
+	 *            Where to write. Zero-copy if it is a socket channel and the content is in a file.
+	 * @param offset
+	 *            Bytes of the download already written, to continue the content from the right position.
+	 * @param count
+	 *            Bytes left to write.
+	 * @return Bytes written, possibly zero.
+	 */
+	public long transferTo(WritableByteChannel target, long offset, long count) throws IOException {
+		long result = 0;
+		while (count > 0) {
+			int position = (int) (offset % CONTENT_SIZE);
+			int length = (int) Math.min(count, CONTENT_SIZE - position);
+			long written;
+			if (fileChannel != null) {
+				written = fileChannel.transferTo(position, length, target);
+			} else {
+				ByteBuffer slice = content.duplicate();
+				slice.position(position).limit(position + length);
+				written = target.write(slice);
+			}
+			if (written <= 0)
+				break;
+			result += written;
+			offset += written;
+			count -= written;
+			// Partial write means the channel is full
+			if (written < length)
+				break;
+		}
+		return result;
+	}
+
+	/**
+	 * Write a complete download to a (blocking) output stream, in large chunks. Does not use the mapped file, as explained above.
+	 *
+	 * @param size
+	 *            Download size in bytes. Can be larger than the content.
+	 * @param ticket
+	 *            Charged with each chunk as it is written, to wait when over the bandwidth budget. Also counts the bytes written if the write
+	 *            fails. Can be null if not limited.
+	 */
+	public void writeTo(OutputStream out, long size, AdmissionControl.Ticket ticket) throws IOException {
+		for (long remaining = size; remaining > 0; remaining -= chunk.length) {
+			int length = (int) Math.min(chunk.length, remaining);
+			out.write(chunk, 0, length);
+			pace(ticket, length, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Write to a (blocking) output stream until a deadline, in large chunks.
+	 *
+	 * @param deadlineNanos
+	 *            When to stop writing, in nano time.
+	 * @param ticket
+	 *            Charged with each chunk as it is written, to wait when over the bandwidth budget. Also counts the bytes written if the write
+	 *            fails. Can be null if not limited.
+	 * @return Bytes written.
+	 * @throws IOException
+	 *             If the client closed the connection, which is a normal way to stop.
+	 */
+	public long writeUntil(OutputStream out, long deadlineNanos, AdmissionControl.Ticket ticket) throws IOException {
+		long result = 0;
+		while (System.nanoTime() < deadlineNanos) {
+			out.write(chunk);
+			result += chunk.length;
+			pace(ticket, chunk.length, deadlineNanos);
+		}
+		return result;
+	}
+
+	/**
+	 * Charge the bytes just written, and wait if over the bandwidth budget, but not beyond the deadline.
+	 */
+	private static void pace(AdmissionControl.Ticket ticket, long bytes, long deadlineNanos) throws IOException {
+		if (ticket == null)
+			return;
+		long waitNanos = Math.min(ticket.charge(bytes), deadlineNanos - System.nanoTime());
+		if (waitNanos <= 0)
+			return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while paced");
+		}
+	}
+
+	/**
+	 * @return Current thread's CPU time in nanos, to be used with {@link #recordServed(long, long)}. Zero if not supported.
+	 */
+	public static long getThreadCpuNanos() {
+		return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * Record a completed transfer, for bytes served per CPU second.
+	 *
+	 * @param bytes
+	 *            Bytes served.
+	 * @param cpuNanos
+	 *            CPU time it took to serve, in nanos.
+	 */
+	public void recordServed(long bytes, long cpuNanos) {
+		statTransfers.increment();
+		statBytesServed.add(bytes);
+		if (cpuNanos > 0)
+			statCpuNanos.add(cpuNanos);
+	}
+
+	public int getContentSize() {
+		return CONTENT_SIZE;
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("content_file", file == null ? "(memory)" : file.getAbsolutePath());
+		result.put("content_size", CONTENT_SIZE);
+		long bytes = statBytesServed.sum();
+		long cpuNanos = statCpuNanos.sum();
+		result.put("transfers", statTransfers.sum());
+		result.put("bytes_served", bytes);
+		result.put("cpu_ms", cpuNanos / 1000000);
+		if (cpuNanos > 0)
+			result.put("bytes_per_cpu_sec", (long) (bytes * 1000000000.0 / cpuNanos));
+		return result;
+	}
+}
@@ -0,0 +1,305 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Limits the concurrent downloads of a single round, globally, per agent and per region, and optionally enforces an aggregate bandwidth budget.
+ * <p>
+ * Downloads that contend with each other (and with the ping thread) on the agent's NIC give throughput numbers that cannot be trusted, so each
+ * download is tagged with the maximal concurrency it ran under.
+ * <p>
+ * Download series wait in the governor's queue, and not in executer threads, so a series that is blocked by its agent or region limit does not
+ * hold a thread while series of other regions could run. Whenever a slot is released, the first series in the queue that keeps all the limits is
+ * handed to the executor.
+ * <p>
+ * Thread safe. The bookkeeping is done under a single monitor, because the number of concurrent downloads is small (up to the number of download
+ * executers).
+ *
+ * @author Eyal Zohar
+ */
+public class DownloadGovernor {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private final int maxGlobal;
+	private final int maxPerPeer;
+	private final int maxPerRegion;
+	/**
+	 * Aggregate bandwidth budget in bytes per second, or zero if unlimited.
+	 */
+	private final long maxBytesPerSec;
+
+	//
+	// Current state, under this object's monitor
+	//
+	private int activeGlobal;
+	private final HashMap<InetSocketAddress, Integer> activePerPeer = new HashMap<>();
+	private final HashMap<String, Integer> activePerRegion = new HashMap<>();
+	private final HashSet<Permit> activePermits = new HashSet<>();
+	/**
+	 * Series waiting for a slot, in the order submitted.
+	 */
+	private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+	/**
+	 * Runs the series that got a slot. Null until {@link #start(Executor, int)}.
+	 */
+	private Executor executor;
+	/**
+	 * Threads of the executor, so a series gets a slot only when a thread is free to run it.
+	 */
+	private int executorThreads;
+	/**
+	 * When the bandwidth budget allows the next bytes to be read, in nano time.
+	 */
+	private long nextBudgetNanos;
+
+	//
+	// Statistics
+	//
+	private int statMaxGlobal;
+	private long statAcquired;
+	private long statAcquireTimeouts;
+	private long statWaitNanos;
+	private long statThrottleNanos;
+
+	/**
+	 * A series waiting for a slot.
+	 */
+	private static class Pending {
+		final InetSocketAddress ipAndPort;
+		final String regionName;
+		final Consumer<Permit> task;
+		final long submitNanos = System.nanoTime();
+
+		Pending(InetSocketAddress ipAndPort, String regionName, Consumer<Permit> task) {
+			this.ipAndPort = ipAndPort;
+			this.regionName = regionName;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * A granted slot for one download series. Keeps the maximal concurrency seen since the last {@link #startTransfer()}.
+	 */
+	public class Permit {
+		private final InetSocketAddress ipAndPort;
+		private final String regionName;
+		int maxGlobal;
+		int maxPeer;
+		int maxRegion;
+
+		private Permit(InetSocketAddress ipAndPort, String regionName) {
+			this.ipAndPort = ipAndPort;
+			this.regionName = regionName;
+		}
+
+		/**
+		 * Reset the maximal concurrency to the current one, before the next download of the series starts.
+		 */
+		public void startTransfer() {
+			synchronized (DownloadGovernor.this) {
+				maxGlobal = activeGlobal;
+				maxPeer = get(activePerPeer, ipAndPort);
+				maxRegion = get(activePerRegion, regionName);
+			}
+		}
+
+		/**
+		 * Tag the download result with the maximal concurrency seen since {@link #startTransfer()}.
+		 */
+		public void tag(DownloadResult downloadResult) {
+			synchronized (DownloadGovernor.this) {
+				downloadResult.concurrencyGlobal = maxGlobal;
+				downloadResult.concurrencyPeer = maxPeer;
+				downloadResult.concurrencyRegion = maxRegion;
+			}
+		}
+
+		/**
+		 * Consume the bandwidth budget, and sleep if it ran out.
+		 *
+		 * @param bytes
+		 *            Bytes that were just read.
+		 * @param downloadResult
+		 *            Receives the time spent throttled.
+		 */
+		public void consume(int bytes, DownloadResult downloadResult) {
+			long waitNanos = DownloadGovernor.this.consume(bytes);
+			if (waitNanos > 0)
+				downloadResult.throttleNanos += waitNanos;
+		}
+
+		public void release() {
+			DownloadGovernor.this.release(this);
+		}
+	}
+
+	/**
+	 * @param maxGlobal
+	 *            Maximal concurrent downloads of the agent.
+	 * @param maxPerPeer
+	 *            Maximal concurrent downloads from a single agent.
+	 * @param maxPerRegion
+	 *            Maximal concurrent downloads from agents of a single region.
+	 * @param maxKbps
+	 *            Aggregate bandwidth budget in kbps, or zero if unlimited.
+	 */
+	public DownloadGovernor(int maxGlobal, int maxPerPeer, int maxPerRegion, int maxKbps) {
+		this.maxGlobal = Math.max(1, maxGlobal);
+		this.maxPerPeer = Math.max(1, maxPerPeer);
+		this.maxPerRegion = Math.max(1, maxPerRegion);
+		this.maxBytesPerSec = maxKbps <= 0 ? 0 : maxKbps * 1000L / 8;
+	}
+
+	private static <K> int get(HashMap<K, Integer> map, K key) {
+		Integer value = map.get(key);
+		return value == null ? 0 : value;
+	}
+
+	private static <K> void add(HashMap<K, Integer> map, K key, int delta) {
+		int value = get(map, key) + delta;
+		if (value <= 0)
+			map.remove(key);
+		else
+			map.put(key, value);
+	}
+
+	/**
+	 * Queue a download series, to run on the executor when it gets a slot that keeps all the limits. The permit is released when the task returns.
+	 *
+	 * @param task
+	 *            Runs the series with the granted permit, on an executer thread.
+	 */
+	public synchronized void submit(InetSocketAddress ipAndPort, String regionName, Consumer<Permit> task) {
+		pending.add(new Pending(ipAndPort, regionName, task));
+		dispatch();
+	}
+
+	/**
+	 * Start handing the queued series to the executor, now and whenever a slot is released.
+	 *
+	 * @param threads
+	 *            Threads of the executor. No more series than that get a slot at the same time.
+	 */
+	public synchronized void start(Executor executor, int threads) {
+		this.executor = executor;
+		this.executorThreads = Math.max(1, threads);
+		dispatch();
+	}
+
+	/**
+	 * Give up on the series that are still waiting for a slot, for example when the round is over.
+	 *
+	 * @return Number of series that never got a slot.
+	 */
+	public synchronized int cancelPending() {
+		int result = pending.size();
+		statAcquireTimeouts += result;
+		long now = System.nanoTime();
+		for (Pending curPending : pending)
+			statWaitNanos += now - curPending.submitNanos;
+		pending.clear();
+		return result;
+	}
+
+	/**
+	 * Hand the first queued series that keep all the limits to the executor, as long as there are free slots. Under the monitor.
+	 */
+	private void dispatch() {
+		if (executor == null)
+			return;
+		Iterator<Pending> iter = pending.iterator();
+		while (iter.hasNext() && activeGlobal < Math.min(maxGlobal, executorThreads)) {
+			Pending curPending = iter.next();
+			if (get(activePerPeer, curPending.ipAndPort) >= maxPerPeer
+					|| get(activePerRegion, curPending.regionName) >= maxPerRegion)
+				continue;
+			iter.remove();
+			statWaitNanos += System.nanoTime() - curPending.submitNanos;
+			Permit permit = grant(curPending.ipAndPort, curPending.regionName);
+			executor.execute(() -> {
+				try {
+					curPending.task.accept(permit);
+				} finally {
+					permit.release();
+				}
+			});
+		}
+	}
+
+	private Permit grant(InetSocketAddress ipAndPort, String regionName) {
+		activeGlobal++;
+		add(activePerPeer, ipAndPort, 1);
+		add(activePerRegion, regionName, 1);
+		statAcquired++;
+		statMaxGlobal = Math.max(statMaxGlobal, activeGlobal);
+
+		Permit permit = new Permit(ipAndPort, regionName);
+		activePermits.add(permit);
+		// The others now run under a higher concurrency, including the new one
+		for (Permit curPermit : activePermits) {
+			curPermit.maxGlobal = Math.max(curPermit.maxGlobal, activeGlobal);
+			curPermit.maxPeer = Math.max(curPermit.maxPeer, get(activePerPeer, curPermit.ipAndPort));
+			curPermit.maxRegion = Math.max(curPermit.maxRegion, get(activePerRegion, curPermit.regionName));
+		}
+		return permit;
+	}
+
+	private synchronized void release(Permit permit) {
+		if (!activePermits.remove(permit))
+			return;
+		activeGlobal--;
+		add(activePerPeer, permit.ipAndPort, -1);
+		add(activePerRegion, permit.regionName, -1);
+		dispatch();
+	}
+
+	/**
+	 * @return Nanos to sleep before reading more, after the sleep is already done. Zero if there is no budget.
+	 */
+	private long consume(int bytes) {
+		if (maxBytesPerSec <= 0 || bytes <= 0)
+			return 0;
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (nextBudgetNanos < now)
+				nextBudgetNanos = now;
+			waitNanos = nextBudgetNanos - now;
+			nextBudgetNanos += bytes * 1000000000L / maxBytesPerSec;
+			statThrottleNanos += waitNanos;
+		}
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return waitNanos;
+	}
+
+	public synchronized ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("max_global", maxGlobal);
+		result.put("max_per_peer", maxPerPeer);
+		result.put("max_per_region", maxPerRegion);
+		result.put("max_kbps", maxBytesPerSec * 8 / 1000);
+		result.put("acquired", statAcquired);
+		result.put("acquire_timeouts", statAcquireTimeouts);
+		result.put("wait_ms", statWaitNanos / 1000000);
+		result.put("throttle_ms", statThrottleNanos / 1000000);
+		result.put("peak_global", statMaxGlobal);
+		result.put("active_global", activeGlobal);
+		result.put("pending", pending.size());
+		return result;
+	}
+}
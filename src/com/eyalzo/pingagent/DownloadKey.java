@@ -0,0 +1,73 @@
+package com.eyalzo.pingagent;
+
+import java.net.InetAddress;
+
+/**
+ * Identity of a download series: agent's IPv4 and port, size (or duration) and kind.
+ * <p>
+ * Immutable and cheap to hash, unlike {@link java.net.URL} whose equals and hashCode may resolve the host name.
+ *
+ * @author Eyal Zohar
+ */
+public final class DownloadKey {
+	static final int KIND_DOWNLOAD = 0;
+	static final int KIND_UPLOAD = 1;
+	static final int KIND_DURATION = 2;
+	private final int ipv4;
+	private final int port;
+	/**
+	 * Size in bytes, or duration in millis for {@link #KIND_DURATION}.
+	 */
+	private final int sizeOrDuration;
+	private final int kind;
+
+	/**
+	 * @param ip
+	 *            IPv4 address, as announce accepts IPv4 only.
+	 * @throws IllegalArgumentException
+	 *             If the address is not IPv4.
+	 */
+	public DownloadKey(InetAddress ip, int port, int sizeOrDuration, int kind) {
+		byte[] bytes = ip.getAddress();
+		if (bytes.length != 4)
+			throw new IllegalArgumentException("Not IPv4");
+		this.ipv4 = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+		this.port = port;
+		this.sizeOrDuration = sizeOrDuration;
+		this.kind = kind;
+	}
+
+	public int getSizeOrDuration() {
+		return sizeOrDuration;
+	}
+
+	public int getKind() {
+		return kind;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = ipv4;
+		result = 31 * result + port;
+		result = 31 * result + sizeOrDuration;
+		result = 31 * result + kind;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof DownloadKey))
+			return false;
+		DownloadKey other = (DownloadKey) obj;
+		return ipv4 == other.ipv4 && port == other.port && sizeOrDuration == other.sizeOrDuration && kind == other.kind;
+	}
+
+	@Override
+	public String toString() {
+		return (ipv4 >>> 24) + "." + ((ipv4 >>> 16) & 0xff) + "." + ((ipv4 >>> 8) & 0xff) + "." + (ipv4 & 0xff) + ":" + port
+				+ (kind == KIND_UPLOAD ? " upload " : kind == KIND_DURATION ? " duration_ms " : " download ")
+				+ sizeOrDuration;
+	}
+}
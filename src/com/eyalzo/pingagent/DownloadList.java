@@ -4,52 +4,83 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map.Entry;
 
 /**
  * List of download results that are actually candidates and/or results in any of several different states.
+ * <p>
+ * Downloads are grouped in series, one per agent and size. Each series starts with a cold download on a new connection, followed by warm
+ * downloads on the same connection.
+ * <p>
+ * Duration-bounded downloads let the peer stream for a fixed window, so the size is whatever arrived. Their throughput is comparable across paths
+ * of very different speeds, where a fixed size is either too small to measure or too large to complete.
  */
 public class DownloadList {
-	private HashMap<URL, DownloadResult> list = new HashMap<URL, DownloadResult>();
+	private HashMap<DownloadKey, ArrayList<DownloadResult>> list = new HashMap<DownloadKey, ArrayList<DownloadResult>>();
+	private int downloadsCount;
 	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	//
+	// Metrics
+	//
+	/**
+	 * Transfers by kind and result, where the index is 2 for warm plus 1 for success.
+	 */
+	private static final MetricsRegistry.Counter[] metricTransfers = new MetricsRegistry.Counter[4];
+	private static final MetricsRegistry.Counter metricBytes = MetricsRegistry.DEFAULT.counter("download_bytes_total",
+			"Bytes of successful downloads and uploads to other agents.");
+	/**
+	 * Transfer time from 1 mSec to about 4.5 minutes, including the connect time of cold transfers.
+	 */
+	private static final MetricsRegistry.Timer metricDuration = MetricsRegistry.DEFAULT.timer("download_seconds",
+			"Time of successful downloads and uploads to other agents.", MetricsRegistry.exponentialBounds(1000, 4, 10),
+			-6);
+	static {
+		for (int i = 0; i < metricTransfers.length; i++)
+			metricTransfers[i] = MetricsRegistry.DEFAULT.counter("downloads_total",
+					"Downloads and uploads to other agents, by kind and result.", "kind", i >= 2 ? "warm" : "cold",
+					"result", i % 2 == 1 ? "success" : "failed");
+	}
 
-	public int add(AnnounceReceivedItem curItem, String downloadCommand) {
-		HashMap<Integer, Integer> downloads = curItem.getDownloads();
-		// Skip if no downloads
-		if (downloads == null)
-			return 0;
+	/**
+	 * @param warmCount
+	 *            Number of warm downloads to perform after the cold one, on the same connection.
+	 * @return Number of downloads and uploads added, cold and warm.
+	 */
+	public int add(AnnounceReceivedItem curItem, int warmCount) {
 		int result = 0;
-		// Add all downloads of this agent
-		for (Entry<Integer, Integer> curDownload : downloads.entrySet()) {
-			int size = curDownload.getKey();
-			URL curUrl;
-			try {
-				curUrl = new URL("http://" + curItem.getIpAndPort().toString().substring(1) + downloadCommand + size);
-			} catch (MalformedURLException e) {
-				continue;
+		// The plans were prepared when the announce was received, so only the results are new
+		for (DownloadPlan curPlan : curItem.getDownloadPlans()) {
+			// The cold download and then the warm ones
+			ArrayList<DownloadResult> series = new ArrayList<DownloadResult>(1 + warmCount);
+			for (int i = 0; i <= warmCount; i++) {
+				series.add(new DownloadResult(curPlan, i > 0));
 			}
-			// With URL and size add to the result
-			DownloadResult downloadResult = new DownloadResult(curUrl, curItem.getIpAndPort(), curItem.getRegionName(),
-					size);
-			list.put(curUrl, downloadResult);
-			result++;
+			ArrayList<DownloadResult> prev = list.put(curPlan.key, series);
+			if (prev != null)
+				downloadsCount -= prev.size();
+			downloadsCount += series.size();
+			result += series.size();
 		}
 		return result;
 	}
 
+	/**
+	 * @return Number of downloads, cold and warm.
+	 */
 	public int size() {
-		return list.size();
+		return downloadsCount;
 	}
 
 	public boolean isEmpty() {
 		return list.isEmpty();
 	}
 
-	public Collection<DownloadResult> getDownloadResults() {
+	/**
+	 * @return Download series, one per agent and size, each with a cold download first.
+	 */
+	public Collection<ArrayList<DownloadResult>> getDownloadSeries() {
 		return list.values();
 	}
 
@@ -57,47 +88,106 @@ public class DownloadList {
 		ObjectNode result = factory.objectNode();
 
 		// Prepare an array node, to hold each result separately
-		ArrayNode itemsArray = result.arrayNode(list.size());
+		ArrayNode itemsArray = result.arrayNode(downloadsCount);
 		result.set("items", itemsArray);
 
 		int downloadFailed = 0;
 		int downloadSuccess = 0;
-
-		for (DownloadResult curResult : list.values()) {
-			//
-			// Host, port and the json node in the array
-			//
-			ObjectNode curNode = itemsArray.addObject();
-			curNode.put("ip_port", curResult.getAddressAsString());
-			curNode.put("region", curResult.regionName);
-
-			curNode.put("queue_ms", curResult.getQueueMillis());
-
-			// Check if connected so RTT is know
-			int connectMicro = curResult.getConnectMicro();
-			if (connectMicro > 0)
-				curNode.put("connect_us", connectMicro);
-
-			int downloadWithoutConnectMicro = curResult.getDownloadWithoutConnectMicro();
-
-			// Check if error
-			if (downloadWithoutConnectMicro == 0 || curResult.exception != null) {
-				curNode.put("error", curResult.exception == null ? "No download" : curResult.exception.getMessage());
-				downloadFailed++;
-				continue;
+		// Throughput sums, to compare cold and warm, where index 0 is download, 1 is upload and 2 is duration-bounded download
+		long[] coldBytes = new long[3], coldMicro = new long[3], warmBytes = new long[3], warmMicro = new long[3];
+		int[] coldSuccess = new int[3], warmSuccess = new int[3];
+
+		for (ArrayList<DownloadResult> curSeries : list.values()) {
+			for (DownloadResult curResult : curSeries) {
+				//
+				// Host, port and the json node in the array
+				//
+				ObjectNode curNode = itemsArray.addObject();
+				curNode.put("ip_port", curResult.getAddressAsString());
+				curNode.put("region", curResult.regionName);
+				curNode.put("warm", curResult.warm);
+				if (curResult.upload)
+					curNode.put("upload", true);
+				if (curResult.durationMillis > 0)
+					curNode.put("duration_ms", curResult.durationMillis);
+
+				curNode.put("queue_ms", curResult.getQueueMillis());
+
+				// The concurrency it ran under, so contended results can be told apart
+				if (curResult.concurrencyGlobal > 0) {
+					ObjectNode concurrencyNode = curNode.putObject("concurrency");
+					concurrencyNode.put("global", curResult.concurrencyGlobal);
+					concurrencyNode.put("peer", curResult.concurrencyPeer);
+					concurrencyNode.put("region", curResult.concurrencyRegion);
+				}
+				if (curResult.throttleNanos > 0)
+					curNode.put("throttle_us", curResult.throttleNanos / 1000);
+
+				// Check if connected so RTT is know (cold only)
+				int connectMicro = curResult.warm ? 0 : curResult.getConnectMicro();
+				if (connectMicro > 0)
+					curNode.put("connect_us", connectMicro);
+
+				int downloadWithoutConnectMicro = curResult.getDownloadWithoutConnectMicro();
+
+				// Check if error
+				if (downloadWithoutConnectMicro == 0 || curResult.exception != null) {
+					curNode.put("error",
+							curResult.exception == null ? "No download" : curResult.exception.getMessage());
+					downloadFailed++;
+					metricTransfers[curResult.warm ? 2 : 0].inc();
+					continue;
+				}
+
+				downloadSuccess++;
+				metricTransfers[curResult.warm ? 3 : 1].inc();
+
+				int downloadMicro = connectMicro + downloadWithoutConnectMicro;
+				curNode.put("download_us", downloadMicro);
+				metricBytes.add(curResult.sizeDownloaded);
+				metricDuration.record(downloadMicro);
+				curNode.put("size", curResult.sizeDownloaded);
+				if (curResult.serverMicro > 0)
+					curNode.put("server_us", curResult.serverMicro);
+
+				int direction = curResult.upload ? 1 : curResult.durationMillis > 0 ? 2 : 0;
+				if (curResult.warm) {
+					warmSuccess[direction]++;
+					warmBytes[direction] += curResult.sizeDownloaded;
+					warmMicro[direction] += downloadMicro;
+				} else {
+					coldSuccess[direction]++;
+					coldBytes[direction] += curResult.sizeDownloaded;
+					coldMicro[direction] += downloadMicro;
+				}
 			}
-
-			downloadSuccess++;
-
-			curNode.put("download_us", connectMicro + downloadWithoutConnectMicro);
-			curNode.put("size", curResult.sizeDownloaded);
 		}
 
 		// Add statistics
 		result.put("download_failed", downloadFailed);
 		result.put("download_success", downloadSuccess);
+		addThroughputStats(result, "", coldSuccess[0], coldBytes[0], coldMicro[0], warmSuccess[0], warmBytes[0],
+				warmMicro[0]);
+		if (coldSuccess[1] + warmSuccess[1] > 0)
+			addThroughputStats(result, "upload_", coldSuccess[1], coldBytes[1], coldMicro[1], warmSuccess[1],
+					warmBytes[1], warmMicro[1]);
+		if (coldSuccess[2] + warmSuccess[2] > 0)
+			addThroughputStats(result, "duration_", coldSuccess[2], coldBytes[2], coldMicro[2], warmSuccess[2],
+					warmBytes[2], warmMicro[2]);
 
 		return result;
 	}
 
+	/**
+	 * Add the success count and average throughput in kbps of cold and warm transfers, where cold includes the connect time.
+	 */
+	private static void addThroughputStats(ObjectNode result, String prefix, int coldSuccess, long coldBytes,
+			long coldMicro, int warmSuccess, long warmBytes, long warmMicro) {
+		result.put(prefix + "cold_success", coldSuccess);
+		result.put(prefix + "warm_success", warmSuccess);
+		if (coldMicro > 0)
+			result.put(prefix + "cold_kbps", coldBytes * 8 * 1000 / coldMicro);
+		if (warmMicro > 0)
+			result.put(prefix + "warm_kbps", warmBytes * 8 * 1000 / warmMicro);
+	}
 }
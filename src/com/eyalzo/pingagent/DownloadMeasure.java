@@ -1,7 +1,8 @@
 package com.eyalzo.pingagent;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * Perform download from URL, using a thread pool for fast parallel operation.
@@ -10,75 +11,106 @@ import java.util.concurrent.*;
  */
 public class DownloadMeasure {
 	/**
-	 * Ping command, built for thread pool.
+	 * Download series command, run by the governor when the series gets a slot. Performs the cold download and then the warm ones on the same
+	 * connection.
 	 */
-	static class DownloadCall implements Callable<DownloadResult> {
-		private final DownloadResult downloadResult;
+	static class DownloadCall implements Consumer<DownloadGovernor.Permit> {
+		private final ArrayList<DownloadResult> downloadSeries;
+		/**
+		 * Default timeout of a single download, if the announce did not set one for the size.
+		 */
 		private final int timeoutMillis;
+		/**
+		 * Gets each result as soon as its transfer completes. Can be null.
+		 */
+		private final Consumer<DownloadResult> onResult;
+		/**
+		 * Counted down when the series completes.
+		 */
+		private final CountDownLatch completed;
+		private volatile boolean started;
 
-		public DownloadCall(DownloadResult downloadResult, int timeoutMillis) {
+		public DownloadCall(ArrayList<DownloadResult> downloadSeries, int timeoutMillis,
+				Consumer<DownloadResult> onResult, CountDownLatch completed) {
 			super();
-			this.downloadResult = downloadResult;
+			this.downloadSeries = downloadSeries;
 			this.timeoutMillis = timeoutMillis;
+			this.onResult = onResult;
+			this.completed = completed;
 		}
 
 		@Override
-		public DownloadResult call() {
-			// Actually download the file - times are saved inside the download result object
-			Exception downloadException = PingUtils.downloadUrlToNull(downloadResult, timeoutMillis);
-			downloadResult.exception = downloadException;
-			return downloadResult;
+		public void accept(DownloadGovernor.Permit permit) {
+			started = true;
+			DownloadConnection connection = new DownloadConnection(downloadSeries.get(0).getConnectAddress());
+			try {
+				for (DownloadResult downloadResult : downloadSeries) {
+					// Actually download the file - times are saved inside the download result object
+					permit.startTransfer();
+					// The announced timeout of this size, if any
+					int curTimeoutMillis = downloadResult.plan.timeoutMillis > 0 ? downloadResult.plan.timeoutMillis
+							: timeoutMillis;
+					downloadResult.exception = connection.download(downloadResult, curTimeoutMillis, permit);
+					permit.tag(downloadResult);
+					if (onResult != null)
+						onResult.accept(downloadResult);
+				}
+			} finally {
+				connection.close();
+				completed.countDown();
+			}
 		}
 	}
 
 	/**
-	 * @return Number of completed downloads. Some more may complete but marked as terminated. This is why the results of each download should be examined.
+	 * @param governor
+	 *            Limits the concurrent downloads beyond the number of executers, and the aggregate bandwidth. Series wait in its queue until they
+	 *            get a slot, so an executer never waits for a slot.
+	 * @param onResult
+	 *            Gets each result as soon as its transfer completes, on the executer's thread, so it must not block. Can be null.
+	 * @return Number of completed download series. Some more may complete but marked as terminated. This is why the results of each download should be examined.
 	 */
-	static int download(DownloadList downloadList, int maxExecuters, int downloadTimeoutMillis,
-			int overallTimeoutMillis) {
+	static int download(DownloadList downloadList, DownloadGovernor governor, int maxExecuters,
+			int downloadTimeoutMillis, int overallTimeoutMillis, Consumer<DownloadResult> onResult) {
 		// Sanity check
 		if (downloadList == null || downloadList.isEmpty())
 			return 0;
 
-		int executersCount = Math.max(1, Math.min(maxExecuters, downloadList.size()));
-		final ExecutorService downloadExecutor = Executors.newFixedThreadPool(executersCount);
+		ArrayList<DownloadCall> calls = new ArrayList<DownloadCall>();
+		CountDownLatch completed = new CountDownLatch(downloadList.getDownloadSeries().size());
+		for (ArrayList<DownloadResult> curDownloadSeries : downloadList.getDownloadSeries()) {
+			if (curDownloadSeries.isEmpty()) {
+				completed.countDown();
+				continue;
+			}
+			DownloadCall call = new DownloadCall(curDownloadSeries, downloadTimeoutMillis, onResult, completed);
+			calls.add(call);
+			DownloadResult first = curDownloadSeries.get(0);
+			governor.submit(first.getIpAndPort(), first.regionName, call);
+		}
 
-		LinkedList<Future<DownloadResult>> downloadResultsFutures = new LinkedList<Future<DownloadResult>>();
+		int executersCount = Math.max(1, Math.min(maxExecuters, calls.size()));
+		final ExecutorService downloadExecutor = Executors.newFixedThreadPool(executersCount);
+		// Start running, without waiting
+		governor.start(downloadExecutor, executersCount);
 
-		for (DownloadResult curDownloadResult : downloadList.getDownloadResults()) {
-			DownloadCall callable = new DownloadCall(curDownloadResult, downloadTimeoutMillis);
-			// Start running, without waiting
-			downloadResultsFutures.add(downloadExecutor.submit(callable));
-		}
-		// Initiate shutdown so we can wait for completion
-		downloadExecutor.shutdown();
 		// Wait for all to complete
 		try {
-			// Try to wait until a timeout, or terminate if not
-			if (!downloadExecutor.awaitTermination(overallTimeoutMillis, TimeUnit.MILLISECONDS))
-				downloadExecutor.shutdownNow();
+			completed.await(overallTimeoutMillis, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e1) {
-			// Ignore, but remember that some futures may fail so check isDone()
-			downloadExecutor.shutdownNow();
+			// Ignore, but remember that some series may not complete, so check each
 		}
+		// Series that did not get a slot in time never start, and the ones that are still running are terminated
+		governor.cancelPending();
+		downloadExecutor.shutdownNow();
 
-		int result = 0;
-		for (Future<DownloadResult> futurePingResult : downloadResultsFutures) {
-			// Get the address list only if done, to prevent blocking
-			if (futurePingResult.isDone()) {
-				try {
-					futurePingResult.get();
-					result++;
-				} catch (InterruptedException | ExecutionException | CancellationException e) {
-				}
-			} else {
-				try {
-					futurePingResult.cancel(true);
-				} catch (Exception e) {
-				}
+		for (DownloadCall call : calls) {
+			if (!call.started) {
+				for (DownloadResult downloadResult : call.downloadSeries)
+					downloadResult.exception = new TimeoutException("No download slot");
 			}
 		}
 
-		return result;
+		return (int) (downloadList.getDownloadSeries().size() - completed.getCount());
 	}
 }
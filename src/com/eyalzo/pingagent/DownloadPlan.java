@@ -0,0 +1,91 @@
+package com.eyalzo.pingagent;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A download (or upload) series to perform on every download round, prepared once when the announce is received: identity, where to connect,
+ * timeout and the encoded HTTP request.
+ * <p>
+ * Immutable, so it is shared by all the cold and warm results of all the rounds.
+ *
+ * @author Eyal Zohar
+ */
+public class DownloadPlan {
+	/**
+	 * Path to download, followed by the size.
+	 */
+	static final String DOWNLOAD_COMMAND = "/download?size=";
+	/**
+	 * Path to upload, followed by the size (informative, the peer counts the bytes).
+	 */
+	static final String UPLOAD_COMMAND = "/upload?size=";
+	/**
+	 * Path to download for a fixed duration, followed by the duration in millis.
+	 */
+	static final String DURATION_COMMAND = "/download?duration_ms=";
+	final DownloadKey key;
+	/**
+	 * The agent's announced address, for identity.
+	 */
+	final InetSocketAddress ipAndPort;
+	/**
+	 * Where to connect, that may be the agent's measurement server port instead of the agent's port.
+	 */
+	final InetSocketAddress connectAddress;
+	final String regionName;
+	/**
+	 * Size in bytes, or zero for a duration-bounded download.
+	 */
+	final int size;
+	/**
+	 * Duration in millis of a duration-bounded download, or zero.
+	 */
+	final int durationMillis;
+	final boolean upload;
+	/**
+	 * Complete transfer timeout in millis, as received in the announce for this size. For a duration-bounded download it comes on top of the
+	 * duration.
+	 */
+	final int timeoutMillis;
+	/**
+	 * The HTTP request, or the request head for an upload.
+	 */
+	private final byte[] requestBytes;
+
+	/**
+	 * @param kind
+	 *            One of the kinds in {@link DownloadKey}.
+	 * @param sizeOrDuration
+	 *            Size in bytes, or duration in millis for a duration-bounded download.
+	 */
+	DownloadPlan(InetSocketAddress ipAndPort, InetSocketAddress connectAddress, String regionName, int kind,
+			int sizeOrDuration, int timeoutMillis) {
+		this.key = new DownloadKey(connectAddress.getAddress(), connectAddress.getPort(), sizeOrDuration, kind);
+		this.ipAndPort = ipAndPort;
+		this.connectAddress = connectAddress;
+		this.regionName = regionName;
+		this.upload = kind == DownloadKey.KIND_UPLOAD;
+		this.size = kind == DownloadKey.KIND_DURATION ? 0 : sizeOrDuration;
+		this.durationMillis = kind == DownloadKey.KIND_DURATION ? sizeOrDuration : 0;
+		this.timeoutMillis = timeoutMillis;
+		if (upload)
+			requestBytes = DownloadConnection.buildPostRequestHead(connectAddress, UPLOAD_COMMAND + sizeOrDuration,
+					sizeOrDuration);
+		else
+			requestBytes = DownloadConnection.buildGetRequest(connectAddress,
+					(kind == DownloadKey.KIND_DURATION ? DURATION_COMMAND : DOWNLOAD_COMMAND) + sizeOrDuration);
+	}
+
+	/**
+	 * @return The HTTP request to send over a keep-alive connection. For upload, this is the request head only, without the body. Must not be
+	 *         modified.
+	 */
+	byte[] getRequestBytes() {
+		return requestBytes;
+	}
+
+	@Override
+	public String toString() {
+		return key.toString();
+	}
+}
@@ -1,30 +1,77 @@
 package com.eyalzo.pingagent;
 
 import java.net.InetSocketAddress;
-import java.net.URL;
 
 public class DownloadResult {
 	long enterQueueTime;
 	long startConnectTime;
 	long startDownloadTime;
 	long endDownloadTime;
-	public final URL url;
+	/**
+	 * What to download, shared by all the results of the series.
+	 */
+	final DownloadPlan plan;
 	Exception exception;
-	private final InetSocketAddress ipAndPort;
 	final int sizeToDownload;
-	int sizeDownloaded;
-	String regionName;
+	/**
+	 * Bytes downloaded, or uploaded as confirmed by the peer. A long, because a duration-bounded download on a fast link can pass 2 GB.
+	 */
+	long sizeDownloaded;
+	final String regionName;
+	/**
+	 * True if this download runs on a connection that was already used by a previous download (of the same series), so it does not pay for the
+	 * handshake and slow-start. False for a "cold" download on a new connection.
+	 */
+	final boolean warm;
+	/**
+	 * True if this is an upload (agent to peer) test, where the size is the number of bytes to send. False for a download.
+	 */
+	final boolean upload;
+	/**
+	 * Duration-bounded download only. How long the peer streams in millis, where the size is whatever arrived in that window. Zero for a fixed size
+	 * transfer.
+	 */
+	final int durationMillis;
+	/**
+	 * Upload only. Time it took the peer to receive the body in micro seconds, as reported by the peer. Zero if unknown.
+	 */
+	int serverMicro;
+	/**
+	 * Maximal number of concurrent downloads while this one ran: of the agent, from the same agent and from the same region.
+	 */
+	int concurrencyGlobal, concurrencyPeer, concurrencyRegion;
+	/**
+	 * Time spent sleeping because of the aggregate bandwidth budget.
+	 */
+	long throttleNanos;
 
-	public DownloadResult(URL url, InetSocketAddress ipAndPort, String regionName, int downloadSize) {
-		this.url = url;
-		this.ipAndPort = ipAndPort;
-		this.sizeToDownload = downloadSize;
+	public DownloadResult(DownloadPlan plan, boolean warm) {
+		this.plan = plan;
+		this.sizeToDownload = plan.size;
 		this.enterQueueTime = System.nanoTime();
-		this.regionName = regionName;
+		this.regionName = plan.regionName;
+		this.warm = warm;
+		this.upload = plan.upload;
+		this.durationMillis = plan.durationMillis;
 	}
 
 	public String getAddressAsString() {
-		return ipAndPort == null ? "" : ipAndPort.toString().substring(1);
+		return plan.ipAndPort == null ? "" : plan.ipAndPort.toString().substring(1);
+	}
+
+	public InetSocketAddress getIpAndPort() {
+		return plan.ipAndPort;
+	}
+
+	public InetSocketAddress getConnectAddress() {
+		return plan.connectAddress;
+	}
+
+	/**
+	 * @return The HTTP request to send over a keep-alive connection. For upload, this is the request head only, without the body.
+	 */
+	byte[] getRequestBytes() {
+		return plan.getRequestBytes();
 	}
 
 	/**
@@ -37,7 +84,7 @@ public class DownloadResult {
 	}
 
 	/**
-	 * @return Time it took to connect in micro seconds. Zero if did not connect.
+	 * @return Time it took to connect in micro seconds. Zero if did not connect, or did not have to connect because the download is warm.
 	 */
 	public int getConnectMicro() {
 		if (startConnectTime == 0 || startDownloadTime == 0)
@@ -0,0 +1,17 @@
+package com.eyalzo.pingagent;
+
+/**
+ * Summary of the last download round, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface DownloadRoundMBean {
+	/**
+	 * @return Downloads and uploads planned for the last round.
+	 */
+	int getLastRoundDownloads();
+
+	int getLastRoundSuccess();
+
+	int getLastRoundFailed();
+}
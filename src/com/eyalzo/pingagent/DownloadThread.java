@@ -1,22 +1,8 @@
 package com.eyalzo.pingagent;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.apache.http.HttpEntity;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
-
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -24,7 +10,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * 
  * @author Eyal Zohar
  */
-public class DownloadThread extends LoopThread {
+public class DownloadThread extends LoopThread implements DownloadRoundMBean {
 	/**
 	 * Locks both pending and active lists of downloads.
 	 */
@@ -35,30 +21,57 @@ public class DownloadThread extends LoopThread {
 	private static JsonNodeFactory factory = JsonNodeFactory.instance;
 	private static final int LOOP_MILLIS_IF_NO_DOWNLOADS = 1000;
 	private final String reportUrlBase;
+	private final ServerReporter reporter;
 	private final Config config;
+	/**
+	 * Gets each download result as soon as it completes, for the /stream subscribers.
+	 */
+	private final ResultStream resultStream;
+	//
+	// Phases of a loop
+	//
+	private static final int PHASE_LIST_SNAPSHOT = 0;
+	private static final int PHASE_DOWNLOAD = 1;
+	private static final int PHASE_ANALYZE = 2;
+	private static final int PHASE_SERIALIZE = 3;
+	private static final int PHASE_REPORT = 4;
+	private static final String[] PHASE_NAMES = { "list_snapshot", "download", "analyze", "serialize", "report" };
 
 	//
 	// Statistics to be displayed in json
 	//
 	private String statLastLoopLog = "";
 	/**
-	 * All the active downloads, whether in queue, in progress or completed.
+	 * Results of the last loop. Replaced as a whole and never changed after, so it can be shared without copying.
 	 */
-	private ObjectNode resultsJson = factory.objectNode();
+	private volatile ObjectNode resultsJson = factory.objectNode();
 	private String statReportResponse = "";
 	/**
 	 * Size of list of addresses to download on the last loop.
 	 */
 	private int statDownloadsToPerform;
+	/**
+	 * The governor of the last round, for its limits and statistics.
+	 */
+	private DownloadGovernor statLastGovernor;
 
 	/**
 	 * @param reportUrlBase
 	 *            The URL where download results should be reported to.
+	 * @param resultStream
+	 *            Gets each download result as soon as it completes.
 	 */
-	public DownloadThread(final String reportUrlBase, Config config) {
-		super("Download", config.getDownloadIntervalSec() * 1000);
+	public DownloadThread(final String reportUrlBase, Config config, ResultStream resultStream) {
+		super("Download", config.getDownloadIntervalSec() * 1000, PHASE_NAMES);
 		this.reportUrlBase = reportUrlBase;
+		this.reporter = new ServerReporter(reportUrlBase);
 		this.config = config;
+		this.resultStream = resultStream;
+		// Re-arm the next round as soon as the announce changes the interval
+		config.addListener((previous, current) -> {
+			if (current.getDownloadIntervalSec() != previous.getDownloadIntervalSec())
+				setInterval(current.getDownloadIntervalSec() * 1000L);
+		});
 	}
 
 	/**
@@ -85,15 +98,13 @@ public class DownloadThread extends LoopThread {
 
 	@Override
 	public boolean runLoop() {
-		// Set the interval according to configuration
-		setIntervalOnce(config.getDownloadIntervalSec() * 1000);
+		// The same configuration for the whole round
+		Config.Snapshot roundConfig = config.getSnapshot();
 
+		beginPhase(PHASE_LIST_SNAPSHOT);
 		statLastLoopLog = "Loop start";
 		statReportResponse = "";
-		// All the active downloads, whether in queue, in progress or completed
-		synchronized (resultsJson) {
-			resultsJson.removeAll();
-		}
+		resultsJson = factory.objectNode();
 		statLastLoopLog = "Results cleanup done";
 
 		// Check if there is an active list, while locking because of the wake-up
@@ -113,9 +124,14 @@ public class DownloadThread extends LoopThread {
 		}
 
 		// Do the download
+		beginPhase(PHASE_DOWNLOAD);
 		statLastLoopLog = "Do the downloads";
-		DownloadMeasure.download(activeDownloadList, config.getDownloadExecuters(), config.getDownloadTimeoutMs(),
-				config.getDownloadIntervalSec() * 1000);
+		DownloadGovernor governor = new DownloadGovernor(roundConfig.getDownloadMaxConcurrent(),
+				roundConfig.getDownloadMaxPerPeer(), roundConfig.getDownloadMaxPerRegion(),
+				roundConfig.getDownloadMaxKbps());
+		statLastGovernor = governor;
+		DownloadMeasure.download(activeDownloadList, governor, roundConfig.getDownloadExecuters(),
+				roundConfig.getDownloadTimeoutMs(), roundConfig.getDownloadIntervalSec() * 1000, resultStream::publish);
 		statLastLoopLog = "Completed the download executers";
 
 		listsLock.lock();
@@ -128,19 +144,12 @@ public class DownloadThread extends LoopThread {
 		}
 
 		// Analyze the download results and get a json with summary and detailed results
+		beginPhase(PHASE_ANALYZE);
 		ObjectNode analyzedDownloadResultsJson = completedDownloadList.analyzeResults();
-		synchronized (resultsJson) {
-			resultsJson.setAll(analyzedDownloadResultsJson);
-		}
+		resultsJson = analyzedDownloadResultsJson;
 
 		// Report results to database
-		boolean success = false;
-		try {
-			success = reportToServer(analyzedDownloadResultsJson);
-		} catch (IOException e) {
-			statLastLoopLog = "IOException when trying to report the server.";
-			e.printStackTrace();
-		}
+		boolean success = reportToServer(analyzedDownloadResultsJson);
 
 		statLastLoopLog = success ? "Reported to server. Loop complete" : "Failed to report to server. Loop complete";
 
@@ -158,60 +167,40 @@ public class DownloadThread extends LoopThread {
 	 		{
 	 			"ip_port":"3.24.138.198:5001",
 	 			"region":"aws\\ap-southeast-2",
+	 			"warm":false,
 	 			"queue_ms":3,
+	 			"concurrency":{"global":4,"peer":1,"region":2},
 	 			"connect_us":444293,
 	 			"download_us":1277630,
 	 			"size":20000
 	 		}
 	 	],
 	 	"download_failed":0,
-	 	"download_success":1
+	 	"download_success":1,
+	 	"cold_success":1,
+	 	"warm_success":0,
+	 	"cold_kbps":92
 	 }
 	 * </pre>
 	 * 
 	 * @param analyzedDownloadResultsJson
-	 * @return True on success to report.
-	 * @throws IOException
+	 * @return True on success to report, possibly after retries.
 	 */
-	private boolean reportToServer(ObjectNode analyzedDownloadResultsJson) throws IOException {
+	private boolean reportToServer(ObjectNode analyzedDownloadResultsJson) {
 		if (analyzedDownloadResultsJson == null)
 			return false;
 
-		System.out.println(analyzedDownloadResultsJson.toString());
-
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-		try {
-			HttpPost httpPost = new HttpPost(this.reportUrlBase);
-
-			// Set timeouts
-			RequestConfig.Builder requestConfig = RequestConfig.custom();
-			requestConfig.setConnectTimeout(10 * 1000);
-			requestConfig.setConnectionRequestTimeout(10 * 1000);
-			requestConfig.setSocketTimeout(20 * 1000);
-			httpPost.setConfig(requestConfig.build());
-
-			// Fill the POST data
-			List<NameValuePair> nvps = new ArrayList<>(1);
-			nvps.add(new BasicNameValuePair("result", analyzedDownloadResultsJson.toString()));
-			httpPost.setEntity(new UrlEncodedFormEntity(nvps));
-
-			// Submit
-			statLastLoopLog = "Report to server - connecting.";
-			CloseableHttpResponse response2 = httpclient.execute(httpPost);
-			try {
-				HttpEntity entity2 = response2.getEntity();
-				statReportResponse = EntityUtils.toString(entity2, "UTF-8");
-				// Do something useful with the response body and ensure it is fully
-				// consumed
-				EntityUtils.consume(entity2);
-			} finally {
-				response2.close();
-			}
-		} finally {
-			httpclient.close();
-		}
+		beginPhase(PHASE_SERIALIZE);
+		String report = analyzedDownloadResultsJson.toString();
+		System.out.println(report);
 
-		return true;
+		// Retries must not run into the next round
+		beginPhase(PHASE_REPORT);
+		statLastLoopLog = "Report to server.";
+		boolean result = reporter.report(report,
+				System.currentTimeMillis() + config.getDownloadIntervalSec() * 1000 / 2);
+		statReportResponse = reporter.getLastResponse();
+		return result;
 	}
 
 	@Override
@@ -224,19 +213,41 @@ public class DownloadThread extends LoopThread {
 		ObjectNode result = super.getStatisticsAsJson();
 		result.put("last_loop_log", statLastLoopLog);
 		result.put("download_executers", config.getDownloadExecuters());
+		result.put("download_warm_count", config.getDownloadWarmCount());
 		result.put("downloads_to_perform", statDownloadsToPerform);
+		DownloadGovernor governor = statLastGovernor;
+		if (governor != null)
+			result.set("governor", governor.getStatisticsAsJson());
 		result.put("server_report_url", this.reportUrlBase);
 		result.put("server_response", statReportResponse);
-		result.set("download_results", resultsJson.deepCopy());
+		result.set("server_report", reporter.getStatisticsAsJson());
+		result.set("download_results", resultsJson);
 
 		return result;
 	}
 
+	@Override
+	public int getLastRoundDownloads() {
+		return statDownloadsToPerform;
+	}
+
+	@Override
+	public int getLastRoundSuccess() {
+		return resultsJson.path("download_success").asInt();
+	}
+
+	@Override
+	public int getLastRoundFailed() {
+		return resultsJson.path("download_failed").asInt();
+	}
+
 	public ObjectNode getStatisticsAsJsonMinimal() {
 		ObjectNode result = this.getStatisticsAsJson();
-		JsonNode downloadResults = result.get("download_results");
-		if (downloadResults instanceof ObjectNode)
-			((ObjectNode) downloadResults).remove("items");
+		// Summary only, without changing the shared results
+		ObjectNode downloadResults = factory.objectNode();
+		downloadResults.setAll(resultsJson);
+		downloadResults.remove("items");
+		result.set("download_results", downloadResults);
 
 		return result;
 	}
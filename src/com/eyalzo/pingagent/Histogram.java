@@ -0,0 +1,123 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values, with power of two buckets.
+ * <p>
+ * Bucket 0 holds zero, and bucket i holds values from 2^(i-1) to 2^i-1. So the precision is a factor of two, which is enough to tell a slow
+ * transfer or round from a normal one, and recording is a few atomic increments without allocation. Percentiles are reported as the upper bound of
+ * the bucket, capped by the maximal value seen.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class Histogram {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private static final int BUCKETS_COUNT = 64;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param value
+	 *            Value to record. Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	private static int bucketOf(long value) {
+		return Math.min(BUCKETS_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return Number of values recorded in each bucket, where bucket i holds values up to {@link #getBucketUpperBound(int)}.
+	 */
+	public long[] getBucketCounts() {
+		long[] result = new long[BUCKETS_COUNT];
+		for (int i = 0; i < BUCKETS_COUNT; i++)
+			result[i] = buckets.get(i);
+		return result;
+	}
+
+	/**
+	 * @return Largest value that falls into the given bucket.
+	 */
+	public static long getBucketUpperBound(int bucket) {
+		return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	/**
+	 * @param percent
+	 *            Percentile, between 0 and 100.
+	 * @return Approximated percentile, as the upper bound of its bucket and not more than the maximal value. Zero if empty.
+	 */
+	public long getPercentile(double percent) {
+		return getPercentile(getBucketCounts(), percent, getMax());
+	}
+
+	private static long getPercentile(long[] counts, double percent, long max) {
+		long total = 0;
+		for (long curCount : counts)
+			total += curCount;
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percent / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return Math.min(max, getBucketUpperBound(i));
+		}
+		return max;
+	}
+
+	/**
+	 * @return Count, average, maximum, common percentiles, and the non-empty buckets by their upper bound.
+	 */
+	public ObjectNode getAsJson() {
+		ObjectNode result = factory.objectNode();
+		long[] counts = getBucketCounts();
+		long curCount = count.sum();
+		long curMax = max.get();
+		result.put("count", curCount);
+		if (curCount == 0)
+			return result;
+		result.put("avg", sum.sum() / curCount);
+		result.put("p50", getPercentile(counts, 50, curMax));
+		result.put("p90", getPercentile(counts, 90, curMax));
+		result.put("p99", getPercentile(counts, 99, curMax));
+		result.put("max", curMax);
+		ObjectNode bucketsNode = result.putObject("buckets");
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0)
+				bucketsNode.put("<=" + getBucketUpperBound(i), counts[i]);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,142 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of threads with a bounded queue, for a class of HTTP requests, so one class (for example downloads served to other agents) cannot
+ * take the threads of another (for example the status pages), and overload is rejected right away instead of queued without limit.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class HttpPool implements Executor, HttpPoolMBean {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private final String name;
+	private final int queueSize;
+	private final ThreadPoolExecutor executor;
+	private final AtomicInteger threadsCount = new AtomicInteger();
+
+	//
+	// Statistics
+	//
+	private final MetricsRegistry.Counter metricRejected;
+
+	/**
+	 * @param name
+	 *            Name of the pool, for the thread names, statistics and metrics.
+	 * @param threads
+	 *            Number of threads.
+	 * @param queueSize
+	 *            Requests that may wait for a thread, or zero to reject when all the threads are busy.
+	 */
+	public HttpPool(String name, int threads, int queueSize) {
+		this.name = name;
+		this.queueSize = Math.max(0, queueSize);
+		BlockingQueue<Runnable> queue = this.queueSize == 0 ? new SynchronousQueue<>()
+				: new ArrayBlockingQueue<>(this.queueSize);
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS, queue,
+				r -> new Thread(r, name + "-" + threadsCount.incrementAndGet()), new ThreadPoolExecutor.AbortPolicy());
+		MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+		metricRejected = metrics.counter("http_pool_rejected_total", "Requests rejected because the pool was full.",
+				"pool", name);
+		metrics.gauge("http_pool_threads", "Threads of the pool.", executor::getMaximumPoolSize, "pool", name);
+		metrics.gauge("http_pool_active_threads", "Threads of the pool that serve a request now.",
+				executor::getActiveCount, "pool", name);
+		metrics.gauge("http_pool_queued", "Requests waiting for a thread of the pool.", () -> executor.getQueue().size(),
+				"pool", name);
+	}
+
+	/**
+	 * Run the task, or reject it right away if all the threads are busy and the queue is full.
+	 *
+	 * @throws RejectedExecutionException
+	 *             If rejected.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			metricRejected.inc();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return True if the task will run, or false if rejected because the pool is full.
+	 */
+	public boolean offer(Runnable task) {
+		try {
+			execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	@Override
+	public int getActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	@Override
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	@Override
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	@Override
+	public long getCompleted() {
+		return executor.getCompletedTaskCount();
+	}
+
+	@Override
+	public long getRejected() {
+		return metricRejected.get();
+	}
+
+	@Override
+	public double getUtilization() {
+		return (double) executor.getActiveCount() / executor.getMaximumPoolSize();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("threads", executor.getMaximumPoolSize());
+		result.put("active_threads", executor.getActiveCount());
+		result.put("queue_size", queueSize);
+		result.put("queued", executor.getQueue().size());
+		result.put("completed", executor.getCompletedTaskCount());
+		result.put("rejected", metricRejected.get());
+		return result;
+	}
+}
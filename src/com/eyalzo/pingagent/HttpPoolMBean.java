@@ -0,0 +1,27 @@
+package com.eyalzo.pingagent;
+
+/**
+ * Utilization of an {@link HttpPool}, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface HttpPoolMBean {
+	String getName();
+
+	int getThreads();
+
+	int getActiveThreads();
+
+	int getQueueSize();
+
+	int getQueued();
+
+	long getCompleted();
+
+	long getRejected();
+
+	/**
+	 * @return Active threads out of all the threads, between 0 and 1.
+	 */
+	double getUtilization();
+}
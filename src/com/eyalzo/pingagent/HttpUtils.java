@@ -33,6 +33,9 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -408,6 +411,22 @@ public class HttpUtils {
 	 */
 	public static HttpURLConnection sendHttpRequest(URL url, int connectTimeoutMillis, int readTimeoutMillis,
 			String acceptEncodingField, Logger log) {
+		return sendHttpRequest(url, connectTimeoutMillis, readTimeoutMillis, acceptEncodingField, null, log);
+	}
+
+	/**
+	 * Send a conditional HTTP GET request.
+	 * <p>
+	 * Opens an HTTP connection with timeouts both for connect and for read and sends a request.
+	 * 
+	 * @param acceptEncodingField
+	 *            If not empty/null it send an additional header that allows the response to be compressed with the specified formats. For example "gzip,deflate".
+	 * @param ifNoneMatch
+	 *            If not empty/null it is sent as If-None-Match, so the server can respond with 304 if the content did not change since this ETag.
+	 * @return Null if failed, or the connection in order to be able to read from it.
+	 */
+	public static HttpURLConnection sendHttpRequest(URL url, int connectTimeoutMillis, int readTimeoutMillis,
+			String acceptEncodingField, String ifNoneMatch, Logger log) {
 		//
 		// Prepare the connection
 		//
@@ -429,6 +448,8 @@ public class HttpUtils {
 		// If asked to use compression
 		if (acceptEncodingField != null && !acceptEncodingField.isEmpty())
 			connection.setRequestProperty("Accept-Encoding", acceptEncodingField);
+		if (ifNoneMatch != null && !ifNoneMatch.isEmpty())
+			connection.setRequestProperty("If-None-Match", ifNoneMatch);
 
 		//
 		// Connect, meaning 3-way handshake
@@ -449,6 +470,55 @@ public class HttpUtils {
 		return connection;
 	}
 
+	/**
+	 * @param acceptEncoding
+	 *            Value of an Accept-Encoding header. Can be null.
+	 * @return True if gzip is accepted, and not with a zero quality.
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return false;
+		for (String cur : acceptEncoding.split(",")) {
+			String[] parts = cur.split(";");
+			String coding = parts[0].trim();
+			if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*"))
+				continue;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim().replace(" ", "");
+				if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?"))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param value
+	 *            Value of a Retry-After header, as delay in seconds or as HTTP date. Can be null.
+	 * @return The delay in millis, or zero if missing, malformed or in the past.
+	 */
+	public static long parseRetryAfterMillis(String value) {
+		if (value == null)
+			return 0;
+		value = value.trim();
+		if (value.isEmpty())
+			return 0;
+		if (Character.isDigit(value.charAt(0))) {
+			try {
+				return Math.max(0, Long.parseLong(value) * 1000);
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		try {
+			long time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return Math.max(0, time - System.currentTimeMillis());
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * Search for a parameter in text, written as key=value or key="value", and return its value.
 	 * 
@@ -28,7 +28,7 @@ appliance.cloud=AWS
 subscription.api=http://control.wan.ninja/control/v1/agents/subscribe
  * </pre>
  */
-public class LocalConfig {
+public class LocalConfig implements LocalConfigMBean {
 	private final String fileName;
 	private TreeMap<String, LocalConfigEntry> cache = new TreeMap<>();
 
@@ -298,4 +298,130 @@ public class LocalConfig {
 		return getString("appliance.name", "",
 				"Machine name to be reported in the announce. Optional, because it is informative only.");
 	}
+
+	/**
+	 * @return Port of the non-blocking measurement server, or zero if it should not run.
+	 */
+	public int getMeasurePort(int defaultPort) {
+		return (int) getLong("measure.port", defaultPort,
+				"Port of the measurement server (download, upload, echo), separate from the status port. Zero to disable.");
+	}
+
+	/**
+	 * @return Listen backlog of the measurement server.
+	 */
+	public int getMeasureBacklog(int defaultBacklog) {
+		return (int) getLong("measure.backlog", defaultBacklog,
+				"Listen backlog of the measurement server, for bursts of new connections from other agents.");
+	}
+
+	/**
+	 * @return Number of worker threads of the measurement server.
+	 */
+	public int getMeasureWorkers(int defaultWorkers) {
+		return (int) getLong("measure.workers", defaultWorkers,
+				"Number of worker threads of the measurement server, each with its own selector.");
+	}
+
+	/**
+	 * @return Listen backlog of the HTTP server.
+	 */
+	public int getHttpBacklog(int defaultBacklog) {
+		return (int) getLong("http.backlog", defaultBacklog, "Listen backlog of the HTTP server.");
+	}
+
+	/**
+	 * @return Number of threads that read HTTP requests and pass them to the measurement or status threads.
+	 */
+	public int getHttpDispatchThreads(int defaultThreads) {
+		return (int) getLong("http.dispatch_threads", defaultThreads,
+				"Threads that read HTTP requests and pass them to the measurement or status threads.");
+	}
+
+	/**
+	 * @return Number of HTTP requests that may wait for a dispatch thread.
+	 */
+	public int getHttpDispatchQueue(int defaultQueue) {
+		return (int) getLong("http.dispatch_queue", defaultQueue,
+				"HTTP requests that may wait for a dispatch thread. More are closed right away.");
+	}
+
+	/**
+	 * @return Number of threads that serve downloads and uploads on the HTTP port.
+	 */
+	public int getHttpMeasureThreads(int defaultThreads) {
+		return (int) getLong("http.measure_threads", defaultThreads,
+				"Threads that serve downloads and uploads on the HTTP port.");
+	}
+
+	/**
+	 * @return Number of downloads and uploads that may wait for a thread.
+	 */
+	public int getHttpMeasureQueue(int defaultQueue) {
+		return (int) getLong("http.measure_queue", defaultQueue,
+				"Downloads and uploads that may wait for a thread. More are rejected with 503.");
+	}
+
+	/**
+	 * @return Number of threads that serve status pages and metrics.
+	 */
+	public int getHttpStatusThreads(int defaultThreads) {
+		return (int) getLong("http.status_threads", defaultThreads, "Threads that serve status pages and metrics.");
+	}
+
+	/**
+	 * @return Number of status requests that may wait for a thread.
+	 */
+	public int getHttpStatusQueue(int defaultQueue) {
+		return (int) getLong("http.status_queue", defaultQueue,
+				"Status requests that may wait for a thread. More are rejected with 503.");
+	}
+
+	/**
+	 * @return Maximal concurrent transfers served to other agents, or zero if unlimited.
+	 */
+	public int getServeMaxTransfers(int defaultValue) {
+		return (int) getLong("serve.max_transfers", defaultValue,
+				"Maximal concurrent downloads and uploads served to other agents. Zero for unlimited.");
+	}
+
+	/**
+	 * @return Maximal concurrent transfers served to a single remote IP, or zero if unlimited.
+	 */
+	public int getServeMaxTransfersPerIp(int defaultValue) {
+		return (int) getLong("serve.max_transfers_per_ip", defaultValue,
+				"Maximal concurrent downloads and uploads served to a single remote IP. Zero for unlimited.");
+	}
+
+	/**
+	 * @return Bandwidth budget in kbps of transfers served to other agents, or zero if unlimited.
+	 */
+	public int getServeMaxKbps(int defaultValue) {
+		return (int) getLong("serve.max_kbps", defaultValue,
+				"Bandwidth budget in kbps of downloads and uploads served to other agents. Zero for unlimited.");
+	}
+
+	/**
+	 * @return Bandwidth budget in kbps of transfers served to a single remote IP, or zero if unlimited.
+	 */
+	public int getServeMaxKbpsPerIp(int defaultValue) {
+		return (int) getLong("serve.max_kbps_per_ip", defaultValue,
+				"Bandwidth budget in kbps of downloads and uploads served to a single remote IP. Zero for unlimited.");
+	}
+
+	/**
+	 * @return Where to keep the last valid announce for a warm start, or empty if it should not be kept.
+	 */
+	public String getAnnounceCacheFile(String defaultFileName) {
+		return getString("announce.cache_file", defaultFileName,
+				"File of the last valid announce, loaded on start so pings start before the first announce. Empty to disable.");
+	}
+
+	/**
+	 * @return How long a cached announce can be used, in seconds.
+	 */
+	public int getAnnounceCacheTtlSec(int defaultTtlSec) {
+		return (int) getLong("announce.cache_ttl_sec", defaultTtlSec,
+				"How long after it was saved the cached announce can be used, when the announce server is unreachable.");
+	}
 }
@@ -0,0 +1,17 @@
+package com.eyalzo.pingagent;
+
+/**
+ * The local configuration file, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface LocalConfigMBean {
+	String getFileName();
+
+	/**
+	 * Read the file again, as in /config_reload.
+	 *
+	 * @return True if read successfully.
+	 */
+	boolean reload();
+}
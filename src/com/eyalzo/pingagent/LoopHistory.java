@@ -0,0 +1,223 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * History of the last loops of a {@link LoopThread}, in a ring of primitive slots, for percentiles of the completion time and the start drift.
+ * <p>
+ * There is a single writer, the loop itself, and any number of readers (the HTTP handlers), without locks. Each slot starts with a stamp, the
+ * loop's sequence number, that the writer clears before changing the slot and sets after. A reader copies a slot between two reads of its stamp,
+ * and drops it if the stamps differ, so a snapshot never mixes two loops. Slots are in a single {@link AtomicLongArray}, so the reads and writes
+ * are ordered. Memory is constant: {@value #FIELDS_COUNT} longs per slot.
+ * <p>
+ * Thread safe, with a single writer.
+ *
+ * @author Eyal Zohar
+ */
+public class LoopHistory {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	//
+	// Fields of a slot
+	//
+	/**
+	 * Loop's sequence number, 1-based, or zero while the slot is being written.
+	 */
+	private static final int FIELD_STAMP = 0;
+	private static final int FIELD_START_TIME_MILLIS = 1;
+	/**
+	 * Actual start minus planned start, in micros.
+	 */
+	private static final int FIELD_DRIFT_MICRO = 2;
+	private static final int FIELD_COMPLETION_MICRO = 3;
+	private static final int FIELD_RESULT = 4;
+	private static final int FIELDS_COUNT = 5;
+	//
+	// Results
+	//
+	public static final int RESULT_SUCCESS = 0;
+	public static final int RESULT_FAILED = 1;
+	public static final int RESULT_EXCEPTION = 2;
+	private static final String[] RESULT_NAMES = { "success", "failed", "exception" };
+	private final int capacity;
+	private final AtomicLongArray slots;
+	/**
+	 * Number of loops added so far. Written by the writer only.
+	 */
+	private volatile long count;
+
+	/**
+	 * Loops in a consistent copy of the history, oldest first.
+	 */
+	public static class Snapshot {
+		public final int size;
+		public final long[] sequences;
+		public final long[] startTimesMillis;
+		public final long[] driftsMicro;
+		public final long[] completionsMicro;
+		public final int[] results;
+
+		private Snapshot(int size) {
+			this.size = size;
+			sequences = new long[size];
+			startTimesMillis = new long[size];
+			driftsMicro = new long[size];
+			completionsMicro = new long[size];
+			results = new int[size];
+		}
+
+		private Snapshot(Snapshot base, int size) {
+			this.size = size;
+			sequences = Arrays.copyOf(base.sequences, size);
+			startTimesMillis = Arrays.copyOf(base.startTimesMillis, size);
+			driftsMicro = Arrays.copyOf(base.driftsMicro, size);
+			completionsMicro = Arrays.copyOf(base.completionsMicro, size);
+			results = Arrays.copyOf(base.results, size);
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of loops to keep.
+	 */
+	public LoopHistory(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		slots = new AtomicLongArray(this.capacity * FIELDS_COUNT);
+	}
+
+	/**
+	 * Add a completed loop, overwriting the oldest when full. To be called by the single writer only.
+	 *
+	 * @param sequence
+	 *            Loop's sequence number, 1-based.
+	 * @param startTimeMillis
+	 *            Start time, wall clock.
+	 * @param driftMicro
+	 *            Actual start minus planned start, in micros.
+	 * @param completionMicro
+	 *            How long the loop took, in micros.
+	 * @param result
+	 *            One of the RESULT_ constants.
+	 */
+	public void add(long sequence, long startTimeMillis, long driftMicro, long completionMicro, int result) {
+		int base = (int) (count % capacity) * FIELDS_COUNT;
+		slots.set(base + FIELD_STAMP, 0);
+		slots.set(base + FIELD_START_TIME_MILLIS, startTimeMillis);
+		slots.set(base + FIELD_DRIFT_MICRO, driftMicro);
+		slots.set(base + FIELD_COMPLETION_MICRO, completionMicro);
+		slots.set(base + FIELD_RESULT, result);
+		slots.set(base + FIELD_STAMP, sequence);
+		count = count + 1;
+	}
+
+	/**
+	 * @return Number of loops added so far, including those that were overwritten.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param maxSize
+	 *            Maximal number of loops, the most recent.
+	 * @return Consistent copy of the last loops, oldest first. Loops that were overwritten while copying are not included.
+	 */
+	public Snapshot getSnapshot(int maxSize) {
+		long end = count;
+		int size = (int) Math.min(Math.min(end, capacity), Math.max(0, maxSize));
+		Snapshot result = new Snapshot(size);
+		int resultSize = 0;
+		for (long pos = end - size; pos < end; pos++) {
+			int base = (int) (pos % capacity) * FIELDS_COUNT;
+			long stamp = slots.get(base + FIELD_STAMP);
+			if (stamp == 0)
+				continue;
+			result.sequences[resultSize] = stamp;
+			result.startTimesMillis[resultSize] = slots.get(base + FIELD_START_TIME_MILLIS);
+			result.driftsMicro[resultSize] = slots.get(base + FIELD_DRIFT_MICRO);
+			result.completionsMicro[resultSize] = slots.get(base + FIELD_COMPLETION_MICRO);
+			result.results[resultSize] = (int) slots.get(base + FIELD_RESULT);
+			// Overwritten while copying
+			if (slots.get(base + FIELD_STAMP) != stamp)
+				continue;
+			// Keep the order, in case the writer went around the ring before the copy started
+			if (resultSize > 0 && stamp <= result.sequences[resultSize - 1])
+				continue;
+			resultSize++;
+		}
+		return resultSize == size ? result : new Snapshot(result, resultSize);
+	}
+
+	public Snapshot getSnapshot() {
+		return getSnapshot(capacity);
+	}
+
+	/**
+	 * @param values
+	 *            Values of a snapshot, not empty. Sorted in place.
+	 * @param divider
+	 *            Unit conversion, for example 1000 for micros to millis.
+	 * @return Exact percentiles and maximum of the values.
+	 */
+	private static ObjectNode getPercentilesAsJson(long[] values, int divider) {
+		ObjectNode result = factory.objectNode();
+		Arrays.sort(values);
+		result.put("p50", getPercentile(values, 50) / divider);
+		result.put("p95", getPercentile(values, 95) / divider);
+		result.put("p99", getPercentile(values, 99) / divider);
+		result.put("max", values[values.length - 1] / divider);
+		return result;
+	}
+
+	/**
+	 * @param sorted
+	 *            Sorted values, not empty.
+	 */
+	private static long getPercentile(long[] sorted, int percent) {
+		int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	/**
+	 * @param historyItems
+	 *            Number of most recent loops to list one by one.
+	 * @return Percentiles of the completion time and the start drift over the whole history, and the last loops.
+	 */
+	public ObjectNode getStatisticsAsJson(int historyItems) {
+		Snapshot snapshot = getSnapshot();
+		ObjectNode result = factory.objectNode();
+		result.put("capacity", capacity);
+		result.put("loops", snapshot.size);
+		if (snapshot.size == 0)
+			return result;
+		LocalConfig.addTimeNodes(result, "since", snapshot.startTimesMillis[0]);
+		result.set("completion_time_ms", getPercentilesAsJson(snapshot.completionsMicro.clone(), 1000));
+		// How late the loops started, compared to plan
+		result.set("start_drift_us", getPercentilesAsJson(snapshot.driftsMicro.clone(), 1));
+
+		// Last loops, one by one
+		ArrayNode itemsArray = result.putArray("last_loops");
+		long prevStartTime = 0;
+		for (int i = Math.max(0, snapshot.size - historyItems); i < snapshot.size; i++) {
+			ObjectNode curNode = itemsArray.addObject();
+			curNode.put("seq", snapshot.sequences[i]);
+			LocalConfig.addTimeNodes(curNode, "start_time", snapshot.startTimesMillis[i]);
+			if (prevStartTime > 0) {
+				curNode.put("start_time_diff_sec", (snapshot.startTimesMillis[i] - prevStartTime) / 1000);
+			}
+			curNode.put("completion_time_ms", snapshot.completionsMicro[i] / 1000);
+			curNode.put("start_drift_us", snapshot.driftsMicro[i]);
+			curNode.put("result", RESULT_NAMES[snapshot.results[i]]);
+			prevStartTime = snapshot.startTimesMillis[i];
+		}
+		return result;
+	}
+}
@@ -0,0 +1,51 @@
+package com.eyalzo.pingagent;
+
+/**
+ * Counters and lag of a {@link LoopThread}, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface LoopMBean {
+	String getName();
+
+	long getIntervalMillis();
+
+	/**
+	 * @return Started loops, including a loop that is running now.
+	 */
+	long getLoopsCount();
+
+	long getCompletedLoopsCount();
+
+	long getLoopsSuccess();
+
+	long getLoopsFailed();
+
+	long getLoopsException();
+
+	/**
+	 * @return Loops that ended after the next loop should have started.
+	 */
+	long getOverruns();
+
+	long getWakeups();
+
+	boolean isRunning();
+
+	/**
+	 * @return Actual start minus planned start of the last loop, in micros.
+	 */
+	long getLastLagMicro();
+
+	/**
+	 * @return 99th percentile of the start lag, in micros, by the histogram's bucket bounds.
+	 */
+	long getLagP99Micro();
+
+	String getLastExceptionMessage();
+
+	/**
+	 * Run the next loop now.
+	 */
+	void wakeup();
+}
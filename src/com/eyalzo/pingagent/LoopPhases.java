@@ -0,0 +1,129 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Time of the named phases of a loop (for example probe, analyze, serialize and report), to tell what takes long when a round runs long.
+ * <p>
+ * The loop calls {@link #begin(int)} when a phase starts, which also ends the previous phase, so there is a single call per phase. The durations
+ * of a loop are kept in a compact array by phase index, published as a whole when the loop ends, and added to a histogram per phase. A phase that
+ * did not run in a loop, for example when there was nothing to ping, is not added to its histogram.
+ * <p>
+ * Thread safe, with a single writer (the loop).
+ *
+ * @author Eyal Zohar
+ */
+public class LoopPhases {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private final String[] names;
+	/**
+	 * Durations of the current loop in nanos, by phase index, or -1 if the phase did not run. Written by the loop only.
+	 */
+	private final long[] current;
+	private int currentPhase = -1;
+	private long currentPhaseStartNanos;
+
+	//
+	// Statistics
+	//
+	/**
+	 * Phase running now, or -1 if none.
+	 */
+	private volatile int statRunningPhase = -1;
+	/**
+	 * Durations of the last completed loop, in the same format as {@link #current}. Never changed after published.
+	 */
+	private volatile long[] statLastLoop;
+	/**
+	 * Durations of each phase in micros.
+	 */
+	private final Histogram[] statHistograms;
+	private final MetricsRegistry.Timer[] metrics;
+
+	/**
+	 * @param loopName
+	 *            Name of the loop, for the metrics.
+	 * @param names
+	 *            Name of each phase, by index.
+	 */
+	public LoopPhases(String loopName, String... names) {
+		this.names = names.clone();
+		current = new long[names.length];
+		statHistograms = new Histogram[names.length];
+		metrics = new MetricsRegistry.Timer[names.length];
+		for (int i = 0; i < names.length; i++) {
+			statHistograms[i] = new Histogram();
+			metrics[i] = MetricsRegistry.DEFAULT.timer("loop_phase_seconds", "Time of a phase of a loop.",
+					LoopThread.DURATION_BOUNDS_MICRO, -6, "loop", loopName, "phase", names[i]);
+		}
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Start a new loop, where no phase ran yet.
+	 */
+	public void startLoop() {
+		for (int i = 0; i < current.length; i++)
+			current[i] = -1;
+		currentPhase = -1;
+		statRunningPhase = -1;
+	}
+
+	/**
+	 * End the current phase, if any, and start the given phase. A phase that runs more than once in a loop accumulates.
+	 *
+	 * @param phase
+	 *            Index of the phase, as in the names given to the constructor.
+	 */
+	public void begin(int phase) {
+		long now = System.nanoTime();
+		endPhase(now);
+		currentPhase = phase;
+		currentPhaseStartNanos = now;
+		statRunningPhase = phase;
+	}
+
+	private void endPhase(long now) {
+		if (currentPhase < 0)
+			return;
+		current[currentPhase] = Math.max(0, current[currentPhase]) + (now - currentPhaseStartNanos);
+		currentPhase = -1;
+	}
+
+	/**
+	 * End the current phase, publish the loop's durations and add them to the histograms.
+	 */
+	public void endLoop() {
+		endPhase(System.nanoTime());
+		statRunningPhase = -1;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] >= 0) {
+				statHistograms[i].record(current[i] / 1000);
+				metrics[i].record(current[i] / 1000);
+			}
+		}
+		statLastLoop = current.clone();
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		int runningPhase = statRunningPhase;
+		result.put("running_phase", runningPhase < 0 ? "" : names[runningPhase]);
+		long[] lastLoop = statLastLoop;
+		if (lastLoop != null) {
+			ObjectNode node = result.putObject("last_loop_us");
+			for (int i = 0; i < names.length; i++) {
+				if (lastLoop[i] >= 0)
+					node.put(names[i], lastLoop[i] / 1000);
+			}
+		}
+		ObjectNode node = result.putObject("phases_us");
+		for (int i = 0; i < names.length; i++)
+			node.set(names[i], statHistograms[i].getAsJson());
+		return result;
+	}
+}
@@ -0,0 +1,81 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of threads shared by all the {@link LoopThread} loops (announce, ping, download).
+ * <p>
+ * Timing is by {@link System#nanoTime()}, as in {@link ScheduledThreadPoolExecutor}, so a wall clock jump (NTP) does not skew or stall the loops.
+ * The loops block during their rounds (pings, downloads, reports), so the pool should have a thread per loop, or a loop may start late, which shows
+ * as lag in its statistics.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class LoopScheduler implements LoopSchedulerMBean {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private final ScheduledThreadPoolExecutor executor;
+	private final AtomicInteger threadsCount = new AtomicInteger();
+
+	/**
+	 * @param threads
+	 *            Number of threads, normally the number of loops.
+	 */
+	public LoopScheduler(int threads) {
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+				r -> new Thread(r, "Loop-" + threadsCount.incrementAndGet()));
+		// Loops are rescheduled on wake-up, so the canceled tasks should not stay in the queue
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @param delayNanos
+	 *            Delay from now, in nanos. Zero or negative to run as soon as possible.
+	 */
+	ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+		return executor.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stop running loops. Loops in progress complete their round.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public int getThreads() {
+		return executor.getCorePoolSize();
+	}
+
+	@Override
+	public int getActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	@Override
+	public int getScheduledLoops() {
+		return executor.getQueue().size();
+	}
+
+	@Override
+	public long getCompletedLoops() {
+		return executor.getCompletedTaskCount();
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("threads", executor.getCorePoolSize());
+		result.put("active_threads", executor.getActiveCount());
+		result.put("scheduled_loops", executor.getQueue().size());
+		result.put("completed_loops", executor.getCompletedTaskCount());
+		return result;
+	}
+}
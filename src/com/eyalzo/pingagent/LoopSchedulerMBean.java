@@ -0,0 +1,19 @@
+package com.eyalzo.pingagent;
+
+/**
+ * Utilization of the {@link LoopScheduler}, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface LoopSchedulerMBean {
+	int getThreads();
+
+	int getActiveThreads();
+
+	/**
+	 * @return Loops waiting for their next round.
+	 */
+	int getScheduledLoops();
+
+	long getCompletedLoops();
+}
@@ -6,18 +6,52 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Wakes up every interval and performs an action.
+ * <p>
+ * Despite the name, a loop does not have a thread of its own: each round runs as a task of a shared {@link LoopScheduler}, and schedules the next
+ * round when it completes. Rounds are planned by {@link System#nanoTime()} on a fixed grid (planned start plus interval), so the loop does not
+ * drift with the time a round takes, and a wall clock jump does not affect it. A round that overruns the next planned start is followed right away,
+ * and the grid continues from there. {@link #wakeup()} moves the next round to now without interrupting anything.
  * 
  * @author Eyal Zohar
  */
-public abstract class LoopThread extends Thread {
+public abstract class LoopThread implements LoopMBean {
 	private static JsonNodeFactory factory = JsonNodeFactory.instance;
-	protected long loopIntervalMillis;
-	protected long nextLoop;
-	protected boolean quit = false;
+	private final String name;
+	protected volatile long loopIntervalMillis;
+	protected volatile boolean quit = false;
+
+	//
+	// Scheduling, under the schedule lock
+	//
+	private final Object scheduleLock = new Object();
+	private LoopScheduler scheduler;
+	private ScheduledFuture<?> future;
+	private boolean running;
+	/**
+	 * Wake-up was requested while a round was running, so the next round should start right after it.
+	 */
+	private boolean wakeupPending;
+	/**
+	 * When the current (or next, if not running) round should start, in nano time.
+	 */
+	private volatile long plannedStartNanos;
+	/**
+	 * When the last (or current, if running) round should have started, in nano time.
+	 */
+	private long lastPlannedStartNanos;
+	/**
+	 * When the next round should start, in nano time. Set when a round starts, and can be changed by the round.
+	 */
+	private volatile long nextLoopNanos;
+	/**
+	 * The pool thread running the current round, or null if not running.
+	 */
+	private volatile Thread runningThread;
 
 	//
 	// Statistics
@@ -25,9 +59,20 @@ public abstract class LoopThread extends Thread {
 	/**
 	 * Current statistics.
 	 */
-	private LoopThreadStats stats;
-	private final int MAX_STATS_HISTORY = 20;
-	private LinkedList<LoopThreadStats> statsHistory = new LinkedList<>();
+	private volatile LoopThreadStats stats;
+	/**
+	 * Number of loops kept for percentiles.
+	 */
+	private static final int HISTORY_CAPACITY = 4096;
+	/**
+	 * Number of last loops to list one by one in the statistics.
+	 */
+	private static final int HISTORY_ITEMS_IN_STATS = 20;
+	private final LoopHistory history = new LoopHistory(HISTORY_CAPACITY);
+	/**
+	 * Time of each phase of the loops.
+	 */
+	private final LoopPhases phases;
 	/**
 	 * Total number of loops, includes an incomplete loop that is running now.
 	 */
@@ -53,11 +98,67 @@ public abstract class LoopThread extends Thread {
 	 * Last time an exception occurred - the time.
 	 */
 	private long statLastExceptionTimeMillis;
-	private long statLastWakeupTime;
+	private volatile long statLastWakeupTime;
+	private long statWakeups;
+	/**
+	 * Actual start minus planned start of each round, in micros.
+	 */
+	private final Histogram statLagMicro = new Histogram();
+	private volatile long statLastLagMicro;
+	/**
+	 * Rounds that ended after the next round should have started.
+	 */
+	private long statOverruns;
+
+	//
+	// Metrics, by the loop's name
+	//
+	private final MetricsRegistry.Counter metricLoopsSuccess;
+	private final MetricsRegistry.Counter metricLoopsFailed;
+	private final MetricsRegistry.Counter metricLoopsException;
+	private final MetricsRegistry.Counter metricOverruns;
+	private final MetricsRegistry.Timer metricDuration;
+	private final MetricsRegistry.Timer metricLag;
+	/**
+	 * Loop durations from 1 mSec to about 4.5 minutes, in micros.
+	 */
+	static final long[] DURATION_BOUNDS_MICRO = MetricsRegistry.exponentialBounds(1000, 4, 10);
+	/**
+	 * Start lag from 100 uSec to about 26 seconds, in micros.
+	 */
+	private static final long[] LAG_BOUNDS_MICRO = MetricsRegistry.exponentialBounds(100, 4, 10);
 
-	public LoopThread(String name, long loopIntervalMillis) {
-		super(name);
+	/**
+	 * @param phaseNames
+	 *            Names of the phases of a loop, by index, as marked by {@link #beginPhase(int)}. Can be empty.
+	 */
+	public LoopThread(String name, long loopIntervalMillis, String... phaseNames) {
+		this.name = name;
 		this.loopIntervalMillis = loopIntervalMillis;
+		this.phases = new LoopPhases(name, phaseNames);
+		MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+		String loopsHelp = "Loops completed, by result.";
+		metricLoopsSuccess = metrics.counter("loops_total", loopsHelp, "loop", name, "result", "success");
+		metricLoopsFailed = metrics.counter("loops_total", loopsHelp, "loop", name, "result", "failed");
+		metricLoopsException = metrics.counter("loops_total", loopsHelp, "loop", name, "result", "exception");
+		metricOverruns = metrics.counter("loop_overruns_total", "Loops that ended after the next loop should have started.",
+				"loop", name);
+		metricDuration = metrics.timer("loop_duration_seconds", "Time it took to complete a loop.", DURATION_BOUNDS_MICRO,
+				-6, "loop", name);
+		metricLag = metrics.timer("loop_start_lag_seconds", "Actual start of a loop minus its planned start.",
+				LAG_BOUNDS_MICRO, -6, "loop", name);
+		metrics.gauge("loop_interval_seconds", "Configured interval between loop starts.",
+				() -> this.loopIntervalMillis / 1000.0, "loop", name);
+	}
+
+	/**
+	 * Mark the start of a phase of the current loop, which also ends the previous phase. To be called by the loop only.
+	 * 
+	 * @param phase
+	 *            Index of the phase, as in the names given to the constructor.
+	 */
+	protected void beginPhase(int phase) {
+		phases.begin(phase);
 	}
 
 	/**
@@ -74,87 +175,176 @@ public abstract class LoopThread extends Thread {
 	 */
 	public abstract boolean runLoop();
 
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Start the first round right away, and the next ones every interval.
+	 * 
+	 * @param scheduler
+	 *            The pool that runs the rounds.
+	 */
+	public void start(LoopScheduler scheduler) {
+		synchronized (scheduleLock) {
+			if (this.scheduler != null)
+				throw new IllegalStateException("Already started");
+			this.scheduler = scheduler;
+			plannedStartNanos = System.nanoTime();
+			future = scheduler.schedule(this::runRound, 0);
+		}
+	}
+
 	/**
-	 * Signals the thread to wakeup by interrupting a sleep.
+	 * Signals the loop to run the next round now, or right after the current round if running. Does not interrupt anything. Ignored if not
+	 * started yet, because the first round starts right away anyway.
 	 */
 	public void wakeup() {
 		statLastWakeupTime = System.currentTimeMillis();
-		this.interrupt();
+		synchronized (scheduleLock) {
+			if (scheduler == null || quit)
+				return;
+			statWakeups++;
+			if (running) {
+				wakeupPending = true;
+				return;
+			}
+			// Reschedule only if the scheduled round did not start yet
+			if (future != null && future.cancel(false)) {
+				plannedStartNanos = System.nanoTime();
+				future = scheduler.schedule(this::runRound, 0);
+			}
+		}
+	}
+
+	/**
+	 * Change the normal interval. If the new interval brings the next round earlier than planned by the old interval, it is moved right away, so a
+	 * shorter interval takes effect now. A longer interval takes effect from the round after the next.
+	 * 
+	 * @param intervalMillis
+	 *            The new interval.
+	 */
+	public void setInterval(long intervalMillis) {
+		synchronized (scheduleLock) {
+			loopIntervalMillis = intervalMillis;
+			if (scheduler == null || quit)
+				return;
+			long now = System.nanoTime();
+			long next = Math.max(now, lastPlannedStartNanos + intervalMillis * 1000000);
+			if (running) {
+				// Planned by the current round, which may have set a shorter interval of its own
+				nextLoopNanos = Math.min(nextLoopNanos, next);
+				return;
+			}
+			if (next >= plannedStartNanos || future == null || !future.cancel(false))
+				return;
+			plannedStartNanos = next;
+			nextLoopNanos = next;
+			future = scheduler.schedule(this::runRound, next - now);
+		}
 	}
 
 	/**
 	 * Set the interval only once, to override the normal interval in special cases. To be called when the loop is running.
 	 * 
 	 * @param intervalMillis
-	 *            When to start the next loop, after the start time of the current.
+	 *            When to start the next loop, after the (planned) start time of the current.
 	 * @return Next loop time.
 	 */
 	public long setIntervalOnce(long intervalMillis) {
-		if (nextLoop > 0 && stats.startTime > 0)
-			nextLoop = stats.startTime + intervalMillis;
-		return nextLoop;
+		nextLoopNanos = plannedStartNanos + intervalMillis * 1000000;
+		return System.currentTimeMillis() + (nextLoopNanos - System.nanoTime()) / 1000000;
 	}
 
-	@Override
-	public void run() {
-		while (true) {
-			// Loop counter considers also loops that are incomplete
-			statLoops++;
-			// Next loop should not be subject to how long it took to perform
-			// the actions
-			stats = new LoopThreadStats(statLoops);
-			nextLoop = stats.startTime + loopIntervalMillis;
+	/**
+	 * A single round, and then scheduling of the next one.
+	 */
+	private void runRound() {
+		synchronized (scheduleLock) {
+			if (quit)
+				return;
+			running = true;
+			wakeupPending = false;
+			lastPlannedStartNanos = plannedStartNanos;
+		}
+		long startNanos = System.nanoTime();
+		statLastLagMicro = (startNanos - plannedStartNanos) / 1000;
+		statLagMicro.record(statLastLagMicro);
+		metricLag.record(statLastLagMicro);
+		runningThread = Thread.currentThread();
 
-			//
-			// Run code
-			//
-			long before = System.nanoTime();
-			boolean success;
-			try {
-				success = (statLoops == 1) ? runFirstTime() : runLoop();
-				if (success) {
-					statLoopsSuccess++;
-				} else {
-					statLoopsFailed++;
-				}
-			} catch (Exception e) {
-				statLoopsException++;
-				statLastExceptionTimeMillis = System.currentTimeMillis();
-				stats.exceptionMessage = e.getMessage();
-				if (stats.exceptionMessage == null) {
-					stats.exceptionMessage = e.getClass().getCanonicalName();
-				}
-				statLastExceptionMessage = stats.exceptionMessage;
-				statLastExceptionStackTrace = getExceptionStackTrace(e);
-			}
+		// Loop counter considers also loops that are incomplete
+		statLoops++;
+		// Next loop should not be subject to how long it took to perform the actions
+		stats = new LoopThreadStats(statLoops);
+		phases.startLoop();
+		nextLoopNanos = plannedStartNanos + loopIntervalMillis * 1000000;
 
-			//
-			// Save stats history
-			//
-			stats.completionTimeMillis = (System.nanoTime() - before) / 1000000;
-			statsHistory.addLast(stats);
-			if (statsHistory.size() > MAX_STATS_HISTORY) {
-				statsHistory.removeFirst();
+		//
+		// Run code
+		//
+		int result = LoopHistory.RESULT_EXCEPTION;
+		try {
+			boolean success = (statLoops == 1) ? runFirstTime() : runLoop();
+			if (success) {
+				statLoopsSuccess++;
+				metricLoopsSuccess.inc();
+				result = LoopHistory.RESULT_SUCCESS;
+			} else {
+				statLoopsFailed++;
+				metricLoopsFailed.inc();
+				result = LoopHistory.RESULT_FAILED;
 			}
-
+		} catch (Exception e) {
+			statLoopsException++;
+			metricLoopsException.inc();
+			statLastExceptionTimeMillis = System.currentTimeMillis();
+			stats.exceptionMessage = e.getMessage();
+			if (stats.exceptionMessage == null) {
+				stats.exceptionMessage = e.getClass().getCanonicalName();
+			}
+			statLastExceptionMessage = stats.exceptionMessage;
+			statLastExceptionStackTrace = getExceptionStackTrace(e);
+		} finally {
+			runningThread = null;
 			//
-			// Sleep
+			// Save stats history
 			//
-			
-			// The interval might have been changed in the loop itself
-
-			long sleepMillis = nextLoop - System.currentTimeMillis();
-			if (sleepMillis > 10 && !quit) {
-				try {
-					Thread.sleep(sleepMillis);
-				} catch (InterruptedException e) {
-					statLastWakeupTime = System.currentTimeMillis();
-				}
-			}
+			long completionMicro = (System.nanoTime() - startNanos) / 1000;
+			metricDuration.record(completionMicro);
+			stats.completionTimeMillis = completionMicro / 1000;
+			phases.endLoop();
+			history.add(stats.sequence, stats.startTime, statLastLagMicro, completionMicro, result);
+			scheduleNext();
+		}
+	}
 
-			// Check for the quit signal
+	/**
+	 * Schedule the next round, by the interval that might have been changed in the round itself.
+	 */
+	private void scheduleNext() {
+		synchronized (scheduleLock) {
+			running = false;
 			if (quit)
 				return;
+			long now = System.nanoTime();
+			long next = wakeupPending ? now : nextLoopNanos;
+			if (next < now) {
+				// Overrun, so continue the grid from now instead of catching up with the missed rounds
+				if (!wakeupPending) {
+					statOverruns++;
+					metricOverruns.inc();
+				}
+				next = now;
+			}
+			plannedStartNanos = next;
+			nextLoopNanos = next;
+			try {
+				future = scheduler.schedule(this::runRound, next - now);
+			} catch (RejectedExecutionException e) {
+				// The scheduler was shut down
+				quit = true;
+			}
 		}
 	}
 
@@ -176,7 +366,10 @@ public abstract class LoopThread extends Thread {
 	 *            Name of the array to create under the given node.
 	 */
 	private void addCurrentStackTrace(ObjectNode node, String name) {
-		StackTraceElement[] stackTrace = this.getStackTrace();
+		Thread thread = runningThread;
+		if (thread == null)
+			return;
+		StackTraceElement[] stackTrace = thread.getStackTrace();
 		if (stackTrace == null || stackTrace.length < 1)
 			return;
 		ArrayNode arrayNode = node.putArray(name);
@@ -204,31 +397,20 @@ public abstract class LoopThread extends Thread {
 		node.put("running", statLoops - statLoopsSuccess - statLoopsFailed - statLoopsException);
 
 		node = result.putObject("last_loop");
-		LocalConfig.addTimeNodes(node, "start_time", stats == null ? 0 : stats.startTime);
-		// Last loop exception message, or empty if none happened
-		node.put("exception_message", stats.exceptionMessage);
-		// How long it took to complete the last loop
-		node.put("completion_time_ms", stats.completionTimeMillis);
-
-		// Stats history
-		if (statsHistory.size() > 0) {
-			ArrayNode itemsArray = result.arrayNode(statsHistory.size());
-			result.set("loops_history", itemsArray);
-			long prevStartTime = 0;
-			for (LoopThreadStats curStats : statsHistory) {
-				ObjectNode curNode = itemsArray.addObject();
-				curNode.put("seq", curStats.sequence);
-				LocalConfig.addTimeNodes(curNode, "start_time", curStats.startTime);
-				if (prevStartTime > 0) {
-					curNode.put("start_time_diff_sec", (curStats.startTime - prevStartTime) / 1000);
-				}
-				curNode.put("completion_time_ms", curStats.completionTimeMillis);
-				// Loop's exception message, or empty if none happened
-				node.put("exception_message", curStats.exceptionMessage);
-				prevStartTime = curStats.startTime;
-			}
+		LoopThreadStats lastStats = stats;
+		LocalConfig.addTimeNodes(node, "start_time", lastStats == null ? 0 : lastStats.startTime);
+		if (lastStats != null) {
+			// Last loop exception message, or empty if none happened
+			node.put("exception_message", lastStats.exceptionMessage);
+			// How long it took to complete the last loop
+			node.put("completion_time_ms", lastStats.completionTimeMillis);
 		}
 
+		// Stats history, with percentiles
+		result.set("history", history.getStatisticsAsJson(HISTORY_ITEMS_IN_STATS));
+		if (phases.size() > 0)
+			result.set("phases", phases.getStatisticsAsJson());
+
 		if (statLoopsException > 0) {
 			node = result.putObject("last_exception");
 			// Last exception message, or empty if never happened
@@ -238,13 +420,21 @@ public abstract class LoopThread extends Thread {
 		}
 
 		// When the next loop will begin
-		result.put("next_loop_sec", (this.nextLoop - now) / 1000);
+		result.put("next_loop_sec", (nextLoopNanos - System.nanoTime()) / 1000000000);
 		// Interval
 		result.put("config_loop_sec", loopIntervalMillis / 1000);
 		// When the last wakeup happened
 		result.put("last_wakeup",
 				statLastWakeupTime == 0 ? "(never)" : String.format("%,d Sec", (now - statLastWakeupTime) / 1000));
 
+		// Planned versus actual start
+		node = result.putObject("scheduling");
+		node.put("running", runningThread != null);
+		node.put("last_lag_us", statLastLagMicro);
+		node.set("lag_us", statLagMicro.getAsJson());
+		node.put("overruns", statOverruns);
+		node.put("wakeups", statWakeups);
+
 		this.addCurrentStackTrace(result, "stack_trace");
 
 		return result;
@@ -255,10 +445,70 @@ public abstract class LoopThread extends Thread {
 	}
 
 	/**
-	 * Mark a flag to quit and send an interrupt. Call {@link Thread#interrupt()} if no need to quit but just to run the loop now.
+	 * @return Number of loops that completed, which changes when the loop's results or statistics change.
+	 */
+	public long getCompletedLoopsCount() {
+		return history.getCount();
+	}
+
+	@Override
+	public long getIntervalMillis() {
+		return loopIntervalMillis;
+	}
+
+	@Override
+	public long getLoopsSuccess() {
+		return statLoopsSuccess;
+	}
+
+	@Override
+	public long getLoopsFailed() {
+		return statLoopsFailed;
+	}
+
+	@Override
+	public long getLoopsException() {
+		return statLoopsException;
+	}
+
+	@Override
+	public long getOverruns() {
+		return statOverruns;
+	}
+
+	@Override
+	public long getWakeups() {
+		return statWakeups;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return runningThread != null;
+	}
+
+	@Override
+	public long getLastLagMicro() {
+		return statLastLagMicro;
+	}
+
+	@Override
+	public long getLagP99Micro() {
+		return statLagMicro.getPercentile(99);
+	}
+
+	@Override
+	public String getLastExceptionMessage() {
+		return statLastExceptionMessage;
+	}
+
+	/**
+	 * Mark a flag to quit, and cancel the next round. A round in progress completes.
 	 */
 	public void quit() {
-		this.quit = true;
-		this.interrupt();
+		synchronized (scheduleLock) {
+			this.quit = true;
+			if (future != null)
+				future.cancel(false);
+		}
 	}
 }
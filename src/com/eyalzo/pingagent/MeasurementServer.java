@@ -0,0 +1,740 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking HTTP/1.1 server for measurement traffic only, on its own port, separate from the JDK HTTP server that serves the status json.
+ * <p>
+ * A single acceptor thread hands new connections to a bounded number of worker threads, each running its own selector. So a burst of peer
+ * downloads does not starve status requests, and the number of threads does not grow with the number of connections. Supported commands:
+ * <ul>
+ * <li>GET /download?size=N - random binary content, sent with zero-copy from {@link DownloadContent}.
+ * <li>GET /download?duration_ms=N - random binary content, chunked, streamed until the duration expires or the client closes.
+ * <li>POST /upload - body is drained to nowhere, and the response is a small json with the received bytes and server time.
+ * <li>GET or POST /echo - the request body (if any) is returned as is, for application level RTT.
+ * </ul>
+ * Connections are kept alive, as in HTTP/1.1, unless the client asks to close. Downloads and uploads over the {@link AdmissionControl} limits are
+ * rejected right away with 429 and a Retry-After header.
+ *
+ * @author Eyal Zohar
+ */
+public class MeasurementServer {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private static final long DEFAULT_DOWNLOAD_SIZE = 20000;
+	private static final long MAX_DOWNLOAD_SIZE = 500000000;
+	private static final long MAX_DOWNLOAD_DURATION_MILLIS = 30000;
+	/**
+	 * Chunk size of duration-bounded downloads, where the size is not known in advance.
+	 */
+	private static final int DURATION_CHUNK_SIZE = 256 * 1024;
+	/**
+	 * Maximal bytes to write to a single connection before serving the others of the same worker.
+	 */
+	private static final int WRITE_QUANTUM = 1024 * 1024;
+	/**
+	 * Read buffer per connection. The request head must fit into it.
+	 */
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	/**
+	 * Echo body must fit into the read buffer, as it is returned as is.
+	 */
+	private static final int MAX_ECHO_SIZE = READ_BUFFER_SIZE;
+	private final InetSocketAddress addr;
+	private final int backlog;
+	private final DownloadContent downloadContent;
+	private final AdmissionControl admissionControl;
+	private final ServedTrafficStats servedTrafficStats;
+	private final Worker[] workers;
+	private ServerSocketChannel serverChannel;
+	private Thread acceptorThread;
+	private volatile boolean quit;
+
+	//
+	// Statistics
+	//
+	private final LongAdder statAccepted = new LongAdder();
+	private final AtomicInteger statActiveConnections = new AtomicInteger();
+	private final LongAdder statRequestsDownload = new LongAdder();
+	private final LongAdder statRequestsUpload = new LongAdder();
+	private final LongAdder statRequestsEcho = new LongAdder();
+	private final LongAdder statRequestsError = new LongAdder();
+	private final LongAdder statRequestsRejected = new LongAdder();
+	private final LongAdder statBytesUploaded = new LongAdder();
+
+	/**
+	 * @param addr
+	 *            Where to listen.
+	 * @param backlog
+	 *            Listen backlog, for bursts of new connections.
+	 * @param workersCount
+	 *            Number of worker threads, each with its own selector.
+	 * @param downloadContent
+	 *            Random content to serve on download requests.
+	 * @param admissionControl
+	 *            Limits the downloads and uploads, shared with the status server.
+	 * @param servedTrafficStats
+	 *            Statistics of the downloads and uploads, shared with the status server.
+	 */
+	public MeasurementServer(InetSocketAddress addr, int backlog, int workersCount, DownloadContent downloadContent,
+			AdmissionControl admissionControl, ServedTrafficStats servedTrafficStats) {
+		this.addr = addr;
+		this.backlog = Math.max(1, backlog);
+		this.downloadContent = downloadContent;
+		this.admissionControl = admissionControl;
+		this.servedTrafficStats = servedTrafficStats;
+		this.workers = new Worker[Math.max(1, workersCount)];
+	}
+
+	/**
+	 * Bind and start the acceptor and worker threads.
+	 *
+	 * @throws IOException
+	 *             If failed to listen, for example when the port is already in use.
+	 */
+	public void start() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(addr, backlog);
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker("Measure-" + i);
+			workers[i].start();
+		}
+
+		acceptorThread = new Thread("Measure-accept") {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		};
+		acceptorThread.setDaemon(true);
+		acceptorThread.start();
+	}
+
+	private void acceptLoop() {
+		int next = 0;
+		while (!quit) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+			statAccepted.increment();
+			// Round robin between the workers
+			workers[next].add(channel);
+			next = (next + 1) % workers.length;
+		}
+	}
+
+	public void quit() {
+		quit = true;
+		closeQuietly(serverChannel);
+		for (Worker curWorker : workers) {
+			if (curWorker != null)
+				curWorker.selector.wakeup();
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Worker thread with its own selector, serving the connections it was given by the acceptor.
+	 */
+	private class Worker extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+		/**
+		 * Downloads that wait for the bandwidth budget, with no interest in the socket until their time comes. Used by the worker's thread only.
+		 */
+		private final ArrayList<Connection> pacedConnections = new ArrayList<>();
+
+		Worker(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void add(SocketChannel channel) {
+			pendingChannels.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Stop writing to a connection until the given time. Called by the worker's thread only.
+		 */
+		void pause(Connection connection, long resumeNanos) {
+			connection.resumeNanos = resumeNanos;
+			pacedConnections.add(connection);
+		}
+
+		/**
+		 * Continue writing to the paced connections whose time has come.
+		 *
+		 * @return Millis until the next paced connection should continue, at least 1, or zero if there are none.
+		 */
+		private long resumePacedConnections() {
+			if (pacedConnections.isEmpty())
+				return 0;
+			long now = System.nanoTime();
+			ArrayList<Connection> due = new ArrayList<>();
+			Iterator<Connection> iter = pacedConnections.iterator();
+			while (iter.hasNext()) {
+				Connection connection = iter.next();
+				if (connection.closed || connection.resumeNanos <= now) {
+					iter.remove();
+					if (!connection.closed)
+						due.add(connection);
+				}
+			}
+			// May pause again, so only after the scan
+			for (Connection connection : due) {
+				try {
+					connection.onWritable();
+				} catch (IOException | RuntimeException e) {
+					connection.close();
+				}
+			}
+			long result = 0;
+			for (Connection connection : pacedConnections) {
+				long waitMillis = Math.max(1, (connection.resumeNanos - now + 999999) / 1000000);
+				result = result == 0 ? waitMillis : Math.min(result, waitMillis);
+			}
+			return result;
+		}
+
+		@Override
+		public void run() {
+			while (!quit) {
+				try {
+					long timeoutMillis = resumePacedConnections();
+					if (timeoutMillis > 0)
+						selector.select(timeoutMillis);
+					else
+						selector.select();
+				} catch (IOException e) {
+					continue;
+				}
+
+				// New connections from the acceptor
+				SocketChannel channel;
+				while ((channel = pendingChannels.poll()) != null) {
+					try {
+						Connection connection = new Connection(channel, this);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+						statActiveConnections.incrementAndGet();
+					} catch (IOException e) {
+						closeQuietly(channel);
+					}
+				}
+
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							connection.onReadable();
+						if (key.isValid() && key.isWritable())
+							connection.onWritable();
+					} catch (IOException | RuntimeException e) {
+						connection.close();
+					}
+				}
+			}
+
+			// Quit
+			for (SelectionKey key : selector.keys()) {
+				((Connection) key.attachment()).close();
+			}
+			closeQuietly(selector);
+		}
+	}
+
+	/**
+	 * Single client connection, with possibly several requests one after the other.
+	 */
+	private class Connection {
+		private static final int STATE_READ_REQUEST = 0;
+		private static final int STATE_READ_UPLOAD = 1;
+		private static final int STATE_READ_ECHO = 2;
+		private static final int STATE_WRITE = 3;
+		private final SocketChannel channel;
+		private final InetAddress remoteIp;
+		private final Worker worker;
+		SelectionKey key;
+		/**
+		 * Received bytes not processed yet, in write mode.
+		 */
+		private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private int state = STATE_READ_REQUEST;
+		private boolean keepAlive;
+		private boolean closed;
+		/**
+		 * When a paced download should continue, in nano time. See {@link Worker#pause(Connection, long)}.
+		 */
+		private long resumeNanos;
+		/**
+		 * Response head, and small body if any, in read mode.
+		 */
+		private ByteBuffer out;
+		/**
+		 * Download body size and the number of bytes already sent. For a duration-bounded download the size grows chunk by chunk.
+		 */
+		private long bodySize, bodyOffset;
+		/**
+		 * When a duration-bounded download should end, in nano time, or zero if the download has a fixed size.
+		 */
+		private long durationDeadline;
+		/**
+		 * Duration-bounded download only. True when the last (empty) chunk is being sent.
+		 */
+		private boolean lastChunk;
+		private long cpuNanos;
+		/**
+		 * Upload and echo body bytes left to read.
+		 */
+		private long requestBodyRemaining;
+		private long uploadReceived;
+		private long uploadFirstByteTime;
+		/**
+		 * The admitted download or upload in progress, or null if none.
+		 */
+		private AdmissionControl.Ticket ticket;
+		/**
+		 * Statistics of the download or upload in progress, or null if none.
+		 */
+		private ServedTrafficStats.Transfer transfer;
+		private boolean transferUpload;
+
+		Connection(SocketChannel channel, Worker worker) throws IOException {
+			this.channel = channel;
+			this.worker = worker;
+			this.remoteIp = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+		}
+
+		void onReadable() throws IOException {
+			int readBytes = channel.read(in);
+			if (readBytes < 0) {
+				close();
+				return;
+			}
+			process();
+		}
+
+		void onWritable() throws IOException {
+			write();
+		}
+
+		/**
+		 * Process the received bytes according to the state, as long as there is something to process.
+		 */
+		private void process() throws IOException {
+			while (!closed) {
+				if (state == STATE_READ_UPLOAD) {
+					// Throw away the body, but count it
+					int bytes = (int) Math.min(in.position(), requestBodyRemaining);
+					if (bytes > 0 && uploadFirstByteTime == 0)
+						uploadFirstByteTime = System.nanoTime();
+					discard(bytes);
+					requestBodyRemaining -= bytes;
+					uploadReceived += bytes;
+					if (requestBodyRemaining > 0)
+						return;
+					long serverMicro = uploadFirstByteTime == 0 ? 0 : (System.nanoTime() - uploadFirstByteTime) / 1000;
+					statBytesUploaded.add(uploadReceived);
+					endTransfer(uploadReceived, true);
+					respond(200, "application/json",
+							("{\"received_bytes\":" + uploadReceived + ",\"server_us\":" + serverMicro + "}")
+									.getBytes(StandardCharsets.US_ASCII),
+							0, 0, null);
+					return;
+				}
+
+				if (state == STATE_READ_ECHO) {
+					if (in.position() < requestBodyRemaining)
+						return;
+					byte[] body = new byte[(int) requestBodyRemaining];
+					in.flip();
+					in.get(body);
+					in.compact();
+					respond(200, "application/octet-stream", body, 0, 0, null);
+					return;
+				}
+
+				if (state != STATE_READ_REQUEST)
+					return;
+
+				// Look for the end of the request head
+				int headEnd = findHeadEnd();
+				if (headEnd < 0) {
+					if (!in.hasRemaining()) {
+						keepAlive = false;
+						respondError(431);
+					}
+					return;
+				}
+				String head = new String(in.array(), 0, headEnd, StandardCharsets.US_ASCII);
+				discard(headEnd + 4);
+				handleRequest(head);
+			}
+		}
+
+		/**
+		 * @return Position of the CRLFCRLF that ends the request head, or -1 if not received yet.
+		 */
+		private int findHeadEnd() {
+			byte[] array = in.array();
+			for (int i = 0; i + 3 < in.position(); i++) {
+				if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n')
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Remove processed bytes from the start of the read buffer.
+		 */
+		private void discard(int bytes) {
+			if (bytes <= 0)
+				return;
+			in.flip();
+			in.position(bytes);
+			in.compact();
+		}
+
+		private void handleRequest(String head) throws IOException {
+			String[] lines = head.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+				keepAlive = false;
+				respondError(400);
+				return;
+			}
+			String method = requestLine[0];
+			String uri = requestLine[1];
+			keepAlive = requestLine[2].equals("HTTP/1.1");
+			long contentLength = 0;
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0)
+					continue;
+				String name = lines[i].substring(0, colon).trim();
+				String value = lines[i].substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						contentLength = -1;
+					}
+				} else if (name.equalsIgnoreCase("Connection")) {
+					if (value.equalsIgnoreCase("close"))
+						keepAlive = false;
+					else if (value.equalsIgnoreCase("keep-alive"))
+						keepAlive = true;
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					// Chunked requests are not supported, and the body length must be known
+					contentLength = -1;
+				}
+			}
+			if (contentLength < 0) {
+				keepAlive = false;
+				respondError(411);
+				return;
+			}
+
+			int queryPos = uri.indexOf('?');
+			String path = (queryPos < 0 ? uri : uri.substring(0, queryPos)).toLowerCase();
+			String query = queryPos < 0 ? null : uri.substring(queryPos + 1);
+
+			if (path.equals("/download") && method.equals("GET") && contentLength == 0) {
+				statRequestsDownload.increment();
+				long durationMillis = Math.min(MAX_DOWNLOAD_DURATION_MILLIS,
+						HttpUtils.paramAsLong(query, "duration_ms", 0));
+				long size = Math.min(MAX_DOWNLOAD_SIZE, HttpUtils.paramAsLong(query, "size", DEFAULT_DOWNLOAD_SIZE));
+				if (durationMillis < 0 || size <= 0) {
+					respondError(400);
+					return;
+				}
+				if (!admit(false, 0))
+					return;
+				respond(200, "application/octet-stream", null, durationMillis > 0 ? 0 : size, durationMillis, null);
+			} else if (path.equals("/upload") && method.equals("POST")) {
+				statRequestsUpload.increment();
+				if (!admit(true, contentLength))
+					return;
+				state = STATE_READ_UPLOAD;
+				requestBodyRemaining = contentLength;
+				uploadReceived = 0;
+				uploadFirstByteTime = 0;
+			} else if (path.equals("/echo")) {
+				statRequestsEcho.increment();
+				if (contentLength > MAX_ECHO_SIZE) {
+					keepAlive = false;
+					respondError(413);
+					return;
+				}
+				state = STATE_READ_ECHO;
+				requestBodyRemaining = contentLength;
+			} else {
+				// Body of unknown requests is not read, so the connection cannot be reused
+				keepAlive = false;
+				respondError(404);
+			}
+		}
+
+		private void respondError(int status) throws IOException {
+			statRequestsError.increment();
+			respond(status, "text/plain", new byte[0], 0, 0, null);
+		}
+
+		/**
+		 * Admit a download or upload, or reject it right away with 429 and a Retry-After header.
+		 *
+		 * @param upload
+		 *            True for upload, false for download.
+		 * @param contentLength
+		 *            Request body size, that is not read when rejected, so the connection cannot be reused.
+		 * @return True if admitted, or false if the rejection is already being sent.
+		 */
+		private boolean admit(boolean upload, long contentLength) throws IOException {
+			ticket = admissionControl.admit(remoteIp);
+			if (ticket != null) {
+				transfer = servedTrafficStats.start();
+				transferUpload = upload;
+				return true;
+			}
+			statRequestsRejected.increment();
+			if (contentLength > 0)
+				keepAlive = false;
+			respond(429, "text/plain", new byte[0], 0, 0,
+					"Retry-After: " + admissionControl.getRetryAfterSeconds(remoteIp) + "\r\n");
+			return false;
+		}
+
+		/**
+		 * End the admitted transfer, if any, with the bytes it transferred.
+		 *
+		 * @param complete
+		 *            False if the connection was closed before the transfer ended.
+		 */
+		private void endTransfer(long bytes, boolean complete) {
+			if (ticket == null)
+				return;
+			// The bytes written so far, also when the client went away in the middle
+			if (!transferUpload)
+				downloadContent.recordServed(bytes, cpuNanos);
+			ticket.release(bytes);
+			ticket = null;
+			transfer.end(remoteIp, transferUpload, bytes, complete);
+			transfer = null;
+		}
+
+		/**
+		 * Start writing a response.
+		 *
+		 * @param smallBody
+		 *            Body to send right after the head. Null if the body is download content.
+		 * @param downloadSize
+		 *            Download content size, if the small body is null and the download has a fixed size.
+		 * @param durationMillis
+		 *            Download duration, if the small body is null and the download is duration-bounded. Zero otherwise.
+		 * @param extraHeaders
+		 *            Optional headers, each ending with CRLF. Can be null.
+		 */
+		private void respond(int status, String contentType, byte[] smallBody, long downloadSize, long durationMillis,
+				String extraHeaders) throws IOException {
+			String length = (smallBody == null && durationMillis > 0) ? "Transfer-Encoding: chunked"
+					: "Content-Length: " + (smallBody == null ? downloadSize : smallBody.length);
+			String head = "HTTP/1.1 " + status + " " + getReasonPhrase(status) + "\r\nContent-Type: " + contentType
+					+ "\r\n" + length + "\r\nAccess-Control-Allow-Origin: *\r\n"
+					+ (extraHeaders == null ? "" : extraHeaders) + "Connection: " + (keepAlive ? "keep-alive" : "close")
+					+ "\r\n\r\n";
+			byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+			if (smallBody == null) {
+				out = ByteBuffer.wrap(headBytes);
+			} else {
+				out = ByteBuffer.allocate(headBytes.length + smallBody.length);
+				out.put(headBytes).put(smallBody).flip();
+			}
+			bodySize = smallBody == null && durationMillis <= 0 ? downloadSize : 0;
+			bodyOffset = 0;
+			durationDeadline = smallBody == null && durationMillis > 0
+					? System.nanoTime() + durationMillis * 1000000L
+					: 0;
+			lastChunk = false;
+			cpuNanos = 0;
+			state = STATE_WRITE;
+			write();
+		}
+
+		/**
+		 * Write as much as the socket accepts (up to a quantum, to be fair with other connections), and wait for the socket to be writable again if
+		 * not complete. A download over the bandwidth budget stops writing until the budget allows more.
+		 */
+		private void write() throws IOException {
+			boolean download = bodySize > 0 || durationDeadline > 0;
+			long cpuBefore = download ? DownloadContent.getThreadCpuNanos() : 0;
+			boolean complete = false;
+			long waitNanos = 0;
+			long quantumEnd = bodyOffset + WRITE_QUANTUM;
+			while (true) {
+				// Head, chunk header or small body
+				if (out.hasRemaining()) {
+					channel.write(out);
+					if (out.hasRemaining())
+						break;
+				}
+				// Download content
+				if (bodyOffset < bodySize) {
+					long written = downloadContent.transferTo(channel, bodyOffset,
+							Math.min(bodySize, quantumEnd) - bodyOffset);
+					bodyOffset += written;
+					if (ticket != null) {
+						waitNanos = ticket.charge(written);
+						// A duration-bounded download still ends on time
+						if (durationDeadline > 0)
+							waitNanos = Math.min(waitNanos, durationDeadline - System.nanoTime());
+						if (waitNanos > 0)
+							break;
+					}
+					if (bodyOffset < bodySize)
+						break;
+				}
+				// Fixed size, or duration-bounded with the last chunk already sent
+				if (durationDeadline == 0 || lastChunk) {
+					complete = true;
+					break;
+				}
+				// Next chunk, or the last (empty) one, each after the previous chunk's CRLF
+				String prefix = bodySize > 0 ? "\r\n" : "";
+				if (System.nanoTime() >= durationDeadline) {
+					out = ByteBuffer.wrap((prefix + "0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+					lastChunk = true;
+				} else {
+					out = ByteBuffer.wrap((prefix + Integer.toHexString(DURATION_CHUNK_SIZE) + "\r\n")
+							.getBytes(StandardCharsets.US_ASCII));
+					bodySize += DURATION_CHUNK_SIZE;
+				}
+				if (bodyOffset >= quantumEnd)
+					break;
+			}
+			if (download)
+				cpuNanos += DownloadContent.getThreadCpuNanos() - cpuBefore;
+
+			// Over the bandwidth budget, so wait for the time to come and not for the socket
+			if (!complete && waitNanos > 0) {
+				key.interestOps(0);
+				worker.pause(this, System.nanoTime() + waitNanos);
+				return;
+			}
+			// Not complete, so wait for the socket
+			if (!complete) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			// Complete
+			if (download)
+				endTransfer(bodyOffset, true);
+			if (!keepAlive) {
+				close();
+				return;
+			}
+			state = STATE_READ_REQUEST;
+			out = null;
+			key.interestOps(SelectionKey.OP_READ);
+			// The next request might be here already
+			process();
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			statActiveConnections.decrementAndGet();
+			// A transfer that did not complete is charged with what was transferred so far
+			endTransfer(transferUpload ? uploadReceived : bodyOffset, false);
+			if (key != null)
+				key.cancel();
+			closeQuietly(channel);
+		}
+	}
+
+	private static String getReasonPhrase(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 400:
+			return "Bad Request";
+		case 404:
+			return "Not Found";
+		case 411:
+			return "Length Required";
+		case 413:
+			return "Payload Too Large";
+		case 429:
+			return "Too Many Requests";
+		case 431:
+			return "Request Header Fields Too Large";
+		default:
+			return "Error";
+		}
+	}
+
+	public int getPort() {
+		return addr.getPort();
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("address", addr.toString());
+		result.put("backlog", backlog);
+		result.put("workers", workers.length);
+		result.put("connections_accepted", statAccepted.sum());
+		result.put("connections_active", statActiveConnections.get());
+		ObjectNode node = result.putObject("requests");
+		node.put("download", statRequestsDownload.sum());
+		node.put("upload", statRequestsUpload.sum());
+		node.put("echo", statRequestsEcho.sum());
+		node.put("error", statRequestsError.sum());
+		node.put("rejected", statRequestsRejected.sum());
+		result.put("bytes_uploaded", statBytesUploaded.sum());
+		return result;
+	}
+}
@@ -0,0 +1,310 @@
+package com.eyalzo.pingagent;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and fixed-bucket histograms, rendered in the Prometheus text exposition format for /metrics.
+ * <p>
+ * A metric is registered once, normally in a static field or a constructor, and the returned handle is updated on the hot path with
+ * {@link LongAdder} increments only, without allocation or locks. Gauges are read from a supplier at scrape time. A scrape walks the registered
+ * series into a single buffer, so it costs microseconds, unlike the json status pages. Registering the same name and labels again returns the
+ * existing series, so two instances of a class share it.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class MetricsRegistry {
+	/**
+	 * The registry of the agent, served on /metrics.
+	 */
+	public static final MetricsRegistry DEFAULT = new MetricsRegistry("pingagent_");
+	private static final String TYPE_COUNTER = "counter";
+	private static final String TYPE_GAUGE = "gauge";
+	private static final String TYPE_HISTOGRAM = "histogram";
+	/**
+	 * Prefix of all the metric names.
+	 */
+	private final String prefix;
+	/**
+	 * Metric families in registration order, copied on registration so a scrape reads them without locks.
+	 */
+	private volatile Family[] families = new Family[0];
+
+	/**
+	 * All the series of a single metric name.
+	 */
+	private static class Family {
+		final String name;
+		final String help;
+		final String type;
+		volatile Series[] series = new Series[0];
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * A single series, with its labels.
+	 */
+	private static abstract class Series {
+		/**
+		 * Formatted labels without the braces, for example: loop="Ping",result="success". Empty if none.
+		 */
+		final String labels;
+
+		Series(String labels) {
+			this.labels = labels;
+		}
+
+		abstract void writeTo(StringBuilder buffer, String name);
+
+		void writeName(StringBuilder buffer, String name, String suffix) {
+			buffer.append(name).append(suffix);
+			if (!labels.isEmpty())
+				buffer.append('{').append(labels).append('}');
+			buffer.append(' ');
+		}
+	}
+
+	/**
+	 * Monotonic counter.
+	 */
+	public static class Counter extends Series {
+		private final LongAdder value = new LongAdder();
+
+		private Counter(String labels) {
+			super(labels);
+		}
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void add(long delta) {
+			value.add(delta);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+
+		@Override
+		void writeTo(StringBuilder buffer, String name) {
+			writeName(buffer, name, "");
+			buffer.append(value.sum()).append('\n');
+		}
+	}
+
+	private static class Gauge extends Series {
+		private final DoubleSupplier supplier;
+
+		private Gauge(String labels, DoubleSupplier supplier) {
+			super(labels);
+			this.supplier = supplier;
+		}
+
+		@Override
+		void writeTo(StringBuilder buffer, String name) {
+			writeName(buffer, name, "");
+			double value = supplier.getAsDouble();
+			if (value == (long) value)
+				buffer.append((long) value);
+			else
+				buffer.append(value);
+			buffer.append('\n');
+		}
+	}
+
+	/**
+	 * Histogram with fixed bucket bounds, recorded as longs in a small unit (for example micros) and exposed in the base unit (seconds).
+	 */
+	public static class Timer extends Series {
+		private final long[] bounds;
+		/**
+		 * The "le" label of each bucket, in the base unit.
+		 */
+		private final String[] boundLabels;
+		/**
+		 * Non-cumulative counts, where the last is above all bounds.
+		 */
+		private final LongAdder[] buckets;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final int exponent;
+
+		private Timer(String labels, long[] bounds, int exponent) {
+			super(labels);
+			this.bounds = bounds.clone();
+			this.exponent = exponent;
+			boundLabels = new String[bounds.length];
+			for (int i = 0; i < bounds.length; i++)
+				boundLabels[i] = toBaseUnit(bounds[i], exponent);
+			buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		/**
+		 * @param value
+		 *            Value in the recorded unit, for example micros. Negative is recorded as zero.
+		 */
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			int bucket = 0;
+			while (bucket < bounds.length && value > bounds[bucket])
+				bucket++;
+			buckets[bucket].increment();
+			count.increment();
+			sum.add(value);
+		}
+
+		@Override
+		void writeTo(StringBuilder buffer, String name) {
+			String separator = labels.isEmpty() ? "" : ",";
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				buffer.append(name).append("_bucket{").append(labels).append(separator).append("le=\"")
+						.append(i < bounds.length ? boundLabels[i] : "+Inf").append("\"} ").append(cumulative).append('\n');
+			}
+			writeName(buffer, name, "_sum");
+			buffer.append(toBaseUnit(sum.sum(), exponent)).append('\n');
+			writeName(buffer, name, "_count");
+			// Not less than the last bucket, even if recorded in between
+			buffer.append(Math.max(count.sum(), cumulative)).append('\n');
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            Prefix of all the metric names, for example "app_".
+	 */
+	public MetricsRegistry(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param name
+	 *            Name without the prefix, ending with "_total" by convention.
+	 * @param labels
+	 *            Label names and values, in pairs.
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) register(name, help, TYPE_COUNTER, formatLabels(labels), null, null, 0);
+	}
+
+	/**
+	 * @param supplier
+	 *            Current value, read on every scrape. Must be fast and thread safe.
+	 * @param labels
+	 *            Label names and values, in pairs.
+	 */
+	public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		register(name, help, TYPE_GAUGE, formatLabels(labels), supplier, null, 0);
+	}
+
+	/**
+	 * @param bounds
+	 *            Upper bound of each bucket, ascending, in the recorded unit.
+	 * @param exponent
+	 *            Power of ten of the recorded unit in the base unit, for example -6 for micros recorded and seconds exposed.
+	 * @param labels
+	 *            Label names and values, in pairs.
+	 */
+	public Timer timer(String name, String help, long[] bounds, int exponent, String... labels) {
+		return (Timer) register(name, help, TYPE_HISTOGRAM, formatLabels(labels), null, bounds, exponent);
+	}
+
+	private synchronized Series register(String name, String help, String type, String labels, DoubleSupplier supplier,
+			long[] bounds, int exponent) {
+		String fullName = prefix + name;
+		Family family = null;
+		for (Family curFamily : families) {
+			if (curFamily.name.equals(fullName)) {
+				family = curFamily;
+				break;
+			}
+		}
+		if (family == null) {
+			family = new Family(fullName, help, type);
+			Family[] newFamilies = Arrays.copyOf(families, families.length + 1);
+			newFamilies[families.length] = family;
+			families = newFamilies;
+		} else if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric " + fullName + " is already a " + family.type);
+		}
+		for (Series curSeries : family.series) {
+			if (curSeries.labels.equals(labels))
+				return curSeries;
+		}
+		Series series = type == TYPE_COUNTER ? new Counter(labels)
+				: type == TYPE_GAUGE ? new Gauge(labels, supplier) : new Timer(labels, bounds, exponent);
+		Series[] newSeries = Arrays.copyOf(family.series, family.series.length + 1);
+		newSeries[family.series.length] = series;
+		family.series = newSeries;
+		return series;
+	}
+
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be in name and value pairs");
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0)
+				result.append(',');
+			result.append(labels[i]).append("=\"");
+			String value = labels[i + 1] == null ? "" : labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"')
+					result.append('\\').append(c);
+				else if (c == '\n')
+					result.append("\\n");
+				else
+					result.append(c);
+			}
+			result.append('"');
+		}
+		return result.toString();
+	}
+
+	private static String toBaseUnit(long value, int exponent) {
+		return BigDecimal.valueOf(value).scaleByPowerOfTen(exponent).stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * @return Bounds that start at the given value and grow by the given factor, for {@link #timer(String, String, long[], int, String...)}.
+	 */
+	public static long[] exponentialBounds(long start, int factor, int count) {
+		long[] result = new long[count];
+		long bound = Math.max(1, start);
+		for (int i = 0; i < count; i++, bound *= factor)
+			result[i] = bound;
+		return result;
+	}
+
+	/**
+	 * @return All the metrics in the Prometheus text exposition format, version 0.0.4.
+	 */
+	public String getAsText() {
+		StringBuilder buffer = new StringBuilder(16 * 1024);
+		for (Family family : families) {
+			Series[] series = family.series;
+			if (series.length == 0)
+				continue;
+			buffer.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			buffer.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Series curSeries : series)
+				curSeries.writeTo(buffer, family.name);
+		}
+		return buffer.toString();
+	}
+}
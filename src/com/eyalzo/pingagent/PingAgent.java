@@ -3,9 +3,12 @@ package com.eyalzo.pingagent;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Main.
@@ -65,6 +68,31 @@ for i in $machines; do echo $i; ssh -n -f -oBatchMode=yes -o ConnectTimeout=10 -
  * <li>157 2020-01-01 Eyal Zohar - Ping and download executers are configurable.
  * <li>158 2021-12-05 Eyal Zohar - Move wan.ninja to https.
  * <li>159 2023-03-13 Eyal Zohar - Security fixes upon request. Mainly due to Java deserialization attack detection, that is not our fault but a bug in the detection tool, but we better "fix it" instead of arguing that the agent is fine.
+ * <li>160 2026-10-18 Eyal Zohar - Keep-alive downloads: a cold download on a new connection, followed by warm downloads on the same connection.
+ * <li>161 2026-10-18 Eyal Zohar - Download governor with global, per-agent and per-region concurrency limits and an optional bandwidth budget. Downloads are tagged with their concurrency.
+ * <li>162 2026-10-18 Eyal Zohar - Upload speed test: /upload drains the request body, and the download thread performs upload jobs from the announce.
+ * <li>163 2026-10-18 Eyal Zohar - Download content is pre-generated on tmpfs and memory-mapped, served in large chunks, up to 500MB per download. Bytes served per CPU second.
+ * <li>164 2026-10-18 Eyal Zohar - Dedicated non-blocking measurement server (download, upload, echo) on its own port, separate from the status server.
+ * <li>165 2026-10-18 Eyal Zohar - Duration-bounded downloads (download_duration), streamed chunked by the peer until duration_ms expires.
+ * <li>166 2026-10-18 Eyal Zohar - Admission control of served downloads and uploads: concurrency and kbps limits, global and per remote IP, with 429 and Retry-After.
+ * <li>167 2026-10-18 Eyal Zohar - Served traffic statistics (/served): bytes, active transfers, size, duration and throughput histograms, and totals per peer.
+ * <li>168 2026-10-18 Eyal Zohar - Download series keyed by DownloadKey instead of URL, with plans (encoded request, announced timeout) prepared once per announce.
+ * <li>169 2026-10-18 Eyal Zohar - Incremental announce: If-None-Match and list_version, 304 not modified, clients_diff (add and remove), gzip.
+ * <li>170 2026-10-18 Eyal Zohar - Streaming announce parser (AnnounceParser) reading straight from the connection, one agent at a time.
+ * <li>171 2026-10-18 Eyal Zohar - Targets are packed IPv4 and port longs in an open-addressing table, without regex or InetAddress per agent.
+ * <li>172 2026-10-18 Eyal Zohar - Last valid announce is kept on disk and loaded on start, with a TTL.
+ * <li>173 2026-10-18 Eyal Zohar - Pings are scheduled by announce rank under an optional per-round budget, with per-tier coverage statistics.
+ * <li>174 2026-10-18 Eyal Zohar - Announce and reports use jitter and capped exponential backoff, honoring Retry-After.
+ * <li>175 2026-10-18 Eyal Zohar - Loops run on a small shared scheduler with monotonic timing, non-interrupting wake-up and start-lag statistics.
+ * <li>176 2026-10-18 Eyal Zohar - Loop history in a lock-free ring of 4096 loops, with completion time and start drift percentiles.
+ * <li>177 2026-10-18 Eyal Zohar - Per-phase loop timing (snapshot, probe, analyze, serialize, report) with histograms in the thread statistics.
+ * <li>178 2026-10-18 Eyal Zohar - Status pages served from pre-serialized snapshots, with ETag, gzip and coalesced builds.
+ * <li>179 2026-10-18 Eyal Zohar - Metrics registry with counters, gauges and histograms, served in Prometheus text format on /metrics.
+ * <li>180 2026-10-18 Eyal Zohar - Add /stream, pushing ping and download results as NDJSON lines as they complete, with per-subscriber bounded buffers, slow-consumer dropping and filters by type, target and region.
+ * <li>181 2026-10-18 Eyal Zohar - Separate bounded HTTP thread pools for dispatch, downloads/uploads, status pages and /stream, sized from the local config, with fast 503 on overload and per-command request, latency and bytes-out metrics.
+ * <li>182 2026-10-18 Eyal Zohar - JMX MBeans for the loops (counters, lag, wake-up), ping and download round summaries, the loop scheduler and HTTP pools, the announce config and the local config (reload).
+ * <li>183 2026-10-18 Eyal Zohar - The announce config is published as immutable versioned snapshots with change listeners; reads take no lock, each ping and download round uses one snapshot, and a shorter interval re-arms the loop right away.
+ * <li>184 2026-10-18 Eyal Zohar - JMH benchmarks of the hot paths, with allocation profiling, in a separate module.
  * </ul>
  * 
  * @author Eyal Zohar
@@ -73,7 +101,7 @@ public class PingAgent {
 	/**
 	 * Version number. Must be changed on every commit with code changes.
 	 */
-	private static final int APP_VERSION = 159;
+	private static final int APP_VERSION = 184;
 	/**
 	 * Application name, to report to external remote entities.
 	 */
@@ -82,8 +110,42 @@ public class PingAgent {
 	 * The TCP port where the server listens.
 	 */
 	private static final int HTTP_SERVER_PORT = 5001;
-	private static final int HTTP_SERVER_BACKLOG = 10;
-	private static final int HTTP_SERVER_THREADS = 100;
+	/**
+	 * Defaults of the HTTP server's thread pools, that can be overridden in the local config file. Each class of requests has its own bounded pool,
+	 * so downloads served to other agents cannot starve the status pages, and an overload is rejected with 503 instead of queued.
+	 */
+	private static final int HTTP_SERVER_BACKLOG = 64;
+	private static final int HTTP_DISPATCH_THREADS = 2;
+	private static final int HTTP_DISPATCH_QUEUE = 64;
+	private static final int HTTP_MEASURE_THREADS = 16;
+	private static final int HTTP_MEASURE_QUEUE = 16;
+	private static final int HTTP_STATUS_THREADS = 2;
+	private static final int HTTP_STATUS_QUEUE = 32;
+	/**
+	 * Threads shared by the announce, ping and download loops, one per loop because their rounds block.
+	 */
+	private static final int LOOP_SCHEDULER_THREADS = 3;
+	/**
+	 * Concurrent /stream subscribers, each holding an HTTP server thread for as long as it is connected.
+	 */
+	private static final int STREAM_MAX_SUBSCRIBERS = 8;
+	/**
+	 * Domain of the MBeans, as seen in jconsole and the other JMX tools.
+	 */
+	private static final String MBEAN_DOMAIN = "com.eyalzo.pingagent";
+	/**
+	 * Defaults of the non-blocking measurement server, that can be overridden in the local config file.
+	 */
+	private static final int MEASURE_SERVER_PORT = 5002;
+	private static final int MEASURE_SERVER_BACKLOG = 128;
+	private static final int MEASURE_SERVER_WORKERS = 1;
+	/**
+	 * Defaults of the admission control of transfers served to other agents, that can be overridden in the local config file. Zero is unlimited.
+	 */
+	private static final int SERVE_MAX_TRANSFERS = 16;
+	private static final int SERVE_MAX_TRANSFERS_PER_IP = 4;
+	private static final int SERVE_MAX_KBPS = 0;
+	private static final int SERVE_MAX_KBPS_PER_IP = 0;
 	/**
 	 * Base URL for the announce. Need to close it with announce count as number, and then the closing '}'.
 	 */
@@ -95,6 +157,11 @@ public class PingAgent {
 			+ HTTP_SERVER_PORT + "&app=" + APP_NAME + "&version=" + APP_VERSION;
 
 	private static final String LOCAL_CONFIG_FILE_NAME = "/opt/cbn/app.configs";
+	/**
+	 * Defaults of the last valid announce kept on disk, that can be overridden in the local config file.
+	 */
+	private static final String ANNOUNCE_CACHE_FILE_NAME = "/opt/cbn/ping_agent_announce.cache";
+	private static final int ANNOUNCE_CACHE_TTL_SEC = 6 * 60 * 60;
 
 	public static void main(String[] args) {
 		System.out.println("Ping Agent ver. " + APP_VERSION);
@@ -119,49 +186,130 @@ public class PingAgent {
 		// Remote configuration from the ping server
 		Config config = new Config();
 
+		//
+		// Measurement server (download, upload, echo), before the announce so other agents can use it right away
+		//
+		DownloadContent downloadContent = new DownloadContent();
+		// Shared by both servers, because they share the link and the CPU
+		AdmissionControl admissionControl = new AdmissionControl(localConfig.getServeMaxTransfers(SERVE_MAX_TRANSFERS),
+				localConfig.getServeMaxTransfersPerIp(SERVE_MAX_TRANSFERS_PER_IP),
+				localConfig.getServeMaxKbps(SERVE_MAX_KBPS), localConfig.getServeMaxKbpsPerIp(SERVE_MAX_KBPS_PER_IP));
+		ServedTrafficStats servedTrafficStats = new ServedTrafficStats();
+		MeasurementServer measurementServer = null;
+		int measurePort = localConfig.getMeasurePort(MEASURE_SERVER_PORT);
+		if (measurePort > 0) {
+			measurementServer = new MeasurementServer(new InetSocketAddress(measurePort),
+					localConfig.getMeasureBacklog(MEASURE_SERVER_BACKLOG),
+					localConfig.getMeasureWorkers(MEASURE_SERVER_WORKERS), downloadContent, admissionControl,
+					servedTrafficStats);
+			try {
+				measurementServer.start();
+				System.out.println("Measurement server listens on port " + measurePort);
+			} catch (IOException e) {
+				// Not fatal, because the main HTTP server can serve downloads too
+				System.out.println("Cannot listen to measurement port " + measurePort + ". Error: " + e);
+				measurementServer = null;
+				measurePort = 0;
+			}
+		}
+
+		//
+		// Ping, download and announce threads, created first so the cached announce can be set before they start
+		//
+		ResultStream resultStream = new ResultStream(STREAM_MAX_SUBSCRIBERS);
+		PingThread pingThread = new PingThread(PING_REPORT_URL_BASE, config, resultStream);
+		DownloadThread downloadThread = new DownloadThread(DOWNLOAD_REPORT_URL_BASE, config, resultStream);
+		String announceUrlBase = ANNOUNCE_URL_BASE + machineName + "&network_id=" + localConfig.getNetworkId()
+				+ "&comment=&cloud_provider=" + localConfig.getCloudName() + "&cloud_region="
+				+ localConfig.getCloudRegion() + "&measure_port=" + measurePort;
+		String announceCacheFileName = localConfig.getAnnounceCacheFile(ANNOUNCE_CACHE_FILE_NAME);
+		AnnounceCache announceCache = announceCacheFileName == null || announceCacheFileName.isEmpty() ? null
+				: new AnnounceCache(announceCacheFileName,
+						localConfig.getAnnounceCacheTtlSec(ANNOUNCE_CACHE_TTL_SEC) * 1000L);
+		AnnounceThread announceThread = new AnnounceThread(announceUrlBase, pingThread, downloadThread, config,
+				announceCache);
+		resultStream.setRegionResolver(announceThread::getRegionName);
+		if (announceThread.loadCache())
+			System.out.println("Loaded cached announce from " + announceCacheFileName);
+		LoopScheduler loopScheduler = new LoopScheduler(LOOP_SCHEDULER_THREADS);
+
 		//
 		// Ping thread
 		//
-		PingThread pingThread = new PingThread(PING_REPORT_URL_BASE, config);
-		pingThread.start();
+		pingThread.start(loopScheduler);
 		System.out.println("Started ping_thread, reporting to " + PING_REPORT_URL_BASE);
 
 		//
 		// Download thread
 		//
-		DownloadThread downloadThread = new DownloadThread(DOWNLOAD_REPORT_URL_BASE, config);
-		downloadThread.start();
+		downloadThread.start(loopScheduler);
 		System.out.println("Started download_thread, reporting to " + DOWNLOAD_REPORT_URL_BASE);
 
 		//
 		// Announce loop thread
 		//
-		String announceUrlBase = ANNOUNCE_URL_BASE + machineName + "&network_id=" + localConfig.getNetworkId()
-				+ "&comment=&cloud_provider=" + localConfig.getCloudName() + "&cloud_region="
-				+ localConfig.getCloudRegion();
-		AnnounceThread announceThread = new AnnounceThread(announceUrlBase, pingThread, downloadThread, config);
-		announceThread.start();
+		announceThread.start(loopScheduler);
 
 		//
 		// HTTP server
 		//
 
+		// Send small responses immediately, or Nagle and delayed-ACK add tens of mSec to every warm download and upload
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
 		// Use the agent's static port
 		InetSocketAddress addr = new InetSocketAddress(HTTP_SERVER_PORT);
 		// Try to listen (will fail if already running)
 		HttpServer httpServer = null;
 		try {
-			httpServer = HttpServer.create(addr, HTTP_SERVER_BACKLOG);
+			httpServer = HttpServer.create(addr, localConfig.getHttpBacklog(HTTP_SERVER_BACKLOG));
 		} catch (IOException e) {
 			System.out.println("Cannot listen to " + addr + ". Error: " + e);
 			System.exit(-1);
 		}
 		// Start running
 		System.out.println("Listen on \"" + machineName + "\" " + addr);
-		httpServer.createContext("/",
-				new PingHttpHandler(APP_VERSION, announceThread, pingThread, downloadThread, localConfig));
-		ExecutorService pool = Executors.newFixedThreadPool(HTTP_SERVER_THREADS);
-		httpServer.setExecutor(pool);
+		// Reads the requests and passes them on, or closes them when even its queue is full
+		HttpPool dispatchPool = new HttpPool("HttpDispatch", localConfig.getHttpDispatchThreads(HTTP_DISPATCH_THREADS),
+				localConfig.getHttpDispatchQueue(HTTP_DISPATCH_QUEUE));
+		HttpPool measurePool = new HttpPool("HttpMeasure", localConfig.getHttpMeasureThreads(HTTP_MEASURE_THREADS),
+				localConfig.getHttpMeasureQueue(HTTP_MEASURE_QUEUE));
+		HttpPool statusPool = new HttpPool("HttpStatus", localConfig.getHttpStatusThreads(HTTP_STATUS_THREADS),
+				localConfig.getHttpStatusQueue(HTTP_STATUS_QUEUE));
+		HttpPool streamPool = new HttpPool("HttpStream", STREAM_MAX_SUBSCRIBERS, 0);
+		httpServer.createContext("/", new PingHttpHandler(APP_VERSION, announceThread, pingThread, downloadThread,
+				localConfig, downloadContent, admissionControl, servedTrafficStats, measurementServer, resultStream,
+				dispatchPool, measurePool, statusPool, streamPool));
+		httpServer.setExecutor(dispatchPool);
 		httpServer.start();
+
+		//
+		// JMX, for JVM monitoring tools
+		//
+		registerMBean(announceThread, LoopMBean.class, "type=Loop,name=" + announceThread.getName());
+		registerMBean(pingThread, LoopMBean.class, "type=Loop,name=" + pingThread.getName());
+		registerMBean(downloadThread, LoopMBean.class, "type=Loop,name=" + downloadThread.getName());
+		registerMBean(pingThread, PingRoundMBean.class, "type=PingRound");
+		registerMBean(downloadThread, DownloadRoundMBean.class, "type=DownloadRound");
+		registerMBean(loopScheduler, LoopSchedulerMBean.class, "type=LoopScheduler");
+		for (HttpPool pool : new HttpPool[] { dispatchPool, measurePool, statusPool, streamPool })
+			registerMBean(pool, HttpPoolMBean.class, "type=HttpPool,name=" + pool.getName());
+		registerMBean(config, ConfigMBean.class, "type=Config");
+		registerMBean(localConfig, LocalConfigMBean.class, "type=LocalConfig");
+	}
+
+	/**
+	 * Register a bean on the platform MBean server, under the agent's domain.
+	 * 
+	 * @param keys
+	 *            Keys of the bean's name, for example "type=Loop,name=Ping".
+	 */
+	private static <T> void registerMBean(T bean, Class<T> beanInterface, String keys) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(bean, beanInterface),
+					new ObjectName(MBEAN_DOMAIN + ":" + keys));
+		} catch (JMException e) {
+			System.out.println("Cannot register MBean " + keys + ". Error: " + e);
+		}
 	}
 }
\ No newline at end of file
@@ -2,16 +2,23 @@ package com.eyalzo.pingagent;
 
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.Random;
+import java.util.HashMap;
+import java.util.Map.Entry;
 
 /**
  * Handling HTTP requests.
@@ -27,56 +34,278 @@ public class PingHttpHandler implements HttpHandler {
 	private final LocalConfig localConfig;
 	private final long startTime = System.currentTimeMillis();
 	//
-	// Download (actually upload) buffers
+	// Download (actually upload) content
 	//
-	private byte[] buffer_20k;
-	private final static long MAX_DOWNLOAD_BUFFER_SIZE = 1000000;
+	private final DownloadContent downloadContent;
+	/**
+	 * Limits the downloads and uploads served to other agents.
+	 */
+	private final AdmissionControl admissionControl;
+	/**
+	 * Statistics of the downloads and uploads served to other agents.
+	 */
+	private final ServedTrafficStats servedTrafficStats;
+	/**
+	 * The dedicated measurement server, for statistics. Can be null if not running.
+	 */
+	private final MeasurementServer measurementServer;
+	/**
+	 * Ping and download results, pushed to /stream subscribers as they complete.
+	 */
+	private final ResultStream resultStream;
+	private final static long DEFAULT_DOWNLOAD_SIZE = 20000;
+	/**
+	 * Where upload content is read to, and thrown away. Shared by all handler threads, because the content is not used.
+	 */
+	private final byte[] uploadBuffer = new byte[64 * 1024];
+	private final static long MAX_DOWNLOAD_SIZE = 500000000;
+	private final static long MAX_DOWNLOAD_DURATION_MILLIS = 30000;
+	private final static int HTTP_TOO_MANY_REQUESTS = 429;
+	/**
+	 * Status pages are rebuilt on every loop completion, and at least this often for the parts that change all the time.
+	 */
+	private final static long STATUS_MAX_AGE_MILLIS = 5000;
+	/**
+	 * Serialized status pages by command, shared by all requests.
+	 */
+	private final HashMap<String, StatusCache> statusCaches = new HashMap<>();
+	/**
+	 * Threads of the downloads and uploads.
+	 */
+	private final HttpPool measurePool;
+	/**
+	 * Threads of the status pages and metrics.
+	 */
+	private final HttpPool statusPool;
+	/**
+	 * Threads of the /stream subscribers, each held for as long as the subscriber is connected.
+	 */
+	private final HttpPool streamPool;
+	/**
+	 * Threads that read the requests and pass them to the other pools, for statistics.
+	 */
+	private final HttpPool dispatchPool;
+	/**
+	 * Metrics by command. Not modified after construction.
+	 */
+	private final HashMap<String, Endpoint> endpoints = new HashMap<>();
+	private final Endpoint endpointOther;
+
+	/**
+	 * Metrics of a single command.
+	 */
+	private static class Endpoint {
+		/**
+		 * Time to answer, including the wait for a thread, from 100 uSec to about 26 seconds.
+		 */
+		private static final long[] TIME_BOUNDS_MICRO = MetricsRegistry.exponentialBounds(100, 4, 10);
+		final MetricsRegistry.Counter requests;
+		final MetricsRegistry.Counter rejected;
+		final MetricsRegistry.Counter bytesOut;
+		final MetricsRegistry.Timer time;
+
+		Endpoint(String command) {
+			MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+			requests = metrics.counter("http_requests_total", "Requests to the HTTP server, by command.", "command",
+					command);
+			rejected = metrics.counter("http_rejected_total", "Requests rejected with 503 because the pool was full.",
+					"command", command);
+			bytesOut = metrics.counter("http_response_bytes_total", "Response bytes, including downloads.", "command",
+					command);
+			time = metrics.timer("http_request_seconds", "Time to answer a request, including the wait for a thread.",
+					TIME_BOUNDS_MICRO, -6, "command", command);
+		}
+	}
+
+	/**
+	 * Counts the response bytes, for the metrics.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		/**
+		 * Written by the thread that serves the request only.
+		 */
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
 
 	/**
 	 * @param version
 	 *            Software version, to be displayed in every returned json.
 	 * @param announeThread
 	 *            Announce thread, for statistics under "announce" in the result json.
+	 * @param downloadContent
+	 *            Random content to serve on download requests.
+	 * @param admissionControl
+	 *            Limits the downloads and uploads served to other agents, shared with the measurement server.
+	 * @param servedTrafficStats
+	 *            Statistics of the downloads and uploads served to other agents, shared with the measurement server.
+	 * @param measurementServer
+	 *            The dedicated measurement server, for statistics. Can be null if not running.
+	 * @param resultStream
+	 *            Ping and download results, for /stream.
+	 * @param dispatchPool
+	 *            Threads that read the requests, for statistics.
+	 * @param measurePool
+	 *            Threads of the downloads and uploads.
+	 * @param statusPool
+	 *            Threads of the status pages and metrics.
+	 * @param streamPool
+	 *            Threads of the /stream subscribers.
 	 */
 	public PingHttpHandler(int version, AnnounceThread announeThread, PingThread pingThread,
-			DownloadThread downloadThread, LocalConfig localConfig) {
+			DownloadThread downloadThread, LocalConfig localConfig, DownloadContent downloadContent,
+			AdmissionControl admissionControl, ServedTrafficStats servedTrafficStats,
+			MeasurementServer measurementServer, ResultStream resultStream, HttpPool dispatchPool, HttpPool measurePool,
+			HttpPool statusPool, HttpPool streamPool) {
 		this.version = version;
 		this.announeThread = announeThread;
 		this.pingThread = pingThread;
 		this.downloadThread = downloadThread;
 		this.localConfig = localConfig;
-		initBuffers();
-	}
-
-	private void initBuffers() {
-		Random rd = new Random();
-		buffer_20k = new byte[20 * 1000];
-		rd.nextBytes(buffer_20k);
+		this.downloadContent = downloadContent;
+		this.admissionControl = admissionControl;
+		this.servedTrafficStats = servedTrafficStats;
+		this.measurementServer = measurementServer;
+		this.resultStream = resultStream;
+		this.dispatchPool = dispatchPool;
+		this.measurePool = measurePool;
+		this.statusPool = statusPool;
+		this.streamPool = streamPool;
+
+		// Status pages, served from snapshots
+		statusCaches.put("/announce_thread", new StatusCache("announce_thread", () -> {
+			ObjectNode jsonRoot = getSnapshotRoot();
+			jsonRoot.set("announce_thread", announeThread.getStatisticsAsJson(true));
+			return jsonRoot;
+		}, announeThread::getCompletedLoopsCount, STATUS_MAX_AGE_MILLIS));
+		statusCaches.put("/ping_thread", new StatusCache("ping_thread", () -> {
+			ObjectNode jsonRoot = getSnapshotRoot();
+			jsonRoot.set("ping_thread", pingThread.getStatisticsAsJson());
+			return jsonRoot;
+		}, pingThread::getCompletedLoopsCount, STATUS_MAX_AGE_MILLIS));
+		statusCaches.put("/download_thread", new StatusCache("download_thread", () -> {
+			ObjectNode jsonRoot = getSnapshotRoot();
+			jsonRoot.set("download_thread", downloadThread.getStatisticsAsJson());
+			return jsonRoot;
+		}, downloadThread::getCompletedLoopsCount, STATUS_MAX_AGE_MILLIS));
+		StatusCache mainCache = new StatusCache("main", this::getMainJson,
+				() -> announeThread.getCompletedLoopsCount() + pingThread.getCompletedLoopsCount()
+						+ downloadThread.getCompletedLoopsCount(),
+				STATUS_MAX_AGE_MILLIS);
+		statusCaches.put("/main", mainCache);
+		statusCaches.put("/index", mainCache);
+		statusCaches.put("/home", mainCache);
+		statusCaches.put("/root", mainCache);
+
+		// Metrics
+		MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+		for (String command : new String[] { "/download", "/upload", "/stream", "/metrics", "/memory", "/served", "/config",
+				"/config_reload", "/help", "/main", "/announce_thread", "/ping_thread", "/download_thread" })
+			endpoints.put(command, new Endpoint(command));
+		// Aliases of /main are counted as /main
+		for (Entry<String, StatusCache> entry : statusCaches.entrySet())
+			endpoints.put(entry.getKey(), endpoints.get("/" + entry.getValue().getName()));
+		endpointOther = new Endpoint("other");
+		metrics.gauge("info", "Software version.", () -> 1, "version", Integer.toString(version));
+		metrics.gauge("uptime_seconds", "Time since the agent started.",
+				() -> (System.currentTimeMillis() - startTime) / 1000);
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		metrics.gauge("heap_used_bytes", "Heap in use.", () -> memoryBean.getHeapMemoryUsage().getUsed());
 	}
 
+	/**
+	 * Pass the request to the pool of its class, or reject it right away with 503 if that pool is full, so an overload of one class does not delay
+	 * the others, and does not pile up.
+	 */
 	@Override
 	public void handle(HttpExchange httpExchange) throws IOException {
 		long before = System.nanoTime();
 		String command = httpExchange.getRequestURI().getPath().toLowerCase();
+		Endpoint endpoint = endpoints.getOrDefault(command, endpointOther);
+		endpoint.requests.inc();
+		HttpPool pool = command.equals("/download") || command.equals("/upload") ? measurePool
+				: command.equals("/stream") ? streamPool : statusPool;
+		CountingOutputStream out = new CountingOutputStream(httpExchange.getResponseBody());
+		httpExchange.setStreams(null, out);
+		boolean accepted = pool.offer(() -> {
+			try {
+				handleCommand(httpExchange, command, before);
+			} catch (IOException | RuntimeException e) {
+				// Usually the client disconnected. Closes the connection if the response is incomplete
+				httpExchange.close();
+			} finally {
+				endpoint.bytesOut.add(out.count);
+				endpoint.time.record((System.nanoTime() - before) / 1000);
+			}
+		});
+		if (accepted)
+			return;
+		endpoint.rejected.inc();
+		httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+		httpExchange.getResponseHeaders().set("Retry-After", "1");
+		httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+		httpExchange.close();
+	}
 
+	private void handleCommand(HttpExchange httpExchange, String command, long before) throws IOException {
 		// Request for binary random bytes
 		if (command.equals("/download")) {
 			handleBinaryDownload(httpExchange, command);
 			return;
 		}
 
+		// Request to drain binary bytes, for upload speed tests
+		if (command.equals("/upload")) {
+			handleBinaryUpload(httpExchange);
+			return;
+		}
+
+		// Results as they complete, until the client disconnects
+		if (command.equals("/stream")) {
+			handleStream(httpExchange);
+			return;
+		}
+
+		// Status pages, already serialized
+		StatusCache statusCache = statusCaches.get(command);
+		if (statusCache != null) {
+			sendStatusSnapshot(httpExchange, statusCache);
+			return;
+		}
+
+		// Metrics for Prometheus
+		if (command.equals("/metrics")) {
+			byte[] response = MetricsRegistry.DEFAULT.getAsText().getBytes(StandardCharsets.UTF_8);
+			httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+			httpExchange.getResponseBody().write(response);
+			httpExchange.getResponseBody().close();
+			return;
+		}
+
 		ObjectNode jsonRoot = factory.objectNode();
 		addBasicProperties(jsonRoot, httpExchange);
 
 		// By command
 		if (command.equals("/memory")) {
 			jsonRoot.set("memory", getMemoryJson());
-		} else if (command.equals("/announce_thread")) {
-			jsonRoot.set("announce_thread", announeThread.getStatisticsAsJson(true));
-		} else if (command.equals("/ping_thread")) {
-			jsonRoot.set("ping_thread", pingThread.getStatisticsAsJson());
-		} else if (command.equals("/download_thread")) {
-			jsonRoot.set("download_thread", downloadThread.getStatisticsAsJson());
+		} else if (command.equals("/served")) {
+			jsonRoot.set("served", servedTrafficStats.getStatisticsAsJson());
 		} else if (command.equals("/config")) {
 			jsonRoot.set("config", localConfig.getStatisticsAsJson());
 		} else if (command.equals("/config_reload")) {
@@ -84,18 +313,13 @@ public class PingHttpHandler implements HttpHandler {
 			jsonRoot.set("config", localConfig.getStatisticsAsJson());
 		} else if (command.equals("/help")) {
 			jsonRoot.set("supported_commands", getSupportedCommands(httpExchange));
-		} else if (command.equals("/main") || command.equals("/index") || command.equals("/home") || command.equals("/root")) {
-			jsonRoot.set("announce_thread", announeThread.getStatisticsAsJson(false));
-			// Ping results statistics, without the detailed results
-			jsonRoot.set("ping_thread", pingThread.getStatisticsAsJsonMinimal());
-			// Ping results statistics, without the detailed results
-			jsonRoot.set("download_thread", downloadThread.getStatisticsAsJsonMinimal());
 		} else {
 			// Show an error, so the security tools will not think the agent is vulnerable to Java Deserialization Attack
 			httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
 			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_FORBIDDEN, 0);
 			httpExchange.getResponseBody().flush();
 			httpExchange.getResponseBody().close();
+			return;
 		}
 
 		// Time it took to process in ms with 0.1 precision
@@ -114,23 +338,238 @@ public class PingHttpHandler implements HttpHandler {
 	/**
 	 * Provides random buffer to the HTTP client.
 	 * <p>
-	 * Optionally, the size in specified in the request as "size" parameter.
+	 * Optionally, the size in specified in the request as "size" parameter. Alternatively, a "duration_ms" parameter asks for a chunked response that
+	 * streams until the duration expires or the client closes the connection.
+	 * <p>
+	 * A "size" download has a fixed length and the request body is consumed, so the connection is kept alive for the next (warm) download, unless
+	 * the client asked to close it. A "duration_ms" download is chunked, and ends at the deadline or when the client closes the connection.
+	 * <p>
+	 * Rejected with 429 if over the admission control limits.
 	 */
 	private void handleBinaryDownload(HttpExchange httpExchange, String command) throws IOException {
+		// Consume the request, or the connection cannot be reused
+		httpExchange.getRequestBody().close();
 		String query = httpExchange.getRequestURI().getQuery();
-		long size = Math.min(MAX_DOWNLOAD_BUFFER_SIZE, HttpUtils.paramAsLong(query, "size", buffer_20k.length));
-		if (size <= 0)
+		long durationMillis = Math.min(MAX_DOWNLOAD_DURATION_MILLIS, HttpUtils.paramAsLong(query, "duration_ms", 0));
+		long size = Math.min(MAX_DOWNLOAD_SIZE, HttpUtils.paramAsLong(query, "size", DEFAULT_DOWNLOAD_SIZE));
+		if (durationMillis <= 0 && size <= 0) {
+			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+			httpExchange.close();
 			return;
+		}
+		AdmissionControl.Ticket ticket = admit(httpExchange);
+		if (ticket == null)
+			return;
+		ServedTrafficStats.Transfer transfer = servedTrafficStats.start();
+		if (durationMillis > 0) {
+			handleDurationDownload(httpExchange, durationMillis, ticket, transfer);
+			return;
+		}
+		long written = 0;
+		long cpuBefore = DownloadContent.getThreadCpuNanos();
+		try {
+			httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+			httpExchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, size);
+			downloadContent.writeTo(httpExchange.getResponseBody(), size, ticket);
+			httpExchange.getResponseBody().flush();
+			httpExchange.getResponseBody().close();
+		} finally {
+			// The bytes written so far, also when the client went away in the middle
+			written = ticket.getCharged();
+			downloadContent.recordServed(written, DownloadContent.getThreadCpuNanos() - cpuBefore);
+			ticket.release(written);
+			transfer.end(httpExchange.getRemoteAddress().getAddress(), false, written, written == size);
+		}
+	}
+
+	/**
+	 * Streams random content with chunked encoding until the duration expires or the client closes the connection.
+	 */
+	private void handleDurationDownload(HttpExchange httpExchange, long durationMillis, AdmissionControl.Ticket ticket,
+			ServedTrafficStats.Transfer transfer) throws IOException {
 		httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
 		httpExchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
-		httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, size);
-		for (int i = (int) size; i > 0; i -= buffer_20k.length) {
-			httpExchange.getResponseBody().write(buffer_20k, 0, Math.min(buffer_20k.length, i));
+		long cpuBefore = DownloadContent.getThreadCpuNanos();
+		long deadline = System.nanoTime() + durationMillis * 1000000L;
+		// Zero length means chunked
+		httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+		long written = 0;
+		boolean complete = false;
+		try {
+			downloadContent.writeUntil(httpExchange.getResponseBody(), deadline, ticket);
+			httpExchange.getResponseBody().close();
+			complete = true;
+		} finally {
+			// The bytes written so far, also when the client closed the connection, which is a normal way to stop
+			written = ticket.getCharged();
+			downloadContent.recordServed(written, DownloadContent.getThreadCpuNanos() - cpuBefore);
+			ticket.release(written);
+			transfer.end(httpExchange.getRemoteAddress().getAddress(), false, written, complete);
+			httpExchange.close();
 		}
-		httpExchange.getResponseBody().flush();
+	}
+
+	/**
+	 * Stream ping and download results as json lines (NDJSON), as they complete, until the client disconnects. Optional "type", "target" and
+	 * "region" parameters filter the results on the server side.
+	 * <p>
+	 * Rejected with 503 if there are too many subscribers, because each holds a thread for as long as it is connected.
+	 */
+	private void handleStream(HttpExchange httpExchange) throws IOException {
+		httpExchange.getRequestBody().close();
+		String query = httpExchange.getRequestURI().getQuery();
+		ResultStream.Filter filter = new ResultStream.Filter(HttpUtils.paramAsString(query, "type"),
+				HttpUtils.paramAsString(query, "target"), HttpUtils.paramAsString(query, "region"));
+		ResultStream.Subscriber subscriber = resultStream.subscribe(filter,
+				httpExchange.getRemoteAddress().toString());
+		httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+		if (subscriber == null) {
+			httpExchange.getResponseHeaders().set("Retry-After", "60");
+			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+			httpExchange.close();
+			return;
+		}
+		try {
+			httpExchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+			httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			// Zero length means chunked
+			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+			subscriber.writeTo(httpExchange.getResponseBody());
+		} catch (IOException e) {
+			// The client disconnected
+		} finally {
+			resultStream.unsubscribe(subscriber);
+			httpExchange.close();
+		}
+	}
+
+	/**
+	 * Admit a download or upload, or reject it right away with 429 and a Retry-After header.
+	 *
+	 * @return The ticket to release when the transfer ends, or null if rejected and the response was already sent.
+	 */
+	private AdmissionControl.Ticket admit(HttpExchange httpExchange) throws IOException {
+		InetAddress remoteIp = httpExchange.getRemoteAddress().getAddress();
+		AdmissionControl.Ticket ticket = admissionControl.admit(remoteIp);
+		if (ticket != null)
+			return ticket;
+		httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+		httpExchange.getResponseHeaders().set("Retry-After",
+				Integer.toString(admissionControl.getRetryAfterSeconds(remoteIp)));
+		httpExchange.sendResponseHeaders(HTTP_TOO_MANY_REQUESTS, -1);
+		httpExchange.close();
+		return null;
+	}
+
+	/**
+	 * Reads the request body to nowhere, and returns the number of received bytes and the time it took from the first byte, as a small json. For
+	 * example {"received_bytes":20000,"server_us":1520}.
+	 * <p>
+	 * The connection is kept alive for the next (warm) upload, unless the client asked to close it. Rejected with 429 if over the admission control
+	 * limits, and then the body is not read and the connection is closed.
+	 */
+	private void handleBinaryUpload(HttpExchange httpExchange) throws IOException {
+		AdmissionControl.Ticket ticket = admit(httpExchange);
+		if (ticket == null)
+			return;
+		ServedTrafficStats.Transfer transfer = servedTrafficStats.start();
+		long received = 0;
+		long firstByteTime = 0;
+		boolean complete = false;
+		try {
+			InputStream is = httpExchange.getRequestBody();
+			int readBytes;
+			while ((readBytes = is.read(uploadBuffer)) != -1) {
+				if (firstByteTime == 0)
+					firstByteTime = System.nanoTime();
+				received += readBytes;
+			}
+			is.close();
+			complete = true;
+		} finally {
+			ticket.release(received);
+			transfer.end(httpExchange.getRemoteAddress().getAddress(), true, received, complete);
+		}
+		long serverMicro = firstByteTime == 0 ? 0 : (System.nanoTime() - firstByteTime) / 1000;
+
+		byte[] response = ("{\"received_bytes\":" + received + ",\"server_us\":" + serverMicro + "}").getBytes();
+		httpExchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+		httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+		httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+		httpExchange.getResponseBody().write(response);
 		httpExchange.getResponseBody().close();
 	}
 
+	ObjectNode getMainJson() {
+		ObjectNode jsonRoot = getSnapshotRoot();
+		jsonRoot.set("announce_thread", announeThread.getStatisticsAsJson(false));
+		// Ping results statistics, without the detailed results
+		jsonRoot.set("ping_thread", pingThread.getStatisticsAsJsonMinimal());
+		// Ping results statistics, without the detailed results
+		jsonRoot.set("download_thread", downloadThread.getStatisticsAsJsonMinimal());
+		// Download content served to other agents, with bytes per CPU second
+		jsonRoot.set("download_serving", downloadContent.getStatisticsAsJson());
+		jsonRoot.set("admission_control", admissionControl.getStatisticsAsJson());
+		if (measurementServer != null)
+			jsonRoot.set("measurement_server", measurementServer.getStatisticsAsJson());
+		jsonRoot.set("result_stream", resultStream.getStatisticsAsJson());
+		ObjectNode poolsNode = jsonRoot.putObject("http_pools");
+		for (HttpPool pool : new HttpPool[] { dispatchPool, measurePool, statusPool, streamPool })
+			poolsNode.set(pool.getName(), pool.getStatisticsAsJson());
+		// Snapshots of the status pages, including this one
+		ObjectNode node = jsonRoot.putObject("status_pages");
+		for (StatusCache curCache : statusCaches.values())
+			node.set(curCache.getName(), curCache.getStatisticsAsJson());
+		return jsonRoot;
+	}
+
+	/**
+	 * Serve a status page from its snapshot, compressed if the client accepts it, or 304 if the client already has it.
+	 */
+	private void sendStatusSnapshot(HttpExchange httpExchange, StatusCache statusCache) throws IOException {
+		StatusSnapshot snapshot = statusCache.get();
+		Headers headers = httpExchange.getResponseHeaders();
+		headers.set("Access-Control-Allow-Origin", "*");
+		headers.set("ETag", snapshot.getEtag());
+		// Can be kept, but must be validated every time
+		headers.set("Cache-Control", "no-cache");
+		headers.set("Vary", "Accept-Encoding");
+		if (snapshot.matches(httpExchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			statusCache.recordResponse(true, false);
+			httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+			httpExchange.close();
+			return;
+		}
+		headers.set("Content-Type", "application/json");
+		byte[] response = snapshot.getJson();
+		boolean gzip = snapshot.getGzip() != null
+				&& HttpUtils.acceptsGzip(httpExchange.getRequestHeaders().getFirst("Accept-Encoding"));
+		if (gzip) {
+			headers.set("Content-Encoding", "gzip");
+			response = snapshot.getGzip();
+		}
+		statusCache.recordResponse(false, gzip);
+		httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+		httpExchange.getResponseBody().write(response);
+		httpExchange.getResponseBody().close();
+	}
+
+	/**
+	 * @return Root of a status page snapshot, with the properties that do not depend on the request.
+	 */
+	private ObjectNode getSnapshotRoot() {
+		ObjectNode jsonRoot = factory.objectNode();
+		jsonRoot.put("version", this.version);
+		jsonRoot.put("start_time", this.startTime / 1000);
+		jsonRoot.put("start_time_readable", (new Date(this.startTime)).toString());
+		jsonRoot.put("up_time_sec", (System.currentTimeMillis() - startTime) / 1000);
+		jsonRoot.put("help", "Go to /help for command list.");
+		// Served as is until the next snapshot
+		jsonRoot.put("snapshot_time", System.currentTimeMillis() / 1000);
+		return jsonRoot;
+	}
+
 	private void addBasicProperties(ObjectNode jsonRoot, HttpExchange httpExchange) {
 		jsonRoot.put("version", this.version);
 
@@ -199,12 +638,53 @@ public class PingHttpHandler implements HttpHandler {
 
 		// Download
 		node = result.putObject("download");
-		node.put("description", "Download random binary content for speed tests.");
+		node.put("description",
+				"Download random binary content for speed tests. Rejected with 429 and Retry-After when over the admission control limits.");
 		ObjectNode params = node.putObject("params");
-		params.put("size", "Download size in bytes. Default is " + buffer_20k.length + ". Max is "
-				+ MAX_DOWNLOAD_BUFFER_SIZE + ".");
+		params.put("size", "Download size in bytes. Default is " + DEFAULT_DOWNLOAD_SIZE + ". Max is "
+				+ MAX_DOWNLOAD_SIZE + ".");
+		params.put("duration_ms", "Optional. Stream (chunked) for this duration instead of a fixed size. Max is "
+				+ MAX_DOWNLOAD_DURATION_MILLIS + ".");
+		if (commandPrefix != null)
+			node.put("uri", commandPrefix + "/download?size=" + DEFAULT_DOWNLOAD_SIZE);
+
+		// Measurement server
+		if (measurementServer != null) {
+			node = result.putObject("measurement_server");
+			node.put("description", "Dedicated non-blocking server for download, upload and echo, on port "
+					+ measurementServer.getPort() + ". Statistics are in /main.");
+		}
+
+		// Upload
+		node = result.putObject("upload");
+		node.put("description",
+				"POST binary content that is thrown away, for upload speed tests. Returns received bytes and server time in micro seconds.");
+		if (commandPrefix != null)
+			node.put("uri", commandPrefix + "/upload");
+
+		// Stream
+		node = result.putObject("stream");
+		node.put("description",
+				"Ping and download results as json lines (NDJSON) as they complete, until disconnected. Lines that a slow client could not take are dropped and counted in a \"dropped\" line.");
+		params = node.putObject("params");
+		params.put("type", "Optional. Only \"ping\" or \"download\" results.");
+		params.put("target", "Optional. Only results of this IP, or IP and port as ip:port.");
+		params.put("region", "Optional. Only results of this region, as provider\\region.");
+		if (commandPrefix != null)
+			node.put("uri", commandPrefix + "/stream");
+
+		// Metrics
+		node = result.putObject("metrics");
+		node.put("description", "Counters, gauges and histograms in the Prometheus text format, for scraping.");
+		if (commandPrefix != null)
+			node.put("uri", commandPrefix + "/metrics");
+
+		// Served
+		node = result.putObject("served");
+		node.put("description",
+				"Downloads and uploads served to other agents - totals, size, duration and throughput histograms, and totals per peer.");
 		if (commandPrefix != null)
-			node.put("uri", commandPrefix + "/download?size=" + buffer_20k.length);
+			node.put("uri", commandPrefix + "/served");
 
 		// Config
 		node = result.putObject("config");
@@ -1,11 +1,9 @@
 package com.eyalzo.pingagent;
 
 import java.net.InetSocketAddress;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * Perform ping to IP addresses (without name resolving), using a thread pool for fast parallel operation.
@@ -17,7 +15,10 @@ public class PingMeasure {
 	 * The ping result. Successful only if the recorded exception is null.
 	 */
 	static class PingResult {
-		public final InetSocketAddress addr;
+		/**
+		 * IP and port, packed as in {@link TargetTable}.
+		 */
+		public final long target;
 		public final Exception exception;
 		public final int rttMicro;
 		/**
@@ -32,16 +33,15 @@ public class PingMeasure {
 		/**
 		 * @param startPingTime
 		 *            When the ping operation (socket open) was actually started. After it was (optionally) in queue.
-		 * @param addr
+		 * @param target
 		 * @param exception
 		 * @param rttMicro
 		 */
-		public PingResult(long startPingTime, int MillisInQueue, InetSocketAddress addr, Exception exception,
-				int rttMicro) {
+		public PingResult(long startPingTime, int MillisInQueue, long target, Exception exception, int rttMicro) {
 			super();
 			this.startPingTime = startPingTime;
 			this.millisInQueue = MillisInQueue;
-			this.addr = addr;
+			this.target = target;
 			this.exception = exception;
 			this.rttMicro = rttMicro;
 		}
@@ -51,47 +51,62 @@ public class PingMeasure {
 	 * Ping command, built for thread pool.
 	 */
 	static class PingHost implements Callable<PingResult> {
-		private final InetSocketAddress addr;
+		private final long target;
 		private final int timeoutMillis;
 		private final long initTime;
+		/**
+		 * Gets the result as soon as the ping completes. Can be null.
+		 */
+		private final Consumer<PingResult> onResult;
 
-		public PingHost(InetSocketAddress addr, int timeoutMillis) {
+		public PingHost(long target, int timeoutMillis, Consumer<PingResult> onResult) {
 			super();
-			this.addr = addr;
+			this.target = target;
 			this.timeoutMillis = timeoutMillis;
 			this.initTime = System.currentTimeMillis();
+			this.onResult = onResult;
 		}
 
 		@Override
 		public PingResult call() {
+			// The address object is created only now, so the queue holds just the packed target
+			InetSocketAddress addr = TargetTable.toSocketAddress(target);
 			// Ping while measuring time
 			long before = System.nanoTime();
 			long pingStartTime = System.currentTimeMillis();
 			Exception pingException = PingUtils.pingTcpAddress(addr, timeoutMillis);
 			long intervalMicro = (System.nanoTime() - before) / 1000;
-			return new PingResult(pingStartTime, (int) Math.max(0, pingStartTime - initTime), addr, pingException,
-					(int) intervalMicro);
+			PingResult result = new PingResult(pingStartTime, (int) Math.max(0, pingStartTime - initTime), target,
+					pingException, (int) intervalMicro);
+			if (onResult != null)
+				onResult.accept(result);
+			return result;
 		}
 	}
 
 	/**
-	 * @return List of addresses to ping, some of them (hopefully) with results. May be empty, but never null.
+	 * @param targets
+	 *            IP and port of each host, packed as in {@link TargetTable}.
+	 * @param onResult
+	 *            Gets each result as soon as its ping completes, on the executer's thread, so it must not block. Can be null.
+	 * @return Result of each host, at the same index as in the given targets, where a null result means that the ping did not complete. Never
+	 *         null.
 	 */
-	static Map<InetSocketAddress, PingResult> pingHosts(Set<InetSocketAddress> hosts, int maxExecuters,
-			int pingTimeoutMillis, int overallTimeoutMillis) {
+	static PingResult[] pingHosts(long[] targets, int maxExecuters, int pingTimeoutMillis, int overallTimeoutMillis,
+			Consumer<PingResult> onResult) {
 		// Sanity check
-		if (hosts == null || hosts.isEmpty())
-			return Collections.emptyMap();
+		if (targets == null || targets.length == 0)
+			return new PingResult[0];
 
-		int executersCount = Math.max(1, Math.min(maxExecuters, hosts.size()));
+		int executersCount = Math.max(1, Math.min(maxExecuters, targets.length));
 		final ExecutorService pingExecutor = Executors.newFixedThreadPool(executersCount);
 
-		Map<InetSocketAddress, Future<PingResult>> pingResultsFutures = new HashMap<>(hosts.size());
+		ArrayList<Future<PingResult>> pingResultsFutures = new ArrayList<Future<PingResult>>(targets.length);
 
-		for (InetSocketAddress curFullAddr : hosts) {
-			PingHost callable = new PingHost(curFullAddr, pingTimeoutMillis);
+		for (int i = 0; i < targets.length; i++) {
+			PingHost callable = new PingHost(targets[i], pingTimeoutMillis, onResult);
 			// Start running, without waiting
-			pingResultsFutures.put(curFullAddr, pingExecutor.submit(callable));
+			pingResultsFutures.add(pingExecutor.submit(callable));
 		}
 		// Initiate shutdown so we can wait for completion
 		pingExecutor.shutdown();
@@ -106,13 +121,11 @@ public class PingMeasure {
 		}
 
 		// To return
-		Map<InetSocketAddress, PingResult> finalResult = new HashMap<>(hosts.size());
-
-		for (Map.Entry<InetSocketAddress, Future<PingResult>> entry : pingResultsFutures.entrySet()) {
-			InetSocketAddress curFullAddr = entry.getKey();
+		PingResult[] finalResult = new PingResult[targets.length];
 
+		for (int i = 0; i < targets.length; i++) {
 			// The host's future (may not complete resolving) and address list
-			Future<PingResult> futurePingResult = entry.getValue();
+			Future<PingResult> futurePingResult = pingResultsFutures.get(i);
 			PingResult curPingResult = null;
 			// Get the address list only if done, to prevent blocking
 			if (futurePingResult.isDone()) {
@@ -128,9 +141,8 @@ public class PingMeasure {
 				}
 			}
 
-			// Put each host, even if it has no addresses, for later count of
-			// failures
-			finalResult.put(curFullAddr, curPingResult);
+			// Keep each host, even if it has no result, for later count of failures
+			finalResult[i] = curPingResult;
 		}
 
 		return finalResult;
@@ -0,0 +1,22 @@
+package com.eyalzo.pingagent;
+
+/**
+ * Summary of the last ping round, for JMX.
+ *
+ * @author Eyal Zohar
+ */
+public interface PingRoundMBean {
+	/**
+	 * @return Targets received from the announce.
+	 */
+	int getTargetsCount();
+
+	/**
+	 * @return Targets pinged in the last round, which may be less than all the targets when there is a budget.
+	 */
+	int getLastRoundTargets();
+
+	int getLastRoundSuccess();
+
+	int getLastRoundFailed();
+}
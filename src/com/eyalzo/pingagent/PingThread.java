@@ -1,23 +1,10 @@
 package com.eyalzo.pingagent;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.eyalzo.pingagent.PingMeasure.PingResult;
-import org.apache.http.HttpEntity;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
+
 import java.util.*;
 
 /**
@@ -25,27 +12,58 @@ import java.util.*;
  * 
  * @author Eyal Zohar
  */
-public class PingThread extends LoopThread {
+public class PingThread extends LoopThread implements PingRoundMBean {
 	private static JsonNodeFactory factory = JsonNodeFactory.instance;
 	private static final int LOOP_SECONDS_IF_NO_PINGS = 5;
 	private final String reportUrlBase;
+	private final ServerReporter reporter;
 	private final Config config;
+	/**
+	 * Gets each ping result as soon as it completes, for the /stream subscribers.
+	 */
+	private final ResultStream resultStream;
+	//
+	// Phases of a loop
+	//
+	private static final int PHASE_TARGET_SNAPSHOT = 0;
+	private static final int PHASE_PROBE = 1;
+	private static final int PHASE_ANALYZE = 2;
+	private static final int PHASE_SERIALIZE = 3;
+	private static final int PHASE_REPORT = 4;
+	private static final String[] PHASE_NAMES = { "target_snapshot", "probe", "analyze", "serialize", "report" };
+	//
+	// Metrics
+	//
+	private static final MetricsRegistry.Counter metricPingsSuccess = MetricsRegistry.DEFAULT.counter("pings_total",
+			"Pings by result.", "result", "success");
+	private static final MetricsRegistry.Counter metricPingsFailed = MetricsRegistry.DEFAULT.counter("pings_total",
+			"Pings by result.", "result", "failed");
+	private static final MetricsRegistry.Counter metricPingsIncomplete = MetricsRegistry.DEFAULT.counter("pings_total",
+			"Pings by result.", "result", "incomplete");
+	/**
+	 * RTT from 250 uSec to about 4 seconds.
+	 */
+	private static final MetricsRegistry.Timer metricRtt = MetricsRegistry.DEFAULT.timer("ping_rtt_seconds",
+			"RTT of successful pings (TCP connect).", MetricsRegistry.exponentialBounds(250, 2, 15), -6);
 
 	//
 	// Statistics to be displayed in json
 	//
 	private String statLastLoopLog = "";
-	private ObjectNode statPingResult = factory.objectNode();
+	/**
+	 * Results of the last loop. Replaced as a whole and never changed after, so it can be shared without copying.
+	 */
+	private volatile ObjectNode statPingResult = factory.objectNode();
 	private String statReportResponse = "";
 	/**
-	 * Size of list of addresses to ping on the last loop. This is the list in use, not a pending list.
+	 * Number of addresses pinged on the last loop, which may be less than the list in use when there is a budget.
 	 */
 	private int statAddressesToPing;
 	/**
 	 * Last time the addresses to ping were updated as pending.
 	 */
 	private long statAddressesToPingLastUpdateTimePending;
-	private static final long ADDRESSES_TTL_MILLIS = 10 * 60 * 1000;
+	static final long ADDRESSES_TTL_MILLIS = 10 * 60 * 1000;
 	/**
 	 * Last time the addresses to ping were updated as in-use (after pending for a while).
 	 */
@@ -53,49 +71,88 @@ public class PingThread extends LoopThread {
 	/**
 	 * The IP and port of all targets, as received from the announce thread.
 	 */
-	private HashSet<InetSocketAddress> addressesToPing = new HashSet<>();
+	private long[] addressesToPing = new long[0];
+	/**
+	 * Rank of each address to ping, or null if none.
+	 */
+	private int[] addressesToPingRanks;
+	/**
+	 * Chooses what to ping in each round, by rank and budget.
+	 */
+	private final ProbeScheduler probeScheduler = new ProbeScheduler();
+	/**
+	 * When the addresses to ping become too old to be used, unless updated by announce.
+	 */
+	private long addressesToPingValidUntil;
+	private final Object addressesToPingLock = new Object();
 
 	/**
 	 * @param reportUrlBase
 	 *            The URL where ping results should be reported to.
+	 * @param resultStream
+	 *            Gets each ping result as soon as it completes.
 	 */
-	public PingThread(final String reportUrlBase, Config config) {
-		super("Ping", config.getPingIntervalSec() * 1000);
+	public PingThread(final String reportUrlBase, Config config, ResultStream resultStream) {
+		super("Ping", config.getPingIntervalSec() * 1000, PHASE_NAMES);
 		this.reportUrlBase = reportUrlBase;
+		this.reporter = new ServerReporter(reportUrlBase);
 		this.config = config;
+		this.resultStream = resultStream;
+		// Re-arm the next round as soon as the announce changes the interval
+		config.addListener((previous, current) -> {
+			if (current.getPingIntervalSec() != previous.getPingIntervalSec())
+				setInterval(current.getPingIntervalSec() * 1000L);
+		});
+		MetricsRegistry.DEFAULT.gauge("ping_probes_last_round", "Targets pinged in the last round.",
+				() -> statAddressesToPing);
 	}
 
 	/**
 	 * Set the addresses for next loop. To be called by {@link AnnounceThread} after it received addresses.
 	 * 
 	 * @param addressesToPing
+	 *            IP and port of each target, packed as in {@link TargetTable}. Not modified after the call, so it is kept as is.
+	 */
+	public void setAddressesToPing(long[] addressesToPing) {
+		setAddressesToPing(addressesToPing, null, System.currentTimeMillis() + ADDRESSES_TTL_MILLIS);
+	}
+
+	/**
+	 * Set the addresses for next loop, that should not be used after the given time unless updated.
+	 * 
+	 * @param addressesToPing
+	 *            IP and port of each target, packed as in {@link TargetTable}. Not modified after the call, so it is kept as is.
+	 * @param ranks
+	 *            Rank of each target at the same index, to choose what to ping when there is a budget. Can be null if all have the same rank.
+	 * @param validUntil
+	 *            When the addresses become too old to be used, for example when a cached list expires.
 	 */
-	public void setAddressesToPing(Set<InetSocketAddress> addressesToPing) {
-		synchronized (this.addressesToPing) {
-			this.addressesToPing.clear();
-			this.addressesToPing.addAll(addressesToPing);
+	public void setAddressesToPing(long[] addressesToPing, int[] ranks, long validUntil) {
+		synchronized (addressesToPingLock) {
+			this.addressesToPing = addressesToPing;
+			this.addressesToPingRanks = ranks;
 			// Must remember when the list was last modified by announce - not to use old list
 			statAddressesToPingLastUpdateTimePending = System.currentTimeMillis();
+			addressesToPingValidUntil = validUntil;
 		}
 	}
 
 	@Override
 	public boolean runLoop() {
-		// Set the interval according to configuration
-		setIntervalOnce(config.getPingIntervalSec() * 1000);
+		// The same configuration for the whole round
+		Config.Snapshot roundConfig = config.getSnapshot();
 
+		beginPhase(PHASE_TARGET_SNAPSHOT);
 		statLastLoopLog = "Loop start";
 		statReportResponse = "";
-		synchronized (statPingResult) {
-			statPingResult.removeAll();
-		}
+		statPingResult = factory.objectNode();
 		statLastLoopLog = "Results cleanup done";
 
 		// Get the addresses to ping in this round, by copying from the pending list
-		Set<InetSocketAddress> loopAddressesToPing;
-		synchronized (this.addressesToPing) {
+		long[] loopAddressesToPing;
+		synchronized (addressesToPingLock) {
 			// Check if addresses are not too old
-			if (statAddressesToPingLastUpdateTimePending < (System.currentTimeMillis() - ADDRESSES_TTL_MILLIS)) {
+			if (addressesToPingValidUntil < System.currentTimeMillis()) {
 				if (statAddressesToPingLastUpdateTimePending <= 0)
 					statLastLoopLog = "Nothing to ping. Did not get addresses even once.";
 				else
@@ -107,10 +164,13 @@ public class PingThread extends LoopThread {
 				setIntervalOnce(LOOP_SECONDS_IF_NO_PINGS * 1000);
 				return true;
 			}
-			loopAddressesToPing = new HashSet<InetSocketAddress>(this.addressesToPing);
+			// Ignored if the same as in the previous round, so the rotation continues
+			probeScheduler.setTargets(this.addressesToPing, this.addressesToPingRanks);
 		}
 		statAddressesToPingLastUpdateTimeUsed = System.currentTimeMillis();
-		statAddressesToPing = loopAddressesToPing == null ? 0 : loopAddressesToPing.size();
+		// Highest ranks first, and all of them if there is no budget
+		loopAddressesToPing = probeScheduler.nextRound(roundConfig.getPingBudgetPerRound());
+		statAddressesToPing = loopAddressesToPing.length;
 		statLastLoopLog = "Got addresses to ping";
 
 		// Skip the rest if there is nothing to ping
@@ -122,56 +182,58 @@ public class PingThread extends LoopThread {
 		}
 
 		// Do the ping
+		beginPhase(PHASE_PROBE);
 		statLastLoopLog = "Do the pings";
-		Map<InetSocketAddress, PingResult> pingResults = PingMeasure.pingHosts(loopAddressesToPing,
-				config.getPingExecuters(), config.getPingTimeoutMs(), config.getPingIntervalSec() * 1000);
+		PingResult[] pingResults = PingMeasure.pingHosts(loopAddressesToPing,
+				roundConfig.getPingExecuters(), roundConfig.getPingTimeoutMs(), roundConfig.getPingIntervalSec() * 1000,
+				resultStream::publish);
 		statLastLoopLog = "Completed the pings executers";
 
 		// Analyze the ping results and get a json with summary and detailed results
-		ObjectNode analyzedPingResultsJson = analyzePingResults(pingResults);
-		synchronized (statPingResult) {
-			statPingResult.setAll(analyzedPingResultsJson);
-		}
+		beginPhase(PHASE_ANALYZE);
+		ObjectNode analyzedPingResultsJson = analyzePingResults(loopAddressesToPing, pingResults);
+		statPingResult = analyzedPingResultsJson;
 
 		// Report results to database
-		boolean success = false;
-		try {
-			success = reportToServer(analyzedPingResultsJson);
-		} catch (IOException e) {
-			statLastLoopLog = "IOException when trying to report the server.";
-			e.printStackTrace();
-		}
+		boolean success = reportToServer(analyzedPingResultsJson);
 
 		statLastLoopLog = success ? "Reported to server. Loop complete" : "Failed to report to server. Loop complete";
 
 		return success;
 	}
 
-	private ObjectNode analyzePingResults(Map<InetSocketAddress, PingResult> pingHosts) {
+	/**
+	 * @param targets
+	 *            The pinged targets, packed as in {@link TargetTable}.
+	 * @param pingResults
+	 *            Result of each target, at the same index, or null if did not complete.
+	 */
+	ObjectNode analyzePingResults(long[] targets, PingResult[] pingResults) {
 		ObjectNode result = factory.objectNode();
 
 		// Prepare an array node, to hold each result separately
-		ArrayNode itemsArray = result.arrayNode(pingHosts.size());
+		ArrayNode itemsArray = result.arrayNode(targets.length);
 		result.set("items", itemsArray);
 
 		int pingFailed = 0;
 		int pingSuccess = 0;
 
-		for (Map.Entry<InetSocketAddress, PingResult> entry : pingHosts.entrySet()) {
-			InetSocketAddress curAddrAndPort = entry.getKey();
+		for (int i = 0; i < targets.length; i++) {
+			long curTarget = targets[i];
 
 			//
 			// Host, port and the json node in the array
 			//
 			ObjectNode curNode = itemsArray.addObject();
-			curNode.put("ip", curAddrAndPort.getAddress().toString().split("/")[1]);
+			curNode.put("ip", TargetTable.ipToString(curTarget));
 			// Port is optional
-			int curPort = curAddrAndPort.getPort();
+			int curPort = TargetTable.getPort(curTarget);
 			curNode.put("port", curPort);
 
 			// Get ping results
-			PingResult curPingResult = entry.getValue();
+			PingResult curPingResult = i < pingResults.length ? pingResults[i] : null;
 			if (curPingResult == null) {
+				metricPingsIncomplete.inc();
 				continue;
 			}
 
@@ -181,8 +243,11 @@ public class PingThread extends LoopThread {
 			if (curPingResult.exception == null) {
 				curNode.put("rtt_us", curPingResult.rttMicro);
 				pingSuccess++;
+				metricPingsSuccess.inc();
+				metricRtt.record(curPingResult.rttMicro);
 			} else {
 				pingFailed++;
+				metricPingsFailed.inc();
 				curNode.put("error", curPingResult.exception.getMessage());
 				curNode.put("timeout_us", curPingResult.rttMicro);
 			}
@@ -195,43 +260,20 @@ public class PingThread extends LoopThread {
 		return result;
 	}
 
-	private boolean reportToServer(ObjectNode analyzedPingResultsJson) throws IOException {
+	private boolean reportToServer(ObjectNode analyzedPingResultsJson) {
 		if (analyzedPingResultsJson == null)
 			return false;
 
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-		try {
-			HttpPost httpPost = new HttpPost(this.reportUrlBase);
-
-			// Set timeouts
-			RequestConfig.Builder requestConfig = RequestConfig.custom();
-			requestConfig.setConnectTimeout(10 * 1000);
-			requestConfig.setConnectionRequestTimeout(10 * 1000);
-			requestConfig.setSocketTimeout(20 * 1000);
-			httpPost.setConfig(requestConfig.build());
-
-			// Fill the POST data
-			List<NameValuePair> nvps = new ArrayList<>(1);
-			nvps.add(new BasicNameValuePair("result", analyzedPingResultsJson.toString()));
-			httpPost.setEntity(new UrlEncodedFormEntity(nvps));
-
-			// Submit
-			statLastLoopLog = "Report to server - connecting.";
-			CloseableHttpResponse response2 = httpclient.execute(httpPost);
-			try {
-				HttpEntity entity2 = response2.getEntity();
-				statReportResponse = EntityUtils.toString(entity2, "UTF-8");
-				// Do something useful with the response body and ensure it is fully
-				// consumed
-				EntityUtils.consume(entity2);
-			} finally {
-				response2.close();
-			}
-		} finally {
-			httpclient.close();
-		}
+		beginPhase(PHASE_SERIALIZE);
+		String report = analyzedPingResultsJson.toString();
 
-		return true;
+		// Retries must not run into the next round
+		beginPhase(PHASE_REPORT);
+		statLastLoopLog = "Report to server.";
+		boolean result = reporter.report(report,
+				System.currentTimeMillis() + config.getPingIntervalSec() * 1000 / 2);
+		statReportResponse = reporter.getLastResponse();
+		return result;
 	}
 
 	@Override
@@ -245,21 +287,47 @@ public class PingThread extends LoopThread {
 		result.put("last_loop_log", statLastLoopLog);
 		result.put("ping_executers", config.getPingExecuters());
 		result.put("addresses_to_ping", statAddressesToPing);
-		result.put("addresses_to_ping", statAddressesToPing);
+		result.put("ping_budget_per_round", config.getPingBudgetPerRound());
+		result.set("probe_schedule", probeScheduler.getStatisticsAsJson());
 		LocalConfig.addTimeNodes(result, "addresses_modified_by_announce", statAddressesToPingLastUpdateTimePending);
 		LocalConfig.addTimeNodes(result, "addresses_modified_and_used", statAddressesToPingLastUpdateTimeUsed);
 		result.put("server_report_url", this.reportUrlBase);
 		result.put("server_response", statReportResponse);
-		result.set("ping_results", statPingResult.deepCopy());
+		result.set("server_report", reporter.getStatisticsAsJson());
+		result.set("ping_results", statPingResult);
 
 		return result;
 	}
 
+	@Override
+	public int getTargetsCount() {
+		synchronized (addressesToPingLock) {
+			return addressesToPing.length;
+		}
+	}
+
+	@Override
+	public int getLastRoundTargets() {
+		return statAddressesToPing;
+	}
+
+	@Override
+	public int getLastRoundSuccess() {
+		return statPingResult.path("ping_success").asInt();
+	}
+
+	@Override
+	public int getLastRoundFailed() {
+		return statPingResult.path("ping_failed").asInt();
+	}
+
 	public ObjectNode getStatisticsAsJsonMinimal() {
 		ObjectNode result = this.getStatisticsAsJson();
-		JsonNode pingResults = result.get("ping_results");
-		if (pingResults instanceof ObjectNode)
-			((ObjectNode) pingResults).remove("items");
+		// Summary only, without changing the shared results
+		ObjectNode pingResults = factory.objectNode();
+		pingResults.setAll(statPingResult);
+		pingResults.remove("items");
+		result.set("ping_results", pingResults);
 
 		return result;
 	}
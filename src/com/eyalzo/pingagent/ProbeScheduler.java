@@ -0,0 +1,200 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the targets to ping in each round, by the rank received in the announce and under a budget of probes per round.
+ * <p>
+ * Targets are sorted by rank, highest first, and split into {@value #TIERS_COUNT} tiers of about the same size, where targets of the same rank
+ * are always in the same tier. When the budget is smaller than the number of targets, each tier gets a share of the budget by its size times its
+ * weight, so a target of a higher tier is pinged more often, and every non-empty tier gets at least one probe. Within a tier the targets are
+ * taken in rotation, so all of them are pinged eventually. Higher tiers are submitted first, so they are pinged first when the executers are busy.
+ * Without a budget, all the targets are pinged every round, highest rank first.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class ProbeScheduler {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	static final int TIERS_COUNT = 4;
+	/**
+	 * Relative probe frequency of a single target in each tier.
+	 */
+	private static final int[] TIER_WEIGHTS = { 8, 4, 2, 1 };
+	/**
+	 * The targets as given, to tell if they changed.
+	 */
+	private long[] sourceTargets;
+	/**
+	 * Targets sorted by rank, highest first.
+	 */
+	private long[] targets = new long[0];
+	private int[] ranks = new int[0];
+	/**
+	 * Index of the first target of each tier, plus the end.
+	 */
+	private int[] tierStarts = new int[TIERS_COUNT + 1];
+	/**
+	 * Next target to ping in each tier, relative to the tier's start.
+	 */
+	private int[] cursors = new int[TIERS_COUNT];
+	/**
+	 * Round when each target was last pinged, or zero if never.
+	 */
+	private long[] lastProbeRounds = new long[0];
+	private long round;
+
+	//
+	// Statistics
+	//
+	private int statLastBudget;
+	private int[] statProbesLastRound = new int[TIERS_COUNT];
+	private long[] statProbesTotal = new long[TIERS_COUNT];
+
+	/**
+	 * Set the targets for the next rounds. Ignored if the same targets are given again, so the rotation continues.
+	 *
+	 * @param newTargets
+	 *            Packed targets, as in {@link TargetTable}. Not modified by the caller afterwards.
+	 * @param newRanks
+	 *            Rank of each target, at the same index. Can be null if all have the same rank.
+	 */
+	public synchronized void setTargets(long[] newTargets, int[] newRanks) {
+		if (newTargets == sourceTargets)
+			return;
+		sourceTargets = newTargets;
+		int count = newTargets.length;
+
+		// Sort by rank without boxing: the inverted rank in the high bits and the index in the low
+		long[] sortKeys = new long[count];
+		for (int i = 0; i < count; i++) {
+			int rank = newRanks == null ? 0 : Math.max(0, newRanks[i]);
+			sortKeys[i] = ((long) (Integer.MAX_VALUE - rank) << 32) | i;
+		}
+		Arrays.sort(sortKeys);
+		targets = new long[count];
+		ranks = new int[count];
+		for (int i = 0; i < count; i++) {
+			int index = (int) sortKeys[i];
+			targets[i] = newTargets[index];
+			ranks[i] = Integer.MAX_VALUE - (int) (sortKeys[i] >>> 32);
+		}
+
+		// Tiers of about the same size, where a tier ends only where the rank changes
+		tierStarts = new int[TIERS_COUNT + 1];
+		for (int tier = 1; tier <= TIERS_COUNT; tier++) {
+			int start = Math.max(tierStarts[tier - 1], (int) (((long) count * tier + TIERS_COUNT - 1) / TIERS_COUNT));
+			while (start > 0 && start < count && ranks[start] == ranks[start - 1])
+				start++;
+			tierStarts[tier] = tier == TIERS_COUNT ? count : start;
+		}
+		cursors = new int[TIERS_COUNT];
+		lastProbeRounds = new long[count];
+	}
+
+	/**
+	 * @param budget
+	 *            Maximal number of targets to ping in this round, or zero (or negative) for all.
+	 * @return The targets to ping in this round, highest tier first. A new array.
+	 */
+	public synchronized long[] nextRound(int budget) {
+		round++;
+		statLastBudget = budget;
+		int count = targets.length;
+		int[] quotas = getQuotas(budget <= 0 ? count : Math.min(budget, count));
+
+		long[] result = new long[count];
+		int resultCount = 0;
+		for (int tier = 0; tier < TIERS_COUNT; tier++) {
+			int start = tierStarts[tier];
+			int size = tierStarts[tier + 1] - start;
+			for (int i = 0; i < quotas[tier]; i++) {
+				int index = start + cursors[tier];
+				result[resultCount++] = targets[index];
+				lastProbeRounds[index] = round;
+				cursors[tier] = (cursors[tier] + 1) % size;
+			}
+			statProbesLastRound[tier] = quotas[tier];
+			statProbesTotal[tier] += quotas[tier];
+		}
+		return resultCount == count ? result : Arrays.copyOf(result, resultCount);
+	}
+
+	/**
+	 * @param budget
+	 *            Number of probes to divide, not more than the number of targets.
+	 * @return Number of targets to ping in each tier.
+	 */
+	private int[] getQuotas(int budget) {
+		int[] result = new int[TIERS_COUNT];
+		int[] sizes = new int[TIERS_COUNT];
+		long weightsSum = 0;
+		int remaining = budget;
+		// At least one per tier, so the lowest tier still rotates
+		for (int tier = 0; tier < TIERS_COUNT; tier++) {
+			sizes[tier] = tierStarts[tier + 1] - tierStarts[tier];
+			weightsSum += (long) sizes[tier] * TIER_WEIGHTS[tier];
+			if (sizes[tier] > 0 && remaining > 0) {
+				result[tier] = 1;
+				remaining--;
+			}
+		}
+		if (weightsSum == 0)
+			return result;
+		// Weighted shares of the rest
+		int shared = remaining;
+		for (int tier = 0; tier < TIERS_COUNT; tier++) {
+			int share = (int) ((long) shared * sizes[tier] * TIER_WEIGHTS[tier] / weightsSum);
+			share = Math.min(share, sizes[tier] - result[tier]);
+			result[tier] += share;
+			remaining -= share;
+		}
+		// Rounding leftovers and shares beyond the tier sizes, highest tier first
+		for (int tier = 0; tier < TIERS_COUNT && remaining > 0; tier++) {
+			int extra = Math.min(remaining, sizes[tier] - result[tier]);
+			result[tier] += extra;
+			remaining -= extra;
+		}
+		return result;
+	}
+
+	public synchronized ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("targets", targets.length);
+		result.put("budget", statLastBudget);
+		result.put("rounds", round);
+		ArrayNode tiersNode = result.putArray("tiers");
+		for (int tier = 0; tier < TIERS_COUNT; tier++) {
+			int start = tierStarts[tier];
+			int end = tierStarts[tier + 1];
+			ObjectNode tierNode = tiersNode.addObject();
+			tierNode.put("tier", tier);
+			tierNode.put("targets", end - start);
+			if (end <= start)
+				continue;
+			tierNode.put("rank_max", ranks[start]);
+			tierNode.put("rank_min", ranks[end - 1]);
+			tierNode.put("weight", TIER_WEIGHTS[tier]);
+			tierNode.put("probes_last_round", statProbesLastRound[tier]);
+			tierNode.put("probes_total", statProbesTotal[tier]);
+			tierNode.put("coverage_last_round_percent", statProbesLastRound[tier] * 100 / (end - start));
+			// How stale the tier's measurements are
+			int neverProbed = 0;
+			long oldestRound = round;
+			for (int i = start; i < end; i++) {
+				if (lastProbeRounds[i] == 0)
+					neverProbed++;
+				else
+					oldestRound = Math.min(oldestRound, lastProbeRounds[i]);
+			}
+			tierNode.put("never_probed", neverProbed);
+			tierNode.put("oldest_probe_rounds_ago", round - oldestRound);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,313 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.eyalzo.pingagent.PingMeasure.PingResult;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * Pushes each ping and download result to the /stream subscribers as a compact json line (NDJSON), as soon as it completes.
+ * <p>
+ * Results are published by the ping and download executers, which must never wait for a subscriber. So each subscriber has a bounded queue of
+ * lines, and when it is full the new lines are dropped for that subscriber only, and the subscriber gets a "dropped" line with their count before
+ * the next line it does get. Each subscriber may filter by type, target or region, on the server side. When there are no subscribers, publishing
+ * costs a single volatile read and no line is built.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class ResultStream {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	/**
+	 * Lines kept for a subscriber that did not read them yet.
+	 */
+	private static final int SUBSCRIBER_QUEUE_SIZE = 1024;
+	/**
+	 * A line is sent at least this often, so a dead connection is detected and proxies do not close an idle one.
+	 */
+	private static final long HEARTBEAT_MILLIS = 15 * 1000;
+	private final int maxSubscribers;
+	/**
+	 * Current subscribers, copied on change so publishing reads them without locks.
+	 */
+	private volatile Subscriber[] subscribers = new Subscriber[0];
+	/**
+	 * Region of a ping target, by the announced list. Can be null.
+	 */
+	private volatile LongFunction<String> regionResolver;
+
+	//
+	// Statistics
+	//
+	private final LongAdder statLines = new LongAdder();
+	private final LongAdder statDropped = new LongAdder();
+	private final LongAdder statRejected = new LongAdder();
+	private long statSubscribersTotal;
+	private static final MetricsRegistry.Counter metricLines = MetricsRegistry.DEFAULT.counter("stream_lines_total",
+			"Result lines queued to /stream subscribers.");
+	private static final MetricsRegistry.Counter metricDropped = MetricsRegistry.DEFAULT.counter("stream_dropped_total",
+			"Result lines dropped because a /stream subscriber was too slow.");
+
+	/**
+	 * Server-side filter of a subscriber. Null fields match anything.
+	 */
+	public static class Filter {
+		/**
+		 * "ping" or "download".
+		 */
+		final String type;
+		/**
+		 * IP, or IP and port as "ip:port".
+		 */
+		final String target;
+		/**
+		 * Region name, as "provider\region".
+		 */
+		final String region;
+
+		public Filter(String type, String target, String region) {
+			this.type = type;
+			this.target = target;
+			this.region = region;
+		}
+
+		boolean matches(String lineType, String ip, int port, String lineRegion) {
+			if (type != null && !type.equals(lineType))
+				return false;
+			if (region != null && !region.equals(lineRegion))
+				return false;
+			if (target != null && !target.equals(ip) && !target.equals(ip + ":" + port))
+				return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A single /stream connection.
+	 */
+	public class Subscriber {
+		private final Filter filter;
+		private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(SUBSCRIBER_QUEUE_SIZE);
+		private final LongAdder dropped = new LongAdder();
+		/**
+		 * Dropped lines that were already reported to the subscriber.
+		 */
+		private long droppedReported;
+		private final String remoteAddress;
+		private final long startTime = System.currentTimeMillis();
+		private volatile long statLines;
+
+		private Subscriber(Filter filter, String remoteAddress) {
+			this.filter = filter;
+			this.remoteAddress = remoteAddress;
+		}
+
+		private void offer(String line) {
+			if (queue.offer(line)) {
+				ResultStream.this.statLines.increment();
+				metricLines.inc();
+			} else {
+				dropped.increment();
+				statDropped.increment();
+				metricDropped.inc();
+			}
+		}
+
+		/**
+		 * Write lines to the subscriber as they arrive, until the connection breaks. To be called by the thread that serves the connection.
+		 *
+		 * @param out
+		 *            The response body, already started.
+		 * @throws IOException
+		 *             When the connection breaks, normally because the subscriber left.
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			ArrayList<String> lines = new ArrayList<>();
+			StringBuilder buffer = new StringBuilder();
+			try {
+				while (true) {
+					String first = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+					buffer.setLength(0);
+					long curDropped = dropped.sum();
+					if (curDropped > droppedReported) {
+						// Tell about the gap before the lines that come after it
+						buffer.append("{\"type\":\"dropped\",\"count\":").append(curDropped - droppedReported).append("}\n");
+						droppedReported = curDropped;
+					}
+					if (first == null) {
+						buffer.append("{\"type\":\"heartbeat\",\"time\":").append(System.currentTimeMillis()).append("}\n");
+					} else {
+						// Whatever else is waiting, in the same write
+						lines.clear();
+						lines.add(first);
+						queue.drainTo(lines);
+						for (String line : lines)
+							buffer.append(line).append('\n');
+						statLines += lines.size();
+					}
+					out.write(buffer.toString().getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		ObjectNode getStatisticsAsJson() {
+			ObjectNode result = factory.objectNode();
+			result.put("remote_address", remoteAddress);
+			LocalConfig.addTimeNodes(result, "start_time", startTime);
+			result.put("type", filter.type);
+			result.put("target", filter.target);
+			result.put("region", filter.region);
+			result.put("lines", statLines);
+			result.put("queued", queue.size());
+			result.put("dropped", dropped.sum());
+			return result;
+		}
+	}
+
+	/**
+	 * @param maxSubscribers
+	 *            Maximal number of concurrent subscribers, because each holds an HTTP server thread.
+	 */
+	public ResultStream(int maxSubscribers) {
+		this.maxSubscribers = maxSubscribers;
+		MetricsRegistry.DEFAULT.gauge("stream_subscribers", "Connected /stream subscribers.", () -> subscribers.length);
+	}
+
+	/**
+	 * @param regionResolver
+	 *            Region of a ping target, by the announced list, for the lines and the filter. Returns null if unknown.
+	 */
+	public void setRegionResolver(LongFunction<String> regionResolver) {
+		this.regionResolver = regionResolver;
+	}
+
+	/**
+	 * @return The new subscriber, or null if there are too many.
+	 */
+	public synchronized Subscriber subscribe(Filter filter, String remoteAddress) {
+		if (subscribers.length >= maxSubscribers) {
+			statRejected.increment();
+			return null;
+		}
+		Subscriber result = new Subscriber(filter, remoteAddress);
+		Subscriber[] newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+		newSubscribers[subscribers.length] = result;
+		subscribers = newSubscribers;
+		statSubscribersTotal++;
+		return result;
+	}
+
+	public synchronized void unsubscribe(Subscriber subscriber) {
+		ArrayList<Subscriber> newSubscribers = new ArrayList<>(Arrays.asList(subscribers));
+		newSubscribers.remove(subscriber);
+		subscribers = newSubscribers.toArray(new Subscriber[newSubscribers.size()]);
+	}
+
+	public boolean hasSubscribers() {
+		return subscribers.length > 0;
+	}
+
+	/**
+	 * Publish a ping result. Called by the ping executers.
+	 */
+	public void publish(PingResult pingResult) {
+		Subscriber[] curSubscribers = subscribers;
+		if (curSubscribers.length == 0)
+			return;
+		String ip = TargetTable.ipToString(pingResult.target);
+		int port = TargetTable.getPort(pingResult.target);
+		LongFunction<String> resolver = regionResolver;
+		String region = resolver == null ? null : resolver.apply(pingResult.target);
+		String line = null;
+		for (Subscriber subscriber : curSubscribers) {
+			if (!subscriber.filter.matches("ping", ip, port, region))
+				continue;
+			if (line == null) {
+				ObjectNode node = factory.objectNode();
+				node.put("type", "ping");
+				node.put("time", pingResult.startPingTime);
+				node.put("ip", ip);
+				node.put("port", port);
+				if (region != null)
+					node.put("region", region);
+				node.put("queue_ms", pingResult.millisInQueue);
+				if (pingResult.exception == null) {
+					node.put("rtt_us", pingResult.rttMicro);
+				} else {
+					node.put("error", pingResult.exception.getMessage());
+					node.put("timeout_us", pingResult.rttMicro);
+				}
+				line = node.toString();
+			}
+			subscriber.offer(line);
+		}
+	}
+
+	/**
+	 * Publish a download or upload result. Called by the download executers.
+	 */
+	public void publish(DownloadResult downloadResult) {
+		Subscriber[] curSubscribers = subscribers;
+		if (curSubscribers.length == 0 || downloadResult.getIpAndPort() == null)
+			return;
+		String ip = downloadResult.getIpAndPort().getAddress().getHostAddress();
+		int port = downloadResult.getIpAndPort().getPort();
+		String line = null;
+		for (Subscriber subscriber : curSubscribers) {
+			if (!subscriber.filter.matches("download", ip, port, downloadResult.regionName))
+				continue;
+			if (line == null) {
+				ObjectNode node = factory.objectNode();
+				node.put("type", "download");
+				node.put("time", System.currentTimeMillis());
+				node.put("ip_port", ip + ":" + port);
+				node.put("region", downloadResult.regionName);
+				node.put("warm", downloadResult.warm);
+				if (downloadResult.upload)
+					node.put("upload", true);
+				if (downloadResult.durationMillis > 0)
+					node.put("duration_ms", downloadResult.durationMillis);
+				node.put("queue_ms", downloadResult.getQueueMillis());
+				int connectMicro = downloadResult.warm ? 0 : downloadResult.getConnectMicro();
+				if (connectMicro > 0)
+					node.put("connect_us", connectMicro);
+				int downloadWithoutConnectMicro = downloadResult.getDownloadWithoutConnectMicro();
+				if (downloadWithoutConnectMicro == 0 || downloadResult.exception != null) {
+					node.put("error", downloadResult.exception == null ? "No download"
+							: downloadResult.exception.getMessage());
+				} else {
+					node.put("download_us", connectMicro + downloadWithoutConnectMicro);
+					node.put("size", downloadResult.sizeDownloaded);
+				}
+				line = node.toString();
+			}
+			subscriber.offer(line);
+		}
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		Subscriber[] curSubscribers = subscribers;
+		result.put("max_subscribers", maxSubscribers);
+		result.put("subscribers_total", statSubscribersTotal);
+		result.put("rejected", statRejected.sum());
+		result.put("lines", statLines.sum());
+		result.put("dropped", statDropped.sum());
+		for (Subscriber subscriber : curSubscribers)
+			result.withArray("subscribers").add(subscriber.getStatisticsAsJson());
+		return result;
+	}
+}
@@ -0,0 +1,215 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the downloads and uploads served to other agents, by the status server and the measurement server together.
+ * <p>
+ * The agent reports what it downloads, and this tells what it serves: bytes, active transfers, per-transfer duration and throughput, and totals per
+ * remote peer. When a download result looks bad, it shows whether the serving side was busy at the time.
+ * <p>
+ * Thread safe and lock-free, because it is updated by the serving threads on every transfer.
+ *
+ * @author Eyal Zohar
+ */
+public class ServedTrafficStats {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	/**
+	 * Maximal number of remote peers to keep totals for. Transfers of other peers are counted in the totals only.
+	 */
+	private static final int MAX_PEERS = 1000;
+	/**
+	 * Maximal number of remote peers to display, the ones with the most bytes.
+	 */
+	private static final int MAX_PEERS_TO_DISPLAY = 100;
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicInteger activeTransfers = new AtomicInteger();
+	private final LongAccumulator peakActiveTransfers = new LongAccumulator(Math::max, 0);
+	/**
+	 * Index 0 is download and 1 is upload.
+	 */
+	private final Direction[] directions = { new Direction("download"), new Direction("upload") };
+	private final ConcurrentHashMap<InetAddress, PeerTotals> peers = new ConcurrentHashMap<>();
+	private final LongAdder statPeersOverflow = new LongAdder();
+
+	public ServedTrafficStats() {
+		MetricsRegistry.DEFAULT.gauge("served_active_transfers", "Transfers served to other agents right now.",
+				activeTransfers::get);
+	}
+
+	/**
+	 * Totals and histograms of one direction.
+	 */
+	private static class Direction {
+		final LongAdder transfers = new LongAdder();
+		final LongAdder incomplete = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final MetricsRegistry.Counter metricTransfers;
+		final MetricsRegistry.Counter metricIncomplete;
+		final MetricsRegistry.Counter metricBytes;
+		final MetricsRegistry.Timer metricDuration;
+		final Histogram sizeBytes = new Histogram();
+		final Histogram durationMicro = new Histogram();
+		final Histogram kbps = new Histogram();
+		/**
+		 * Number of transfers that were active (including this one) when the transfer started.
+		 */
+		final Histogram concurrency = new Histogram();
+
+		Direction(String name) {
+			MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+			metricTransfers = metrics.counter("served_transfers_total", "Transfers served to other agents.", "direction",
+					name);
+			metricIncomplete = metrics.counter("served_incomplete_total",
+					"Transfers served to other agents that failed or were closed before the end.", "direction", name);
+			metricBytes = metrics.counter("served_bytes_total", "Bytes served to other agents.", "direction", name);
+			metricDuration = metrics.timer("served_seconds", "Time of complete transfers served to other agents.",
+					LoopThread.DURATION_BOUNDS_MICRO, -6, "direction", name);
+		}
+
+		ObjectNode getAsJson() {
+			ObjectNode result = factory.objectNode();
+			result.put("transfers", transfers.sum());
+			result.put("incomplete", incomplete.sum());
+			result.put("bytes", bytes.sum());
+			result.set("size_bytes", sizeBytes.getAsJson());
+			result.set("duration_us", durationMicro.getAsJson());
+			result.set("kbps", kbps.getAsJson());
+			result.set("concurrency", concurrency.getAsJson());
+			return result;
+		}
+	}
+
+	/**
+	 * Totals of a single remote peer.
+	 */
+	private static class PeerTotals {
+		final LongAdder downloads = new LongAdder();
+		final LongAdder uploads = new LongAdder();
+		final LongAdder incomplete = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		volatile long lastTime;
+	}
+
+	/**
+	 * A transfer in progress, that must be ended exactly once.
+	 */
+	public class Transfer {
+		private final long startNanos = System.nanoTime();
+		private final int concurrency;
+		private boolean ended;
+
+		private Transfer() {
+			concurrency = activeTransfers.incrementAndGet();
+			peakActiveTransfers.accumulate(concurrency);
+		}
+
+		/**
+		 * Record the transfer. Further calls are ignored.
+		 *
+		 * @param remoteIp
+		 *            The peer.
+		 * @param upload
+		 *            True if the peer uploaded, false if it downloaded.
+		 * @param bytes
+		 *            Bytes transferred.
+		 * @param complete
+		 *            False if the transfer failed or the peer closed the connection before it ended.
+		 */
+		public void end(InetAddress remoteIp, boolean upload, long bytes, boolean complete) {
+			if (ended)
+				return;
+			ended = true;
+			activeTransfers.decrementAndGet();
+			long durationMicro = (System.nanoTime() - startNanos) / 1000;
+			Direction direction = directions[upload ? 1 : 0];
+			direction.transfers.increment();
+			direction.bytes.add(bytes);
+			direction.metricTransfers.inc();
+			direction.metricBytes.add(bytes);
+			if (!complete) {
+				direction.incomplete.increment();
+				direction.metricIncomplete.inc();
+			} else {
+				direction.sizeBytes.record(bytes);
+				direction.durationMicro.record(durationMicro);
+				direction.metricDuration.record(durationMicro);
+				if (durationMicro > 0)
+					direction.kbps.record(bytes * 8 * 1000 / durationMicro);
+				direction.concurrency.record(concurrency);
+			}
+
+			PeerTotals peer = getPeer(remoteIp);
+			if (peer == null)
+				return;
+			(upload ? peer.uploads : peer.downloads).increment();
+			if (!complete)
+				peer.incomplete.increment();
+			peer.bytes.add(bytes);
+			peer.lastTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return A new transfer, counted as active until it ends.
+	 */
+	public Transfer start() {
+		return new Transfer();
+	}
+
+	/**
+	 * @return The peer's totals, or null if there are too many peers.
+	 */
+	private PeerTotals getPeer(InetAddress remoteIp) {
+		PeerTotals result = peers.get(remoteIp);
+		if (result != null)
+			return result;
+		if (peers.size() >= MAX_PEERS) {
+			statPeersOverflow.increment();
+			return null;
+		}
+		return peers.computeIfAbsent(remoteIp, k -> new PeerTotals());
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("since_time", startTime / 1000);
+		result.put("active_transfers", activeTransfers.get());
+		result.put("peak_active_transfers", peakActiveTransfers.get());
+		result.set("download", directions[0].getAsJson());
+		result.set("upload", directions[1].getAsJson());
+
+		// Peers with the most bytes first, where the bytes are taken once because they may change while sorting
+		HashMap<InetAddress, Long> peersBytes = new HashMap<>();
+		for (Entry<InetAddress, PeerTotals> entry : peers.entrySet())
+			peersBytes.put(entry.getKey(), entry.getValue().bytes.sum());
+		ArrayList<Entry<InetAddress, Long>> sorted = new ArrayList<>(peersBytes.entrySet());
+		sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		result.put("peers_count", sorted.size());
+		result.put("peers_overflow", statPeersOverflow.sum());
+		ArrayNode peersNode = result.putArray("peers");
+		for (int i = 0; i < sorted.size() && i < MAX_PEERS_TO_DISPLAY; i++) {
+			InetAddress ip = sorted.get(i).getKey();
+			PeerTotals peer = peers.get(ip);
+			ObjectNode peerNode = peersNode.addObject();
+			peerNode.put("ip", ip.getHostAddress());
+			peerNode.put("downloads", peer.downloads.sum());
+			peerNode.put("uploads", peer.uploads.sum());
+			peerNode.put("incomplete", peer.incomplete.sum());
+			peerNode.put("bytes", sorted.get(i).getValue());
+			peerNode.put("last_time", peer.lastTime / 1000);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,172 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Posts the results of a round to the central server, as the "result" form field, with retries.
+ * <p>
+ * Agents started together by the install script finish their rounds together, so each report is delayed by a random spread to smooth the load on
+ * the server. A failed report (connection error, 429 or 5xx) is retried with {@link Backoff}, honoring Retry-After, as long as the retry can start
+ * before the given deadline. Other errors are not retried, because the same report would fail again.
+ * <p>
+ * Used by a single thread.
+ *
+ * @author Eyal Zohar
+ */
+public class ServerReporter {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	/**
+	 * Maximal random delay before a report.
+	 */
+	private static final long REPORT_SPREAD_MILLIS = 5000;
+	private static final long FIRST_RETRY_MILLIS = 2000;
+	private static final long MAX_RETRY_MILLIS = 30000;
+	private final String reportUrl;
+	private final Backoff backoff = new Backoff(FIRST_RETRY_MILLIS, MAX_RETRY_MILLIS);
+
+	//
+	// Statistics
+	//
+	private String statLastResponse = "";
+	private int statLastStatus;
+	private String statLastError = "";
+	private long statReports;
+	private long statAttempts;
+	private long statFailedReports;
+
+	/**
+	 * Result of a single attempt.
+	 */
+	private static class Attempt {
+		boolean success;
+		boolean retry;
+		long retryAfterMillis;
+	}
+
+	/**
+	 * @param reportUrl
+	 *            The URL where results should be reported to.
+	 */
+	public ServerReporter(String reportUrl) {
+		this.reportUrl = reportUrl;
+	}
+
+	/**
+	 * Post the report, after a random spread, and retry on failure until the deadline.
+	 *
+	 * @param result
+	 *            The report's content.
+	 * @param deadline
+	 *            Last time to start an attempt, normally before the next round.
+	 * @return True if the server accepted the report.
+	 */
+	public boolean report(String result, long deadline) {
+		statReports++;
+		sleep(Backoff.spread(Math.min(REPORT_SPREAD_MILLIS, deadline - System.currentTimeMillis())));
+		while (true) {
+			Attempt attempt = post(result);
+			if (attempt.success) {
+				backoff.onSuccess();
+				return true;
+			}
+			long delay = backoff.onFailure(attempt.retryAfterMillis);
+			if (!attempt.retry || System.currentTimeMillis() + delay > deadline) {
+				statFailedReports++;
+				return false;
+			}
+			if (!sleep(delay)) {
+				statFailedReports++;
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return False if interrupted, which means that the thread should quit or start a new round.
+	 */
+	private static boolean sleep(long millis) {
+		if (millis <= 0)
+			return true;
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	private Attempt post(String result) {
+		statAttempts++;
+		Attempt attempt = new Attempt();
+		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+			HttpPost httpPost = new HttpPost(reportUrl);
+
+			// Set timeouts
+			RequestConfig.Builder requestConfig = RequestConfig.custom();
+			requestConfig.setConnectTimeout(10 * 1000);
+			requestConfig.setConnectionRequestTimeout(10 * 1000);
+			requestConfig.setSocketTimeout(20 * 1000);
+			httpPost.setConfig(requestConfig.build());
+
+			// Fill the POST data
+			List<NameValuePair> nvps = new ArrayList<>(1);
+			nvps.add(new BasicNameValuePair("result", result));
+			httpPost.setEntity(new UrlEncodedFormEntity(nvps));
+
+			// Submit
+			try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
+				statLastStatus = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				statLastResponse = entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+				// Ensure it is fully consumed
+				EntityUtils.consume(entity);
+				attempt.success = statLastStatus >= 200 && statLastStatus < 300;
+				attempt.retry = statLastStatus == 429 || statLastStatus >= 500;
+				Header retryAfter = response.getFirstHeader("Retry-After");
+				if (retryAfter != null)
+					attempt.retryAfterMillis = HttpUtils.parseRetryAfterMillis(retryAfter.getValue());
+				statLastError = attempt.success ? "" : "HTTP status " + statLastStatus;
+			}
+		} catch (IOException e) {
+			statLastStatus = 0;
+			statLastError = e.toString();
+			attempt.retry = true;
+		}
+		return attempt;
+	}
+
+	/**
+	 * @return The body of the last response, or empty if none.
+	 */
+	public String getLastResponse() {
+		return statLastResponse;
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("url", reportUrl);
+		result.put("reports", statReports);
+		result.put("attempts", statAttempts);
+		result.put("failed_reports", statFailedReports);
+		result.put("last_status", statLastStatus);
+		result.put("last_error", statLastError);
+		result.set("backoff", backoff.getStatisticsAsJson());
+		return result;
+	}
+}
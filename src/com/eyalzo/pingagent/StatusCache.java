@@ -0,0 +1,156 @@
+package com.eyalzo.pingagent;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the last {@link StatusSnapshot} of a status page, and builds a new one only when the source changed or the snapshot is too old.
+ * <p>
+ * The source's version is normally the number of completed loops, so a page is built and serialized at most once per loop completion plus once
+ * per maximal age, no matter how many dashboards poll it, and never when nobody asks. Requests that find the snapshot stale while another request
+ * builds it wait for that build instead of building their own.
+ * <p>
+ * Thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class StatusCache {
+	private static JsonNodeFactory factory = JsonNodeFactory.instance;
+	private final String name;
+	private final Supplier<ObjectNode> builder;
+	private final LongSupplier versionSource;
+	private final long maxAgeMillis;
+	/**
+	 * Prefix of the entity tags, different on every run, so a tag from before a restart never matches.
+	 */
+	private final String etagPrefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+	private volatile StatusSnapshot current;
+	/**
+	 * The build in progress, or null if none.
+	 */
+	private final AtomicReference<CompletableFuture<StatusSnapshot>> building = new AtomicReference<>();
+	private long buildsCount;
+
+	//
+	// Statistics
+	//
+	private final LongAdder statRequests = new LongAdder();
+	private final LongAdder statCoalesced = new LongAdder();
+	private volatile long statBuilds;
+	private final LongAdder statNotModified = new LongAdder();
+	private final LongAdder statGzip = new LongAdder();
+
+	/**
+	 * @param name
+	 *            Informative name, for statistics.
+	 * @param builder
+	 *            Builds the page's json.
+	 * @param versionSource
+	 *            Current version of the source, that changes when the page should be rebuilt.
+	 * @param maxAgeMillis
+	 *            Rebuild after this time even if the version did not change, for the parts of the page that change all the time.
+	 */
+	public StatusCache(String name, Supplier<ObjectNode> builder, LongSupplier versionSource, long maxAgeMillis) {
+		this.name = name;
+		this.builder = builder;
+		this.versionSource = versionSource;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	private boolean isFresh(StatusSnapshot snapshot, long version) {
+		return snapshot != null && snapshot.getVersion() == version
+				&& System.currentTimeMillis() - snapshot.getBuildTimeMillis() < maxAgeMillis;
+	}
+
+	/**
+	 * @return The current snapshot, built now if needed.
+	 */
+	public StatusSnapshot get() {
+		statRequests.increment();
+		while (true) {
+			long version = versionSource.getAsLong();
+			StatusSnapshot snapshot = current;
+			if (isFresh(snapshot, version))
+				return snapshot;
+			// Wait for the build in progress, if any
+			CompletableFuture<StatusSnapshot> inProgress = building.get();
+			if (inProgress != null) {
+				statCoalesced.increment();
+				return inProgress.join();
+			}
+			CompletableFuture<StatusSnapshot> future = new CompletableFuture<>();
+			if (!building.compareAndSet(null, future))
+				continue;
+			try {
+				// Built by another request right before
+				snapshot = current;
+				if (!isFresh(snapshot, version))
+					snapshot = build(version);
+				future.complete(snapshot);
+				return snapshot;
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+				throw e;
+			} finally {
+				building.set(null);
+			}
+		}
+	}
+
+	private StatusSnapshot build(long version) {
+		long before = System.nanoTime();
+		byte[] json = builder.get().toString().getBytes(StandardCharsets.UTF_8);
+		buildsCount++;
+		StatusSnapshot result = new StatusSnapshot(version, System.currentTimeMillis(), (System.nanoTime() - before) / 1000,
+				"\"" + etagPrefix + buildsCount + "\"", json);
+		current = result;
+		statBuilds = buildsCount;
+		return result;
+	}
+
+	/**
+	 * Count how a snapshot was served, for statistics.
+	 * 
+	 * @param notModified
+	 *            True if answered with 304, because the client has the snapshot.
+	 * @param gzip
+	 *            True if served compressed.
+	 */
+	public void recordResponse(boolean notModified, boolean gzip) {
+		if (notModified)
+			statNotModified.increment();
+		if (gzip)
+			statGzip.increment();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ObjectNode getStatisticsAsJson() {
+		ObjectNode result = factory.objectNode();
+		result.put("requests", statRequests.sum());
+		result.put("builds", statBuilds);
+		result.put("coalesced", statCoalesced.sum());
+		result.put("not_modified", statNotModified.sum());
+		result.put("gzip", statGzip.sum());
+		result.put("max_age_ms", maxAgeMillis);
+		StatusSnapshot snapshot = current;
+		if (snapshot != null) {
+			result.put("version", snapshot.getVersion());
+			result.put("etag", snapshot.getEtag());
+			LocalConfig.addTimeNodes(result, "build_time", snapshot.getBuildTimeMillis());
+			result.put("build_us", snapshot.getBuildMicro());
+			result.put("bytes", snapshot.getJson().length);
+			result.put("gzip_bytes", snapshot.getGzip() == null ? 0 : snapshot.getGzip().length);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,108 @@
+package com.eyalzo.pingagent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Status response that was already serialized, to be served as is to any number of requests.
+ * <p>
+ * Immutable.
+ *
+ * @author Eyal Zohar
+ */
+public class StatusSnapshot {
+	/**
+	 * Smaller responses are not worth compressing.
+	 */
+	private static final int MIN_GZIP_SIZE = 1024;
+	/**
+	 * Version of the source when the snapshot was built, for example the number of completed loops.
+	 */
+	private final long version;
+	private final long buildTimeMillis;
+	private final long buildMicro;
+	private final String etag;
+	private final byte[] json;
+	/**
+	 * The same json compressed, or null if small.
+	 */
+	private final byte[] gzip;
+
+	/**
+	 * @param etag
+	 *            Entity tag, including the quotes.
+	 * @param json
+	 *            Serialized json, UTF-8.
+	 */
+	StatusSnapshot(long version, long buildTimeMillis, long buildMicro, String etag, byte[] json) {
+		this.version = version;
+		this.buildTimeMillis = buildTimeMillis;
+		this.buildMicro = buildMicro;
+		this.etag = etag;
+		this.json = json;
+		this.gzip = json.length < MIN_GZIP_SIZE ? null : compress(json);
+	}
+
+	private static byte[] compress(byte[] content) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4);
+		try (GZIPOutputStream gzipStream = new GZIPOutputStream(out)) {
+			gzipStream.write(content);
+		} catch (IOException e) {
+			// Cannot happen with a memory stream
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getBuildTimeMillis() {
+		return buildTimeMillis;
+	}
+
+	/**
+	 * @return How long it took to build and serialize, in micros.
+	 */
+	public long getBuildMicro() {
+		return buildMicro;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return The serialized json. Must not be modified.
+	 */
+	public byte[] getJson() {
+		return json;
+	}
+
+	/**
+	 * @return The json compressed with gzip, or null if not compressed. Must not be modified.
+	 */
+	public byte[] getGzip() {
+		return gzip;
+	}
+
+	/**
+	 * @param ifNoneMatch
+	 *            The request's If-None-Match header. Can be null.
+	 * @return True if the client already has this snapshot.
+	 */
+	public boolean matches(String ifNoneMatch) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String cur : ifNoneMatch.split(",")) {
+			cur = cur.trim();
+			if (cur.startsWith("W/"))
+				cur = cur.substring(2);
+			if (cur.equals(etag) || cur.equals("*"))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,397 @@
+package com.eyalzo.pingagent;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Set of targets (IPv4 and port), with the region and download metadata of each target stored alongside.
+ * <p>
+ * A target is packed into a single long, as the IP in bits 16-47 and the port in bits 0-15, so it is never zero. The table is an open-addressing
+ * hash table with linear probing over parallel primitive arrays, so a target costs a few dozens of bytes instead of the hundreds of an
+ * {@link InetSocketAddress} in a boxed map, and a lookup does not allocate. Region names are kept once per table and referenced by index. Most
+ * targets are only pinged, so the download metadata ({@link AnnounceReceivedItem}) is null for them.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Eyal Zohar
+ */
+public class TargetTable {
+	private static final int MIN_CAPACITY = 16;
+	/**
+	 * Packed targets, where zero is an empty slot.
+	 */
+	private long[] targets;
+	/**
+	 * Index of the region name in {@link #regionNames}, or -1 if none.
+	 */
+	private int[] regions;
+	/**
+	 * Port of the target's measurement server, or zero if it has none.
+	 */
+	private int[] measurePorts;
+	/**
+	 * Priority as received in the announce, where higher is more important.
+	 */
+	private int[] ranks;
+	/**
+	 * Downloads to perform with the target, or null if none.
+	 */
+	private AnnounceReceivedItem[] items;
+	private int size;
+	private final ArrayList<String> regionNames;
+	private final HashMap<String, Integer> regionIndexes;
+
+	public TargetTable() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            Number of targets that can be added without resizing.
+	 */
+	public TargetTable(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+		regionNames = new ArrayList<String>();
+		regionIndexes = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Copy of another table, to be changed without changing a table that may be in use.
+	 */
+	public TargetTable(TargetTable base) {
+		targets = base.targets.clone();
+		regions = base.regions.clone();
+		measurePorts = base.measurePorts.clone();
+		ranks = base.ranks.clone();
+		items = base.items.clone();
+		size = base.size;
+		regionNames = new ArrayList<String>(base.regionNames);
+		regionIndexes = new HashMap<String, Integer>(base.regionIndexes);
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int result = MIN_CAPACITY;
+		// Load factor of up to one half keeps the probe sequences short
+		while (result < expectedSize * 2)
+			result <<= 1;
+		return result;
+	}
+
+	private void allocate(int capacity) {
+		targets = new long[capacity];
+		regions = new int[capacity];
+		measurePorts = new int[capacity];
+		ranks = new int[capacity];
+		items = new AnnounceReceivedItem[capacity];
+	}
+
+	private static int slotOf(long target, int mask) {
+		long hash = target * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * @return The target's slot, or -1 if not found.
+	 */
+	public int find(long target) {
+		int mask = targets.length - 1;
+		for (int slot = slotOf(target, mask);; slot = (slot + 1) & mask) {
+			long cur = targets[slot];
+			if (cur == target)
+				return slot;
+			if (cur == 0)
+				return -1;
+		}
+	}
+
+	public boolean contains(long target) {
+		return find(target) >= 0;
+	}
+
+	/**
+	 * Add a target, or replace its metadata if it already exists.
+	 *
+	 * @param target
+	 *            Packed target, see {@link #pack(int, int)}. Must not be zero.
+	 * @param regionName
+	 *            Informative region name as "provider\region". Can be null.
+	 * @param measurePort
+	 *            Port of the target's measurement server, or zero.
+	 * @param rank
+	 *            Priority, where higher is more important.
+	 * @param item
+	 *            Downloads to perform with the target, or null if none.
+	 * @return True if the target is new.
+	 */
+	public boolean put(long target, String regionName, int measurePort, int rank, AnnounceReceivedItem item) {
+		if (target == 0)
+			throw new IllegalArgumentException("Empty target");
+		if ((size + 1) * 2 > targets.length)
+			resize(targets.length * 2);
+		int mask = targets.length - 1;
+		int slot = slotOf(target, mask);
+		boolean isNew = true;
+		while (targets[slot] != 0) {
+			if (targets[slot] == target) {
+				isNew = false;
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		targets[slot] = target;
+		regions[slot] = getRegionIndex(regionName);
+		measurePorts[slot] = measurePort;
+		ranks[slot] = rank;
+		items[slot] = item;
+		if (isNew)
+			size++;
+		return isNew;
+	}
+
+	private int getRegionIndex(String regionName) {
+		if (regionName == null)
+			return -1;
+		Integer result = regionIndexes.get(regionName);
+		if (result == null) {
+			result = regionNames.size();
+			regionNames.add(regionName);
+			regionIndexes.put(regionName, result);
+		}
+		return result;
+	}
+
+	private void resize(int capacity) {
+		long[] oldTargets = targets;
+		int[] oldRegions = regions;
+		int[] oldMeasurePorts = measurePorts;
+		int[] oldRanks = ranks;
+		AnnounceReceivedItem[] oldItems = items;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldTargets.length; i++) {
+			if (oldTargets[i] == 0)
+				continue;
+			int slot = slotOf(oldTargets[i], mask);
+			while (targets[slot] != 0)
+				slot = (slot + 1) & mask;
+			targets[slot] = oldTargets[i];
+			regions[slot] = oldRegions[i];
+			measurePorts[slot] = oldMeasurePorts[i];
+			ranks[slot] = oldRanks[i];
+			items[slot] = oldItems[i];
+		}
+	}
+
+	/**
+	 * @return True if the target was found and removed.
+	 */
+	public boolean remove(long target) {
+		int hole = find(target);
+		if (hole < 0)
+			return false;
+		// Shift back the following targets of the probe sequence, so lookups do not stop at the hole
+		int mask = targets.length - 1;
+		for (int slot = (hole + 1) & mask; targets[slot] != 0; slot = (slot + 1) & mask) {
+			int home = slotOf(targets[slot], mask);
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				targets[hole] = targets[slot];
+				regions[hole] = regions[slot];
+				measurePorts[hole] = measurePorts[slot];
+				ranks[hole] = ranks[slot];
+				items[hole] = items[slot];
+				hole = slot;
+			}
+		}
+		targets[hole] = 0;
+		items[hole] = null;
+		size--;
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Number of slots, for iteration with {@link #getTarget(int)}.
+	 */
+	public int getCapacity() {
+		return targets.length;
+	}
+
+	/**
+	 * @return The target in the slot, or zero if the slot is empty.
+	 */
+	public long getTarget(int slot) {
+		return targets[slot];
+	}
+
+	/**
+	 * @return Region name of the target in the slot, or null if none.
+	 */
+	public String getRegionName(int slot) {
+		return regions[slot] < 0 ? null : regionNames.get(regions[slot]);
+	}
+
+	/**
+	 * @return Measurement server port of the target in the slot, or zero if it has none.
+	 */
+	public int getMeasurePort(int slot) {
+		return measurePorts[slot];
+	}
+
+	/**
+	 * @return Rank of the target in the slot.
+	 */
+	public int getRank(int slot) {
+		return ranks[slot];
+	}
+
+	/**
+	 * @return Downloads to perform with the target in the slot, or null if none.
+	 */
+	public AnnounceReceivedItem getItem(int slot) {
+		return items[slot];
+	}
+
+	/**
+	 * @return Rank of each target, in the same order as {@link #getTargets()} if the table was not modified in between. A new array.
+	 */
+	public int[] getRanks() {
+		int[] result = new int[size];
+		int count = 0;
+		for (int slot = 0; slot < targets.length && count < size; slot++) {
+			if (targets[slot] != 0)
+				result[count++] = ranks[slot];
+		}
+		return result;
+	}
+
+	/**
+	 * @return All the targets, in no particular order. A new array.
+	 */
+	public long[] getTargets() {
+		long[] result = new long[size];
+		int count = 0;
+		for (long cur : targets) {
+			if (cur != 0)
+				result[count++] = cur;
+		}
+		return count == size ? result : Arrays.copyOf(result, count);
+	}
+
+	//
+	// Packed targets
+	//
+
+	/**
+	 * @param ip
+	 *            IPv4 address in network order, as returned by {@link #parseIPv4(CharSequence)}.
+	 * @param port
+	 *            Port between 1 and 65535.
+	 * @return The target packed into a long, never zero.
+	 */
+	public static long pack(int ip, int port) {
+		return ((ip & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+	}
+
+	public static int getIp(long target) {
+		return (int) (target >>> 16);
+	}
+
+	public static int getPort(long target) {
+		return (int) (target & 0xFFFF);
+	}
+
+	/**
+	 * @param ip
+	 *            Candidate for IPv4 in dotted decimal, without leading or trailing spaces. Can be null.
+	 * @return The address in network order in the lower 32 bits, or -1 if the format is not IPv4. Never resolves.
+	 */
+	public static long parseIPv4(CharSequence ip) {
+		if (ip == null)
+			return -1;
+		int length = ip.length();
+		if (length < 7 || length > 15)
+			return -1;
+		long result = 0;
+		int octets = 0;
+		int value = 0;
+		int digits = 0;
+		for (int i = 0; i <= length; i++) {
+			char c = i < length ? ip.charAt(i) : '.';
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (++digits > 3 || value > 255)
+					return -1;
+			} else if (c == '.') {
+				if (digits == 0 || ++octets > 4)
+					return -1;
+				result = (result << 8) | value;
+				value = 0;
+				digits = 0;
+			} else {
+				return -1;
+			}
+		}
+		return octets == 4 ? result : -1;
+	}
+
+	/**
+	 * @param port
+	 *            Port, where illegal values make the target illegal.
+	 * @return The packed target, or -1 if the IP is not IPv4 or the port is not between 1 and 65535.
+	 */
+	public static long parseTarget(CharSequence ip, int port) {
+		if (port <= 0 || port > 65535)
+			return -1;
+		long parsedIp = parseIPv4(ip);
+		return parsedIp < 0 ? -1 : pack((int) parsedIp, port);
+	}
+
+	/**
+	 * @return The target's IP as an address object, without resolving.
+	 */
+	public static InetAddress toInetAddress(long target) {
+		int ip = getIp(target);
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip });
+		} catch (UnknownHostException e) {
+			// Cannot happen with four bytes
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param port
+	 *            Port to use instead of the target's port, for example the target's measurement server.
+	 * @return The target's IP and the given port, without resolving.
+	 */
+	public static InetSocketAddress toSocketAddress(long target, int port) {
+		return new InetSocketAddress(toInetAddress(target), port);
+	}
+
+	public static InetSocketAddress toSocketAddress(long target) {
+		return toSocketAddress(target, getPort(target));
+	}
+
+	/**
+	 * @return The target's IP in dotted decimal.
+	 */
+	public static String ipToString(long target) {
+		int ip = getIp(target);
+		return new StringBuilder(15).append(ip >>> 24).append('.').append((ip >>> 16) & 0xFF).append('.')
+				.append((ip >>> 8) & 0xFF).append('.').append(ip & 0xFF).toString();
+	}
+
+	/**
+	 * @return The target as "ip:port".
+	 */
+	public static String toString(long target) {
+		return ipToString(target) + ":" + getPort(target);
+	}
+}